@@ -0,0 +1,51 @@
+#!/usr/bin/env bash
+# Compares the startup time of the shadow jar, the shadow jar with its AppCDS archive and the native image.
+# Every variant applies an empty plan in dry-run mode, which starts the whole application without touching the
+# library. Build them first with: ./gradlew shadowJar cdsArchive [nativeCompile]
+#
+# Each CDS row only adds -XX:SharedArchiveFile to the row it is compared with: "jar + CDS" to "jar", and
+# "jar (C1) + CDS", the command suggested in the README, to "jar (C1)", which also uses C1 only and the serial GC.
+#
+# usage: scripts/startup-benchmark.sh [runs]
+set -euo pipefail
+
+runs=${1:-20}
+cd "$(dirname "$0")/.."
+jar=build/libs/calibreUpdater-1.0.jar
+archive=build/libs/calibreUpdater.jsa
+native=build/native/nativeCompile/calibreUpdater
+plan=$(mktemp)
+trap 'rm -f "$plan"' EXIT
+args=(--dry-run --apply-plan "$plan")
+
+benchmark() {
+    local name=$1
+    shift
+    # One run to warm up the file system cache
+    "$@" "${args[@]}" > /dev/null
+    local start end
+    start=$(perl -MTime::HiRes=time -e 'printf "%.0f", time * 1000')
+    for ((i = 0; i < runs; i++)); do
+        "$@" "${args[@]}" > /dev/null 2>&1
+    done
+    end=$(perl -MTime::HiRes=time -e 'printf "%.0f", time * 1000')
+    printf "%-16s %6d ms per run\n" "$name" $(((end - start) / runs))
+}
+
+if [[ ! -f $jar ]]; then
+    echo "$jar not found, run ./gradlew shadowJar" >&2
+    exit 1
+fi
+benchmark "jar" java -jar "$jar"
+benchmark "jar (C1)" java -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -jar "$jar"
+if [[ -f $archive ]]; then
+    benchmark "jar + CDS" java -XX:SharedArchiveFile="$archive" -jar "$jar"
+    benchmark "jar (C1) + CDS" java -XX:SharedArchiveFile="$archive" -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -jar "$jar"
+else
+    echo "$archive not found, run ./gradlew cdsArchive" >&2
+fi
+if [[ -x $native ]]; then
+    benchmark "native" "$native"
+else
+    echo "$native not found, run ./gradlew nativeCompile with GraalVM" >&2
+fi
@@ -0,0 +1,49 @@
+package calibreautomations;
+
+import calibreautomations.persistence.BookQuery;
+import calibreautomations.persistence.CalibreDB;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Serves a fixed list of books and discards the writes, so the benchmarks only measure the updater.
+ */
+public class InMemoryCalibreDB implements CalibreDB {
+
+    private final List<Book> books;
+    private int writeCount;
+
+    public InMemoryCalibreDB(List<Book> books) {
+        this.books = books;
+    }
+
+    @Override
+    public Stream<Book> streamBooks(BookQuery query) {
+        return books.stream();
+    }
+
+    @Override
+    public void deleteReadOrderCustomField(int bookId) {
+        writeCount++;
+    }
+
+    @Override
+    public void setReadOrderCustomField(int bookId, String readOrder) {
+        writeCount++;
+    }
+
+    @Override
+    public void replaceBookTags(int bookId, List<String> tagsList) {
+        writeCount++;
+    }
+
+    @Override
+    public void updateBookTitle(int bookId, String title) {
+        writeCount++;
+    }
+
+    public int getWriteCount() {
+        return writeCount;
+    }
+}
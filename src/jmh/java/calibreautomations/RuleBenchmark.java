@@ -0,0 +1,78 @@
+package calibreautomations;
+
+import calibreautomations.persistence.DataAccessException;
+import calibreautomations.rules.RuleEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Each rule applied to every book of a library in dry-run mode, without any backend.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RuleBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int librarySize;
+
+    private List<Book> books;
+    private CalibreUpdater updater;
+    private RuleEngine engine;
+    private PrintStream originalOut;
+
+    @Setup
+    public void setUp() {
+        books = SyntheticLibrary.generate(librarySize, 42);
+        updater = new CalibreUpdater(new InMemoryCalibreDB(books));
+        engine = new RuleEngine(RuleEngine.loadRules());
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public void processAudiobook(Blackhole blackhole) throws DataAccessException {
+        for (Book book : books) {
+            blackhole.consume(updater.processAudiobook(true, book));
+        }
+    }
+
+    @Benchmark
+    public void processReadOrder(Blackhole blackhole) throws DataAccessException {
+        for (Book book : books) {
+            blackhole.consume(updater.processReadOrder(true, book));
+        }
+    }
+
+    @Benchmark
+    public void allRulesInOnePass(Blackhole blackhole) {
+        for (Book book : books) {
+            blackhole.consume(engine.evaluate(book));
+        }
+    }
+
+    @Benchmark
+    public void isAudioBookFromTags(Blackhole blackhole) {
+        for (Book book : books) {
+            blackhole.consume(book.isAudioBookFromTags());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package calibreautomations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates libraries with a realistic mix of books for the benchmarks: a few thousand distinct tags shared by all
+ * the books, audiobooks, subtitles and read orders in tags and in the custom field, including the inconsistent cases
+ * the rules fix.
+ */
+public final class SyntheticLibrary {
+
+    private static final int DISTINCT_TAGS = 2000;
+
+    private SyntheticLibrary() {
+    }
+
+    public static List<Book> generate(int size, long seed) {
+        Random random = new Random(seed);
+        List<Book> books = new ArrayList<>(size);
+        for (int id = 1; id <= size; id++) {
+            List<String> tags = new ArrayList<>();
+            int tagCount = 3 + random.nextInt(10);
+            for (int i = 0; i < tagCount; i++) {
+                tags.add(randomTag(random));
+            }
+            boolean audiobook = random.nextInt(100) < 30;
+            if (audiobook) {
+                tags.add("format:audiobook");
+            }
+            String readOrder = null;
+            int readOrderCase = random.nextInt(100);
+            if (readOrderCase < 50) {
+                readOrder = random.nextInt(20) == 0 ? "0.0" : (1 + random.nextInt(500)) + ".0";
+                // Most tags already match the custom field
+                if (readOrderCase < 40) {
+                    tags.add("readorder:" + readOrder);
+                }
+            } else if (readOrderCase < 55) {
+                tags.add("readorder:" + (1 + random.nextInt(500)) + ".0");
+                tags.add("readorder:" + (1 + random.nextInt(500)) + ".0");
+            }
+            String title = "Title " + id;
+            if (random.nextInt(100) < 40) {
+                title += ": Subtitle of book " + id;
+            }
+            if (audiobook ? random.nextInt(100) < 80 : random.nextInt(100) < 5) {
+                title = title.contains(":") ? title.replaceFirst(":", " (audiobook):") : title + " (audiobook)";
+            }
+            books.add(new Book(id, title, String.join(", ", tags), readOrder));
+        }
+        return books;
+    }
+
+    private static String randomTag(Random random) {
+        int tag = random.nextInt(DISTINCT_TAGS);
+        return switch (tag % 4) {
+            case 0 -> "genre:" + tag;
+            case 1 -> "language:" + tag;
+            case 2 -> "series tag " + tag;
+            default -> "tag" + tag;
+        };
+    }
+}
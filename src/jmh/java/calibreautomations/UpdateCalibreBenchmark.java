@@ -0,0 +1,56 @@
+package calibreautomations;
+
+import calibreautomations.persistence.DataAccessException;
+import org.apache.commons.cli.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full {@link CalibreUpdater#updateCalibre(AppOptions)} runs against an in-memory library.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UpdateCalibreBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int librarySize;
+
+    @Param({"1", "4"})
+    int parallelism;
+
+    private CalibreUpdater updater;
+    private AppOptions options;
+    private PrintStream originalOut;
+
+    @Setup
+    public void setUp() throws ParseException {
+        updater = new CalibreUpdater(new InMemoryCalibreDB(SyntheticLibrary.generate(librarySize, 42)));
+        options = new AppOptions();
+        options.parse(new String[]{"--parallel", String.valueOf(parallelism)});
+        // The updater prints a line for every change
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public void updateCalibre() throws DataAccessException {
+        updater.updateCalibre(options);
+    }
+}
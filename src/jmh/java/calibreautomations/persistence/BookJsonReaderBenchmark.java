@@ -0,0 +1,77 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import calibreautomations.SyntheticLibrary;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping the output of {@code calibredb list --for-machine} to books, streamed and through a full JSON tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BookJsonReaderBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    int librarySize;
+
+    private String json;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringWriter output = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(output)) {
+            writer.beginArray();
+            for (Book book : SyntheticLibrary.generate(librarySize, 42)) {
+                writer.beginObject();
+                if (!Book.NO_READORDER.equals(book.getReadOrderFromCustomField())) {
+                    writer.name("*readorder").jsonValue(book.getReadOrderFromCustomField());
+                }
+                writer.name("id").value(book.getId());
+                writer.name("tags").beginArray();
+                for (String tag : book.getTagList()) {
+                    writer.value(tag);
+                }
+                writer.endArray();
+                writer.name("title").value(book.getTitle());
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+        json = output.toString();
+    }
+
+    @Benchmark
+    public void streamingReader(Blackhole blackhole) throws IOException {
+        try (BookJsonReader reader = new BookJsonReader(new StringReader(json))) {
+            Book book;
+            while ((book = reader.next()) != null) {
+                blackhole.consume(book);
+            }
+        }
+    }
+
+    @Benchmark
+    public void jsonTree(Blackhole blackhole) {
+        JsonArray books = JsonParser.parseString(json).getAsJsonArray();
+        for (int i = 0; i < books.size(); i++) {
+            blackhole.consume(books.get(i).getAsJsonObject().get("title").getAsString());
+        }
+    }
+}
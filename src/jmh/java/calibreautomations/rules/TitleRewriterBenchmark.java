@@ -0,0 +1,70 @@
+package calibreautomations.rules;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The title rewriting of the audiobook rule against the regular expressions it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TitleRewriterBenchmark {
+
+    private String[] titles;
+    private String[] audiobookTitles;
+
+    @Setup
+    public void setUp() {
+        titles = new String[]{
+                "The Name of the Wind",
+                "Foundation: The Foundation Trilogy, Book 1",
+                "Dune Messiah: Dune Chronicles: Book 2",
+                "A Short Title"};
+        audiobookTitles = new String[titles.length];
+        for (int i = 0; i < titles.length; i++) {
+            audiobookTitles[i] = TitleRewriter.addAudiobookMarker(titles[i]);
+        }
+    }
+
+    @Benchmark
+    public void addMarker(Blackhole blackhole) {
+        for (String title : titles) {
+            blackhole.consume(TitleRewriter.addAudiobookMarker(title));
+        }
+    }
+
+    @Benchmark
+    public void removeMarker(Blackhole blackhole) {
+        for (String title : audiobookTitles) {
+            blackhole.consume(TitleRewriter.removeAudiobookMarker(title));
+        }
+    }
+
+    @Benchmark
+    public void addMarkerWithRegex(Blackhole blackhole) {
+        for (String title : titles) {
+            blackhole.consume(title.contains(":") ? title.replaceFirst(":", " (audiobook):") : title + " (audiobook)");
+        }
+    }
+
+    @Benchmark
+    public void removeMarkerWithRegex(Blackhole blackhole) {
+        for (String title : audiobookTitles) {
+            String result = title.replaceAll("\\(audiobook\\)", "").trim();
+            if (result.contains(":")) {
+                String[] titleParts = result.split(":");
+                result = titleParts[0].trim() + ": " + titleParts[1].trim();
+            }
+            blackhole.consume(result);
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package calibreautomations;
 
+import calibreautomations.rules.Rule;
+import calibreautomations.rules.RuleEngine;
 import org.apache.commons.cli.*;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 
 public class AppOptions {
 
@@ -12,6 +17,24 @@ public class AppOptions {
     private boolean readorders;
     private boolean audiobooks;
     private boolean dryRun;
+    private String backend;
+    private int parallelism = 1;
+    private boolean incremental;
+    private List<String> rules = List.of();
+    private boolean metrics;
+    private boolean refreshCache;
+    private boolean watch;
+    private boolean validate;
+    private boolean hashes;
+    private boolean editions;
+    private boolean verifyHashes;
+    private boolean checkReadOrders;
+    private boolean renumber;
+    private Path planFile;
+    private Path applyPlanFile;
+    private String undo;
+    private List<String> libraries = List.of();
+    private Path metricsFile;
 
     public AppOptions() {
         options = new Options();
@@ -30,6 +53,94 @@ public class AppOptions {
                 .longOpt("read-order")
                 .desc("")
                 .build());
+        options.addOption(Option.builder()
+                .longOpt("library")
+                .hasArg()
+                .argName("path")
+                .desc("Update this library instead of the configured ones, repeat it to update several")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("backend")
+                .hasArg()
+                .argName("cli|sqlite|worker")
+                .desc("Library access: calibredb command line (default), metadata.db directly or a long-lived Calibre worker")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("parallel")
+                .hasArg()
+                .argName("N")
+                .desc("Evaluate the rules on N threads")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("incremental")
+                .desc("Only process books modified since the last run")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("rules")
+                .hasArg()
+                .argName("name,...")
+                .desc("Run only the given rules, e.g. audiobook,readorder")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("plan")
+                .hasArg()
+                .argName("file")
+                .desc("Write the changes to a file, one JSON object per book, usually with --dry-run")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("apply-plan")
+                .hasArg()
+                .argName("file")
+                .desc("Apply the changes of a file written by --plan, without evaluating the rules again")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("undo")
+                .hasArg()
+                .argName("LAST|file")
+                .desc("Restore the books changed by the last run with the sqlite backend, or by the run of an undo journal")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("watch")
+                .desc("Keep running and update the books modified every time the library changes")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("validate")
+                .desc("Check the files of every book against their names and the format:audiobook tag, without changing anything")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("hashes")
+                .desc("Update the index of the hashes of the book files and report the duplicate and changed files")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("verify-hashes")
+                .desc("Like --hashes, but hash every file again to find the files corrupted since the last time")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("editions")
+                .desc("Pair the audiobook and ebook editions of the same title and copy the readorder to the editions without one")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("check-readorders")
+                .desc("Report the readorders shared by several books, missing from the sequence or not numbers")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("renumber")
+                .desc("Like --check-readorders, then renumber the readorders 1, 2, 3... keeping their order")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("refresh-cache")
+                .desc("List the books again instead of using the snapshot saved by a previous run")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("metrics")
+                .desc("Print the time spent in each phase and backend call at the end of the run")
+                .build());
+        options.addOption(Option.builder()
+                .longOpt("metrics-file")
+                .hasArg()
+                .argName("file")
+                .desc("Write the metrics to a file, as JSON if it ends with .json, otherwise in Prometheus text format")
+                .build());
     }
 
     public void parse(String[] args) throws ParseException {
@@ -41,6 +152,80 @@ public class AppOptions {
         this.readorders = cmd.hasOption("r") || cmd.hasOption("readOrder") || cmd.hasOption("read-order") || !cmd.hasOption("a") || !cmd.hasOption("audiobook");
         this.audiobooks = cmd.hasOption("a") || !(cmd.hasOption("r") || cmd.hasOption("readOrder") || cmd.hasOption("read-order"));
         this.dryRun = cmd.hasOption("d");
+        this.backend = cmd.getOptionValue("backend");
+        if (backend != null && !backend.equals("cli") && !backend.equals("sqlite") && !backend.equals("worker")) {
+            throw new ParseException("Unknown backend: " + backend);
+        }
+        if (cmd.hasOption("library")) {
+            this.libraries = List.of(cmd.getOptionValues("library"));
+        }
+        this.incremental = cmd.hasOption("incremental");
+        if (cmd.hasOption("parallel")) {
+            this.parallelism = parsePositiveInt("parallel", cmd.getOptionValue("parallel"));
+        }
+        this.watch = cmd.hasOption("watch");
+        if (cmd.hasOption("plan")) {
+            this.planFile = Path.of(cmd.getOptionValue("plan"));
+        }
+        this.undo = cmd.getOptionValue("undo");
+        if (undo != null && (planFile != null || watch || cmd.hasOption("apply-plan"))) {
+            throw new ParseException("--undo cannot be combined with --plan, --apply-plan or --watch");
+        }
+        if (cmd.hasOption("apply-plan")) {
+            this.applyPlanFile = Path.of(cmd.getOptionValue("apply-plan"));
+            if (planFile != null || watch) {
+                throw new ParseException("--apply-plan cannot be combined with --plan or --watch");
+            }
+        }
+        this.validate = cmd.hasOption("validate");
+        if (validate && (planFile != null || watch || applyPlanFile != null || undo != null)) {
+            throw new ParseException("--validate cannot be combined with --plan, --apply-plan, --undo or --watch");
+        }
+        this.verifyHashes = cmd.hasOption("verify-hashes");
+        this.hashes = cmd.hasOption("hashes") || verifyHashes;
+        if (hashes && (validate || planFile != null || watch || applyPlanFile != null || undo != null)) {
+            throw new ParseException("--hashes cannot be combined with --validate, --plan, --apply-plan, --undo or --watch");
+        }
+        this.editions = cmd.hasOption("editions");
+        if (editions && (hashes || validate || planFile != null || watch || applyPlanFile != null || undo != null)) {
+            throw new ParseException("--editions cannot be combined with --hashes, --validate, --plan, --apply-plan, --undo or --watch");
+        }
+        this.renumber = cmd.hasOption("renumber");
+        this.checkReadOrders = cmd.hasOption("check-readorders") || renumber;
+        if (checkReadOrders && (editions || hashes || validate || planFile != null || watch || applyPlanFile != null || undo != null)) {
+            throw new ParseException("--check-readorders and --renumber cannot be combined with --editions, --hashes, --validate, --plan, --apply-plan, --undo or --watch");
+        }
+        this.refreshCache = cmd.hasOption("refresh-cache");
+        this.metrics = cmd.hasOption("metrics");
+        if (cmd.hasOption("metrics-file")) {
+            this.metricsFile = Path.of(cmd.getOptionValue("metrics-file"));
+        }
+        if (cmd.hasOption("rules")) {
+            this.rules = Arrays.stream(cmd.getOptionValue("rules").split(","))
+                    .map(String::trim)
+                    .filter(rule -> !rule.isEmpty())
+                    .toList();
+        }
+        if (!rules.isEmpty()) {
+            List<String> knownRules = RuleEngine.loadRules().stream().map(Rule::getName).toList();
+            for (String rule : rules) {
+                if (!knownRules.contains(rule)) {
+                    throw new ParseException("Unknown rule: " + rule + ", the rules are " + String.join(", ", knownRules));
+                }
+            }
+        }
+    }
+
+    private static int parsePositiveInt(String option, String value) throws ParseException {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new ParseException("Option --" + option + " expects a positive number: " + value);
     }
 
     public String help() {
@@ -83,4 +268,106 @@ public class AppOptions {
     public boolean isDryRun() {
         return dryRun;
     }
+
+    /**
+     * @return the backend requested on the command line, or null to use the configured one
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * @return the libraries given with --library, empty to use the configured ones
+     */
+    public List<String> getLibraries() {
+        return libraries;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public Path getPlanFile() {
+        return planFile;
+    }
+
+    public Path getApplyPlanFile() {
+        return applyPlanFile;
+    }
+
+    /**
+     * @return {@code LAST}, the path of an undo journal or null if no run is undone
+     */
+    public String getUndo() {
+        return undo;
+    }
+
+    public boolean isWatch() {
+        return watch;
+    }
+
+    public boolean isValidate() {
+        return validate;
+    }
+
+    public boolean isHashes() {
+        return hashes;
+    }
+
+    public boolean isVerifyHashes() {
+        return verifyHashes;
+    }
+
+    public boolean isEditions() {
+        return editions;
+    }
+
+    public boolean isCheckReadOrders() {
+        return checkReadOrders;
+    }
+
+    public boolean isRenumber() {
+        return renumber;
+    }
+
+    public boolean isRefreshCache() {
+        return refreshCache;
+    }
+
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the file where the metrics are written at the end of the run, or null
+     */
+    public Path getMetricsFile() {
+        return metricsFile;
+    }
+
+    /**
+     * @return the rules given with --rules, empty if the option was not used
+     */
+    public List<String> getRules() {
+        return rules;
+    }
+
+    /**
+     * The rules given with --rules run, otherwise -a and -r select the audiobook and readorder rules, and any other
+     * rule runs only when neither is given.
+     */
+    public boolean isRuleEnabled(String rule) {
+        if (!rules.isEmpty()) {
+            return rules.contains(rule);
+        }
+        return switch (rule) {
+            case "audiobook" -> isAudiobooks();
+            case "readorder" -> isReadorders();
+            default -> isAudiobooks() && isReadorders();
+        };
+    }
 }
@@ -1,19 +1,75 @@
 package calibreautomations;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
 public class Book {
     public static final String NO_READORDER = "no-readorder";
+    public static final String READORDER_TAG_PREFIX = "readorder:";
+    public static final String AUDIOBOOK_TAG = "format:audiobook";
+    private static final int[] NO_TAGS = new int[0];
     private final int id;
     private final String title;
-    private final String tags;
+    private final TagDictionary tagDictionary;
+    // Ids of the trimmed, distinct tags in their original order
+    private final int[] tagIds;
     private final String readOrder;
 
+    /**
+     * @param tags comma separated tags
+     */
     public Book(int id, String title, String tags, String readOrder) {
+        this(id, title, parseTags(tags), readOrder);
+    }
+
+    public Book(int id, String title, Collection<String> tags, String readOrder) {
+        this(id, title, tags, readOrder, TagDictionary.shared());
+    }
+
+    public Book(int id, String title, Collection<String> tags, String readOrder, TagDictionary tagDictionary) {
         this.id = id;
         this.title = title;
-        this.tags = tags;
+        this.tagDictionary = tagDictionary;
+        this.tagIds = internTags(tags, tagDictionary);
         this.readOrder = readOrder;
     }
 
+    private static List<String> parseTags(String tags) {
+        return tags == null || tags.isEmpty() ? List.of() : List.of(tags.split(","));
+    }
+
+    private static int[] internTags(Collection<String> tags, TagDictionary tagDictionary) {
+        if (tags.isEmpty()) {
+            return NO_TAGS;
+        }
+        int[] ids = new int[tags.size()];
+        int count = 0;
+        for (String tag : tags) {
+            String trimmed = tag.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int tagId = tagDictionary.intern(trimmed);
+            if (indexOf(ids, count, tagId) < 0) {
+                ids[count++] = tagId;
+            }
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    private static int indexOf(int[] ids, int length, int tagId) {
+        // Books have a handful of tags, a linear scan is faster than hashing
+        for (int i = 0; i < length; i++) {
+            if (ids[i] == tagId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     public int getId() {
         return id;
     }
@@ -22,8 +78,54 @@ public class Book {
         return title;
     }
 
+    /**
+     * @return the tags separated by ", "
+     */
     public String getTags() {
-        return tags;
+        return String.join(", ", getTagList());
+    }
+
+    /**
+     * @return a view of the distinct tags in their original order
+     */
+    public List<String> getTagList() {
+        return new AbstractList<>() {
+            @Override
+            public String get(int index) {
+                return tagDictionary.name(tagIds[index]);
+            }
+
+            @Override
+            public int size() {
+                return tagIds.length;
+            }
+        };
+    }
+
+    public TagDictionary getTagDictionary() {
+        return tagDictionary;
+    }
+
+    public boolean hasTag(String tag) {
+        int tagId = tagDictionary.idOf(tag);
+        return tagId >= 0 && indexOf(tagIds, tagIds.length, tagId) >= 0;
+    }
+
+    /**
+     * @return the values of the {@code readorder:} tags, in their original order
+     */
+    public List<String> getReadOrderTags() {
+        List<String> values = List.of();
+        for (int tagId : tagIds) {
+            String value = tagDictionary.readOrderValue(tagId);
+            if (value != null) {
+                if (values.isEmpty()) {
+                    values = new ArrayList<>(1);
+                }
+                values.add(value);
+            }
+        }
+        return values;
     }
 
     public String getReadOrderFromCustomField() {
@@ -31,7 +133,7 @@ public class Book {
     }
 
     public boolean isAudioBookFromTags() {
-        return tags != null && tags.contains("format:audiobook");
+        return hasTag(AUDIOBOOK_TAG);
     }
 
     @Override
@@ -39,8 +141,8 @@ public class Book {
         return "Book{" +
                "id=" + id +
                ", title='" + title + '\'' +
-               ", tags='" + tags + '\'' +
+               ", tags='" + getTags() + '\'' +
                ", readOrder='" + readOrder + '\'' +
                '}';
     }
-}
\ No newline at end of file
+}
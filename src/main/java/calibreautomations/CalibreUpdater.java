@@ -1,197 +1,890 @@
 package calibreautomations;
 
+import calibreautomations.persistence.BookFilter;
+import calibreautomations.persistence.BookQuery;
+import calibreautomations.persistence.BookUpdate;
+import calibreautomations.persistence.BufferedCalibreDB;
+import calibreautomations.persistence.CachedCalibreDB;
 import calibreautomations.persistence.CalibreDB;
 import calibreautomations.persistence.CalibreDBCli;
+import calibreautomations.persistence.CalibreDBSqlite;
+import calibreautomations.persistence.CalibreDBWorker;
 import calibreautomations.persistence.DataAccessException;
+import calibreautomations.persistence.LibraryFiles;
+import calibreautomations.persistence.LibraryVersion;
+import calibreautomations.persistence.MeteredCalibreDB;
+import calibreautomations.persistence.ShardedCalibreDB;
+import calibreautomations.persistence.UndoJournal;
+import calibreautomations.persistence.UncheckedDataAccessException;
+import calibreautomations.metrics.RunMetrics;
+import calibreautomations.metrics.Timer;
+import calibreautomations.rules.AudiobookRule;
+import calibreautomations.rules.BookChanges;
+import calibreautomations.rules.EditionIndex;
+import calibreautomations.rules.ReadOrderIndex;
+import calibreautomations.rules.ReadOrderRule;
+import calibreautomations.rules.Rule;
+import calibreautomations.rules.RuleEngine;
+import calibreautomations.validation.BookFile;
+import calibreautomations.validation.FormatValidator;
+import calibreautomations.validation.HashIndex;
+import calibreautomations.validation.LibraryScanner;
+import com.google.gson.JsonParseException;
 import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Properties;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 public class CalibreUpdater {
     public static final String NO_READORDER = "no-readorder";
     private static final Logger logger = LoggerFactory.getLogger(CalibreUpdater.class);
-    private static String CALIBRE_LIBRARY_PATH;
+    private static final Rule AUDIOBOOK_RULE = new AudiobookRule();
+    private static final Rule READORDER_RULE = new ReadOrderRule();
     private final CalibreDB calibredb;
+    private final Checkpoint checkpoint;
+    private final List<Rule> rules;
+    private final RunMetrics metrics;
+    private final Configuration configuration;
+    private final String libraryPath;
+    private final PrintStream out;
+    private final Timer evaluateTimer;
+    private final Timer writeTimer;
+    private long changedCount;
 
     public CalibreUpdater(CalibreDB calibredb) {
+        this(calibredb, null);
+    }
+
+    /**
+     * @param checkpoint where incremental runs keep track of the last run, or null to always process all the books
+     */
+    public CalibreUpdater(CalibreDB calibredb, Checkpoint checkpoint) {
+        this(calibredb, checkpoint, RuleEngine.loadRules());
+    }
+
+    /**
+     * @param rules all the available rules, the options select which ones run
+     */
+    public CalibreUpdater(CalibreDB calibredb, Checkpoint checkpoint, List<Rule> rules) {
+        this(calibredb, checkpoint, rules, new RunMetrics());
+    }
+
+    /**
+     * @param metrics where the time spent listing, evaluating and writing books is recorded
+     */
+    public CalibreUpdater(CalibreDB calibredb, Checkpoint checkpoint, List<Rule> rules, RunMetrics metrics) {
+        this(calibredb, checkpoint, rules, metrics, new Configuration(), null, null);
+    }
+
+    /**
+     * @param libraryPath the library the backend reads, used for the checkpoint, the undo journals and --watch
+     * @param out         where the report is printed, errors included, or null to print to the standard output and
+     *                    the errors to the standard error
+     */
+    public CalibreUpdater(CalibreDB calibredb, Checkpoint checkpoint, List<Rule> rules, RunMetrics metrics,
+                          Configuration configuration, String libraryPath, PrintStream out) {
         this.calibredb = calibredb;
+        this.checkpoint = checkpoint;
+        this.rules = List.copyOf(rules);
+        this.metrics = metrics;
+        this.configuration = configuration;
+        this.libraryPath = libraryPath;
+        this.out = out;
+        this.evaluateTimer = metrics.timer("phase.evaluate");
+        this.writeTimer = metrics.timer("phase.write");
     }
 
     public static void main(String[] args) {
-        loadConfiguration();
+        Configuration configuration = Configuration.load();
+
+        AppOptions options = new AppOptions();
+        if (!parseOptions(options, args)) {
+            return;
+        }
+        List<String> libraries = options.getLibraries().isEmpty() ? configuration.getLibraryPaths() : options.getLibraries();
+        if (libraries.isEmpty()) {
+            System.err.println("No Calibre library, set calibre.library.path in config.properties or use --library");
+            return;
+        }
+        if (libraries.size() > 1 && (options.isWatch() || options.getPlanFile() != null || options.getApplyPlanFile() != null
+                                     || (options.getUndo() != null && !UndoJournal.LAST.equals(options.getUndo())))) {
+            System.err.println("--watch, --plan, --apply-plan and --undo with a journal file need a single library, choose it with --library");
+            return;
+        }
+        RunMetrics metrics = new RunMetrics();
+        Checkpoint checkpoint = new Checkpoint(configuration.getCheckpointFile());
+        if (libraries.size() == 1) {
+            updateLibrary(configuration, options, libraries.get(0), checkpoint, metrics, null);
+        } else {
+            updateLibraries(configuration, options, libraries, checkpoint, metrics);
+        }
+        reportMetrics(options, metrics);
+    }
+
+    /**
+     * Updates several libraries at the same time, each one with its own backend. The report of each library is kept
+     * until it is done and printed whole, in the order of the libraries, followed by the totals.
+     */
+    private static void updateLibraries(Configuration configuration, AppOptions options, List<String> libraries,
+                                        Checkpoint checkpoint, RunMetrics metrics) {
+        int parallelism = Math.max(1, Math.min(configuration.getLibraryParallelism(), libraries.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<ByteArrayOutputStream> reports = new ArrayList<>();
+            List<Future<LibraryRun>> runs = new ArrayList<>();
+            for (String library : libraries) {
+                ByteArrayOutputStream report = new ByteArrayOutputStream();
+                PrintStream out = new PrintStream(report, true, StandardCharsets.UTF_8);
+                reports.add(report);
+                runs.add(executor.submit(() -> updateLibrary(configuration, options, library, checkpoint, metrics, out)));
+            }
+            int failed = 0;
+            long changed = 0;
+            for (int i = 0; i < libraries.size(); i++) {
+                LibraryRun run;
+                String error = null;
+                try {
+                    run = runs.get(i).get();
+                } catch (ExecutionException e) {
+                    logger.debug("Error updating {}", libraries.get(i), e);
+                    run = new LibraryRun(false, 0);
+                    error = "Error updating Calibre library \"" + libraries.get(i) + "\": " + e.getCause();
+                }
+                // The report of a failed library goes to the standard error whole, so it is not lost among the others
+                PrintStream target = run.succeeded() ? System.out : System.err;
+                target.print(reports.get(i).toString(StandardCharsets.UTF_8));
+                if (error != null) {
+                    target.println(error);
+                }
+                target.println();
+                failed += run.succeeded() ? 0 : 1;
+                changed += run.changed();
+            }
+            String updateMessage = options.isDryRun() ? "to update (dry-run)" : "updated";
+            System.out.printf("%d libraries, %d items %s, %d failed%n", libraries.size(), changed, updateMessage, failed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Builds the backend of a library and runs the updater on it.
+     *
+     * @param out where the report is printed, or null for the standard output
+     */
+    private static LibraryRun updateLibrary(Configuration configuration, AppOptions options, String libraryPath,
+                                           Checkpoint checkpoint, RunMetrics metrics, PrintStream out) {
+        PrintStream err = out != null ? out : System.err;
+        CalibreDB calibreDB;
+        try {
+            // Undoing a run is not recorded, so the next undo goes one run further back
+            String backend = options.getBackend() != null ? options.getBackend() : configuration.getBackend();
+            calibreDB = createCalibreDB(configuration, backend, libraryPath, options.getUndo() == null);
+        } catch (IOException e) {
+            logger.debug("Error creating backend", e);
+            err.println("Error creating backend: " + e.getMessage());
+            return new LibraryRun(false, 0);
+        }
+        CalibreDB shardedCalibreDB = configuration.getListShards() > 1
+                ? new ShardedCalibreDB(calibreDB, configuration.getListShards())
+                : calibreDB;
+        // Metered below the cache and the buffer, so only the actual backend calls are timed
+        CalibreDB meteredCalibreDB = new MeteredCalibreDB(shardedCalibreDB, metrics);
+        CalibreDB cachedCalibreDB = configuration.isCacheEnabled()
+                ? new CachedCalibreDB(meteredCalibreDB, libraryPath, configuration.getCacheDir(), options.isRefreshCache())
+                : meteredCalibreDB;
+        boolean succeeded;
+        long changed = 0;
+        try (BufferedCalibreDB bufferedCalibreDB = new BufferedCalibreDB(cachedCalibreDB, configuration.getWriteBatchSize())) {
+            CalibreUpdater calibreUpdater = new CalibreUpdater(bufferedCalibreDB, checkpoint, RuleEngine.loadRules(), metrics,
+                    configuration, libraryPath, out);
+            succeeded = calibreUpdater.run(options);
+            changed = calibreUpdater.getChangedCount();
+            PrintStream report = out != null ? out : System.out;
+            if (bufferedCalibreDB.getMutationCount() > 0) {
+                if (calibreDB instanceof CalibreDBCli cli) {
+                    report.printf("%d changes applied with %d calibredb processes%n", bufferedCalibreDB.getMutationCount(), cli.getProcessCount());
+                } else {
+                    report.printf("%d changes applied in %d batches%n", bufferedCalibreDB.getMutationCount(), bufferedCalibreDB.getBatchCount());
+                }
+            }
+        } catch (DataAccessException e) {
+            logger.debug("Error closing backend", e);
+            err.println(e.getMessage());
+            succeeded = false;
+        }
+        addProcessMetrics(calibreDB, metrics);
+        return new LibraryRun(succeeded, changed);
+    }
 
-        CalibreDB calibreDB = new CalibreDBCli(CALIBRE_LIBRARY_PATH);
-        CalibreUpdater calibreUpdater = new CalibreUpdater(calibreDB);
-        calibreUpdater.run(args);
+    private static void addProcessMetrics(CalibreDB calibreDB, RunMetrics metrics) {
+        int processCount = 0;
+        long bytesRead = 0;
+        if (calibreDB instanceof CalibreDBCli cli) {
+            processCount = cli.getProcessCount();
+            bytesRead = cli.getBytesRead();
+        } else if (calibreDB instanceof CalibreDBWorker worker) {
+            processCount = worker.getProcessCount();
+            bytesRead = worker.getBytesRead();
+        }
+        metrics.add("calibredb.processes", processCount);
+        metrics.add("calibredb.stdoutBytes", bytesRead);
     }
 
-    private static void loadConfiguration() {
-        Properties properties = new Properties();
-        try (InputStream input = CalibreUpdater.class.getClassLoader().getResourceAsStream("config.properties")) {
-            if (input == null) {
-                System.err.println("Sorry, unable to find config.properties");
-                return;
+    private static void reportMetrics(AppOptions options, RunMetrics metrics) {
+        if (options.isMetrics()) {
+            System.out.println();
+            System.out.print(metrics.summary());
+        }
+        if (options.getMetricsFile() != null) {
+            try {
+                metrics.write(options.getMetricsFile());
+            } catch (IOException e) {
+                logger.debug("Error writing metrics", e);
+                System.err.println("Error writing metrics: " + e.getMessage());
             }
-            properties.load(input);
-            CALIBRE_LIBRARY_PATH = properties.getProperty("calibre.library.path");
-        } catch (IOException ex) {
-            logger.debug("Error loading configuration", ex);
-            System.err.println("Error loading configuration");
         }
     }
 
+    /**
+     * @param undoJournal whether the sqlite backend records the previous values of the books it changes
+     */
+    static CalibreDB createCalibreDB(Configuration configuration, String backend, String libraryPath, boolean undoJournal) throws IOException {
+        if ("sqlite".equals(backend)) {
+            return new CalibreDBSqlite(libraryPath, undoJournal
+                    ? new UndoJournal(UndoJournal.directoryFor(configuration.getUndoDir(), libraryPath), configuration.getUndoKeep())
+                    : null);
+        }
+        if ("worker".equals(backend)) {
+            Path script = CalibreDBWorker.extractWorkerScript();
+            List<String> command = Arrays.stream(configuration.getWorkerCommand().trim().split("\\s+"))
+                    .map(argument -> argument.replace("{script}", script.toString()).replace("{library}", libraryPath))
+                    .toList();
+            return new CalibreDBWorker(command);
+        }
+        return new CalibreDBCli(libraryPath, configuration.getCalibredbTimeout());
+    }
+
     public void run(String[] args) {
         AppOptions options = new AppOptions();
+        if (parseOptions(options, args)) {
+            run(options);
+        }
+    }
 
+    private static boolean parseOptions(AppOptions options, String[] args) {
         try {
             options.parse(args);
+            return true;
         } catch (ParseException e) {
             // Show instructions if there is an error parsing the command line arguments
             System.out.println(e.getMessage());
             System.out.println(options.help());
-            return;
+            return false;
         }
+    }
 
+    /**
+     * @return false if the run failed, the error has been printed
+     */
+    public boolean run(AppOptions options) {
         try {
-            updateCalibre(options);
+            if (options.getUndo() != null) {
+                undo(options);
+            } else if (options.getApplyPlanFile() != null) {
+                applyPlan(options);
+            } else if (options.isWatch()) {
+                watch(options);
+            } else if (options.isValidate()) {
+                validate(options);
+            } else if (options.isHashes()) {
+                updateHashIndex(options);
+            } else if (options.isEditions()) {
+                pairEditions(options);
+            } else if (options.isCheckReadOrders()) {
+                checkReadOrders(options);
+            } else {
+                updateCalibre(options);
+            }
+            return true;
         } catch (DataAccessException e) {
             logger.debug("Error updating Calibre", e);
-            System.err.println(e.getMessage());
+            err().println(e.getMessage());
+        } catch (IOException e) {
+            logger.debug("Error reading the library folder", e);
+            err().println("Error reading the library folder: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return false;
     }
 
-    protected void updateCalibre(AppOptions options) throws DataAccessException {
-        System.out.println("Updating Calibre library \"" + CALIBRE_LIBRARY_PATH + "\"\n");
-        List<Book> books = calibredb.getBooks();
-        int numItemsUpdated = 0;
-        int numAudiobooksUpdated = 0;
-        int numReadordersUpdated = 0;
-        for (Book book : books) {
-            boolean audiobookUpdated = false;
-            boolean readorderUpdated = false;
-            // TODO Validate that there is only one format (or more than one?), Validate that there is one
-            // TODO Check if a finished book has a score
-            if (options.isAudiobooks()) {
-                audiobookUpdated = processAudiobook(options.isDryRun(), book);
-            }
-            if (options.isReadorders()) {
-                readorderUpdated = processReadOrder(options.isDryRun(), book);
-            }
-            numAudiobooksUpdated += audiobookUpdated ? 1 : 0;
-            numReadordersUpdated += readorderUpdated ? 1 : 0;
-            numItemsUpdated += audiobookUpdated || readorderUpdated ? 1 : 0;
-        }
-        String updateMessage = options.isDryRun() ? "to update (dry-run)" : "updated";
-        System.out.printf("%d items %s (%d audiobook changes, %d readorder changes)%n", numItemsUpdated, updateMessage, numAudiobooksUpdated, numReadordersUpdated);
+    /**
+     * @return the number of books changed, or to change in a dry-run, since the updater was created
+     */
+    public long getChangedCount() {
+        return changedCount;
     }
 
-    boolean processAudiobook(boolean dryRun, Book book) throws DataAccessException {
-        boolean itemUpdated = false;
-        if (book.isAudioBookFromTags()) {
-            if (!book.getTitle().contains("(audiobook)")) {
-                String title = book.getTitle();
-                if (title.contains(":")) {
-                    title = title.replaceFirst(":", " (audiobook):");
-                } else {
-                    title = title + " (audiobook)";
+    private PrintStream out() {
+        // Resolved on every use, so the report follows System.setOut
+        return out != null ? out : System.out;
+    }
+
+    private PrintStream err() {
+        return out != null ? out : System.err;
+    }
+
+    /**
+     * Updates the library, and then updates the books modified since the previous pass every time the library
+     * changes, until the thread is interrupted. The version of the library is taken before each pass, so a change
+     * made in Calibre during a pass starts another one; the changes made by the updater itself start at most one more
+     * pass, which finds nothing left to change. A failed pass is reported and its books are processed again on the
+     * next change.
+     */
+    void watch(AppOptions options) throws DataAccessException, IOException, InterruptedException {
+        Path metadataDb = Path.of(libraryPath, "metadata.db");
+        if (LibraryVersion.of(metadataDb) == null) {
+            throw new IOException("--watch needs a local library, " + metadataDb + " not found");
+        }
+        // Watching before the first pass, so no change is missed
+        try (LibraryWatcher watcher = new LibraryWatcher(metadataDb, configuration.getWatchDebounce())) {
+            LibraryVersion processed = LibraryVersion.of(metadataDb);
+            Instant passStart = Instant.now();
+            updateCalibre(options);
+            out().println("\nWatching \"" + metadataDb + "\" for changes");
+            while (!Thread.currentThread().isInterrupted()) {
+                watcher.awaitChange();
+                LibraryVersion current = LibraryVersion.of(metadataDb);
+                if (current == null || current.equals(processed)) {
+                    continue;
                 }
-                System.out.printf("%-30s for \"%s\" to \"%s\"%n", "[add audiobook to title]", book.getTitle(), title);
-                if (!dryRun) {
-                    calibredb.updateBookTitle(book.getId(), title);
+                processed = current;
+                Instant previousPassStart = passStart;
+                passStart = Instant.now();
+                out().println("\nProcessing books modified since " + previousPassStart);
+                try {
+                    updateBooks(options, BookQuery.modifiedSince(previousPassStart));
+                } catch (DataAccessException e) {
+                    // The books of the failed pass are processed again on the next change
+                    logger.debug("Error updating Calibre", e);
+                    err().println(e.getMessage());
+                    passStart = previousPassStart;
+                } catch (RuntimeException e) {
+                    // A bug or an unexpected book must not end the daemon
+                    logger.debug("Error updating Calibre", e);
+                    err().println("Error updating Calibre: " + e);
+                    passStart = previousPassStart;
                 }
-                itemUpdated = true;
             }
         }
-        // Custom field audiobook takes precedence over tags
-        else if (book.getTitle().contains("(audiobook)")) {
-            if (!book.isAudioBookFromTags()) {
-                String title = book.getTitle().replaceAll("\\(audiobook\\)", "").trim();
-                if (title.contains(":")) {
-                    String[] titleParts = title.split(":");
-                    title = titleParts[0].trim() + ": " + titleParts[1].trim();
+    }
+
+    /**
+     * Checks the files of every book against their names and its tags, reading only the header of each file.
+     */
+    void validate(AppOptions options) throws DataAccessException, IOException, InterruptedException {
+        Path library = Path.of(libraryPath);
+        if (!Files.isDirectory(library)) {
+            throw new IOException("--validate needs a local library, " + library + " is not a folder");
+        }
+        out().println("Validating the files of Calibre library \"" + libraryPath + "\"\n");
+        long scanStart = System.nanoTime();
+        Map<Integer, List<BookFile>> files = new LibraryScanner(configuration.getScanThreads()).scan(library);
+        metrics.timer("phase.scan").recordSince(scanStart);
+        int books = 0;
+        int invalid = 0;
+        try (Stream<Book> listed = calibredb.streamBooks(BookQuery.all())) {
+            Iterator<Book> iterator = listed.iterator();
+            while (iterator.hasNext()) {
+                Book book = iterator.next();
+                books++;
+                List<String> problems = FormatValidator.validate(book, files.getOrDefault(book.getId(), List.of()));
+                for (String problem : problems) {
+                    out().printf("%-30s for \"%s\": %s%n", "[invalid files]", book.getTitle(), problem);
                 }
-                System.out.printf("%-30s for \"%s\" to \"%s\"%n", "[remove audiobook from title]", book.getTitle(), title);
-                if (!dryRun) {
-                    calibredb.updateBookTitle(book.getId(), title);
+                invalid += problems.isEmpty() ? 0 : 1;
+            }
+        } catch (UncheckedDataAccessException e) {
+            throw e.getCause();
+        }
+        out().printf("%d books checked, %d with problems%n", books, invalid);
+    }
+
+    /**
+     * Hashes the book files changed since the last time, or all of them with --verify-hashes, and reports the
+     * duplicate files and the files whose content changed. The hashes are kept in the cache folder.
+     */
+    void updateHashIndex(AppOptions options) throws IOException, InterruptedException {
+        Path library = Path.of(libraryPath);
+        if (!Files.isDirectory(library)) {
+            throw new IOException("--hashes needs a local library, " + library + " is not a folder");
+        }
+        out().println("Hashing the files of Calibre library \"" + libraryPath + "\"\n");
+        Path indexFile = configuration.getCacheDir().resolve(LibraryFiles.name(libraryPath) + ".hashes");
+        HashIndex previous;
+        try {
+            previous = HashIndex.read(indexFile);
+        } catch (IOException e) {
+            logger.debug("Error reading {}", indexFile, e);
+            err().println("Ignoring the unreadable hash index " + indexFile + ", every file is hashed again");
+            previous = new HashIndex(List.of());
+        }
+        long start = System.nanoTime();
+        HashIndex.Update update = previous.update(library, configuration.getScanThreads(), options.isVerifyHashes());
+        metrics.timer("phase.hash").recordSince(start);
+        update.index().write(indexFile);
+        for (HashIndex.Change change : update.changes()) {
+            String action = change.isUnexpected() ? "[corrupted file]" : "[changed file]";
+            out().printf("%-30s %s%n", action, change.current().path());
+        }
+        List<List<HashIndex.Entry>> duplicates = update.index().duplicates();
+        for (List<HashIndex.Entry> group : duplicates) {
+            StringJoiner paths = new StringJoiner(", ");
+            group.forEach(entry -> paths.add(entry.path()));
+            out().printf("%-30s %s%n", "[duplicate files]", paths);
+        }
+        out().printf("%d files, %d hashed, %d changed, %d groups of duplicates%n",
+                update.index().size(), update.hashed(), update.changes().size(), duplicates.size());
+    }
+
+    /**
+     * Pairs the audiobook and ebook editions of the same title and copies the readorder of an edition to the others
+     * when they have none. Editions with different readorders are only reported.
+     */
+    void pairEditions(AppOptions options) throws DataAccessException {
+        out().println("Pairing the editions in Calibre library \"" + libraryPath + "\"\n");
+        long runStartNanos = System.nanoTime();
+        EditionIndex index = new EditionIndex();
+        try (Stream<Book> books = calibredb.streamBooks(BookQuery.all())) {
+            books.forEach(index::add);
+        } catch (UncheckedDataAccessException e) {
+            throw e.getCause();
+        }
+        List<List<Book>> allEditions = index.getEditions();
+        int items = 0;
+        for (List<Book> editions : allEditions) {
+            StringJoiner titles = new StringJoiner("\", \"", "\"", "\"");
+            editions.forEach(book -> titles.add(book.getTitle()));
+            Set<String> readOrders = EditionIndex.readOrders(editions);
+            if (readOrders.size() > 1) {
+                out().printf("%-30s %s have %s%n", "[readorder conflict]", titles, readOrders);
+                continue;
+            }
+            out().printf("%-30s %s%n", "[editions]", titles);
+            if (readOrders.isEmpty()) {
+                continue;
+            }
+            String readOrder = readOrders.iterator().next();
+            for (Book book : editions) {
+                if (!readOrder.equals(book.getReadOrderFromCustomField())) {
+                    out().printf("%-30s for \"%s\" to \"%s\"%n", "[copy readorder]", book.getTitle(), readOrder);
+                    write(options, withReadOrder(book, readOrder));
+                    items++;
                 }
-                itemUpdated = true;
             }
         }
-        return itemUpdated;
+        flushWrites(options, runStartNanos, items);
+        String updateMessage = options.isDryRun() ? "to update (dry-run)" : "updated";
+        out().printf("%d editions paired, %d items %s%n", allEditions.size(), items, updateMessage);
     }
 
-    boolean processReadOrder(boolean dryRun, Book book) throws DataAccessException {
-        String readOrderFromCustomField = book.getReadOrderFromCustomField();
-        String[] originalTags = book.getTags().split(",");
-        List<String> tagsList = new ArrayList<>(Arrays.asList(originalTags));
-        List<String> readOrderTags = Arrays.stream(originalTags)
-                .filter(tag -> tag.trim().startsWith("readorder:"))
-                .map(tag -> tag.trim().replace("readorder:", ""))
-                .toList();
-        String readOrderFromTags;
-        if (!readOrderTags.isEmpty()) {
-            readOrderFromTags = readOrderTags.get(0);
+    /**
+     * Reports the readorders shared by several books, the numbers missing from the sequence and the values that are
+     * not numbers. With --renumber, also numbers the readorders 1, 2, 3... in their order, writing only the books
+     * whose readorder changes.
+     */
+    void checkReadOrders(AppOptions options) throws DataAccessException {
+        out().println("Checking the readorders in Calibre library \"" + libraryPath + "\"\n");
+        long runStartNanos = System.nanoTime();
+        ReadOrderIndex index = new ReadOrderIndex();
+        try (Stream<Book> books = calibredb.streamBooks(BookQuery.all().matching(BookFilter.hasReadOrder()))) {
+            books.forEach(index::add);
+        } catch (UncheckedDataAccessException e) {
+            throw e.getCause();
+        }
+        for (Book book : index.getInvalid()) {
+            out().printf("%-30s for \"%s\": \"%s\"%n", "[invalid readorder]", book.getTitle(), book.getReadOrderFromCustomField());
+        }
+        Map<BigDecimal, List<Book>> duplicates = index.duplicates();
+        duplicates.forEach((readOrder, books) -> {
+            StringJoiner titles = new StringJoiner("\", \"", "\"", "\"");
+            books.forEach(book -> titles.add(book.getTitle()));
+            out().printf("%-30s %s for %s%n", "[duplicate readorder]", readOrder.toPlainString(), titles);
+        });
+        List<ReadOrderIndex.Gap> gaps = index.gaps();
+        for (ReadOrderIndex.Gap gap : gaps) {
+            String missing = gap.from() == gap.to() ? String.valueOf(gap.from()) : gap.from() + " to " + gap.to();
+            out().printf("%-30s %s%n", "[missing readorder]", missing);
+        }
+        int items = 0;
+        if (options.isRenumber()) {
+            for (ReadOrderIndex.Renumbering change : index.renumber()) {
+                Book book = change.book();
+                out().printf("%-30s for \"%s\" from \"%s\" to \"%s\"%n", "[renumber readorder]", book.getTitle(),
+                        book.getReadOrderFromCustomField(), change.readOrder());
+                write(options, withReadOrder(book, change.readOrder()));
+                items++;
+            }
+            flushWrites(options, runStartNanos, items);
+        }
+        out().printf("%d books with a readorder, %d duplicated, %d gaps, %d invalid%n",
+                index.size(), duplicates.size(), gaps.size(), index.getInvalid().size());
+        if (options.isRenumber()) {
+            String updateMessage = options.isDryRun() ? "to update (dry-run)" : "updated";
+            out().printf("%d items %s%n", items, updateMessage);
+        }
+    }
+
+    /**
+     * @return the update that sets the readorder custom field and the matching tag, as the readorder rule keeps them
+     */
+    private static BookUpdate withReadOrder(Book book, String readOrder) {
+        List<String> tags = new ArrayList<>();
+        for (String tag : book.getTagList()) {
+            if (!tag.startsWith(Book.READORDER_TAG_PREFIX)) {
+                tags.add(tag);
+            }
+        }
+        tags.add(Book.READORDER_TAG_PREFIX + readOrder);
+        return new BookUpdate(book.getId()).setReadOrder(readOrder).setTags(tags);
+    }
+
+    protected void updateCalibre(AppOptions options) throws DataAccessException {
+        out().println("Updating Calibre library \"" + libraryPath + "\"\n");
+        BookQuery query = BookQuery.all();
+        if (options.isIncremental() && checkpoint != null) {
+            query = BookQuery.modifiedSince(checkpoint.getLastRun(libraryPath));
+            if (!query.isAll()) {
+                out().println("Processing books modified since " + query.getModifiedSince() + "\n");
+            }
+        }
+        updateBooks(options, query);
+    }
+
+    /**
+     * Runs the enabled rules on the books matching the query and writes their changes.
+     */
+    void updateBooks(AppOptions options, BookQuery query) throws DataAccessException {
+        RuleEngine engine = new RuleEngine(enabledRules(options));
+        UpdateCounters counters = new UpdateCounters(rules);
+        Instant runStart = Instant.now();
+        long runStartNanos = System.nanoTime();
+        // Books are processed while they are being read from the library
+        // Only the books the enabled rules may change are listed
+        try (PlanWriter plan = openPlan(options); Stream<Book> books = calibredb.streamBooks(query.matching(engine.getCandidates()))) {
+            if (options.getParallelism() > 1) {
+                updateInParallel(options, engine, books.iterator(), counters, plan);
+            } else {
+                Timer listTimer = metrics.timer("phase.list");
+                Iterator<Book> iterator = books.iterator();
+                long listStart = System.nanoTime();
+                while (iterator.hasNext()) {
+                    Book book = iterator.next();
+                    listTimer.recordSince(listStart);
+                    // TODO Check if a finished book has a score
+                    commit(options, evaluate(engine, book, counters), plan);
+                    listStart = System.nanoTime();
+                }
+                listTimer.recordSince(listStart);
+            }
+        } catch (UncheckedDataAccessException e) {
+            throw e.getCause();
+        } catch (IOException e) {
+            throw new DataAccessException("Error writing plan " + options.getPlanFile() + ": " + e.getMessage(), e);
+        }
+        if (options.getPlanFile() != null) {
+            out().println("Plan written to " + options.getPlanFile());
+        }
+        if (!options.isDryRun()) {
+            long flushStart = System.nanoTime();
+            calibredb.flush();
+            writeTimer.recordSince(flushStart);
+            if (checkpoint != null) {
+                saveCheckpoint(runStart);
+            }
+        }
+        metrics.timer("run").recordSince(runStartNanos);
+        metrics.add("books.changed", counters.items.sum());
+        changedCount += counters.items.sum();
+        String updateMessage = options.isDryRun() ? "to update (dry-run)" : "updated";
+        out().printf("%d items %s (%s)%n", counters.items.sum(), updateMessage, counters.summary());
+    }
+
+    /**
+     * @return the writer of the plan file given in the options, or null if there is none
+     */
+    private static PlanWriter openPlan(AppOptions options) throws DataAccessException {
+        if (options.getPlanFile() == null) {
+            return null;
+        }
+        try {
+            return PlanWriter.open(options.getPlanFile());
+        } catch (IOException e) {
+            throw new DataAccessException("Error writing plan " + options.getPlanFile() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Writes the changes of a plan saved by a previous run to the library in batches, without listing the library
+     * or evaluating the rules again.
+     */
+    void applyPlan(AppOptions options) throws DataAccessException {
+        Path file = options.getApplyPlanFile();
+        out().println("Applying plan \"" + file + "\" to Calibre library \"" + libraryPath + "\"\n");
+        long runStartNanos = System.nanoTime();
+        int[] items = {0};
+        readPlan(file, update -> {
+            write(options, update);
+            items[0]++;
+        });
+        flushWrites(options, runStartNanos, items[0]);
+        String updateMessage = options.isDryRun() ? "to update (dry-run)" : "updated";
+        out().printf("%d items %s from plan%n", items[0], updateMessage);
+    }
+
+    /**
+     * Restores the values the books had before the run recorded in an undo journal, either the newest run not undone
+     * yet ({@value UndoJournal#LAST}) or a journal file.
+     */
+    void undo(AppOptions options) throws DataAccessException {
+        Path journal;
+        if (UndoJournal.LAST.equals(options.getUndo())) {
+            Path directory = UndoJournal.directoryFor(configuration.getUndoDir(), libraryPath);
+            try {
+                journal = UndoJournal.last(directory);
+            } catch (IOException e) {
+                throw new DataAccessException("Error reading undo journals in " + directory + ": " + e.getMessage(), e);
+            }
+            if (journal == null) {
+                throw new DataAccessException("No run to undo in " + directory);
+            }
         } else {
-            readOrderFromTags = NO_READORDER;
-        }
-        boolean itemUpdated = false;
-        // Case 1: More than one readorder tag, we keep the first one
-        if (readOrderTags.size() > 1) {
-            System.out.printf("%-30s for \"%s\"%n", "[remove extra readorder tags]", book.getTitle());
-            tagsList = tagsList.stream()
-                    .filter(tag -> !tag.trim().startsWith("readorder:"))
-                    .collect(Collectors.toList());
-            tagsList.add("readorder:" + readOrderFromTags);
-            itemUpdated = true;
-        }
-        // Case 2: No readorder tag but custom field exists, we add the tag
-        if (NO_READORDER.equals(readOrderFromTags) && !NO_READORDER.equals(readOrderFromCustomField)) {
-            System.out.printf("%-30s for \"%s\"%n", "[add readorder tag]", book.getTitle());
-            tagsList.add("readorder:" + readOrderFromCustomField);
-            itemUpdated = true;
-        }
-        // Case 3: Mismatch between tag and custom field, custom field wins
-        else if (!NO_READORDER.equals(readOrderFromTags) && !NO_READORDER.equals(readOrderFromCustomField) &&
-                 !readOrderFromTags.equals(readOrderFromCustomField)) {
-            System.out.printf("%-30s for \"%s\" from \"%s\" to \"%s\"%n", "[update readorder]", book.getTitle(), readOrderFromTags, readOrderFromCustomField);
-            // Update the tag to match the custom field value
-            tagsList = tagsList.stream()
-                    .filter(tag -> !tag.trim().startsWith("readorder:"))
-                    .collect(Collectors.toList());
-            tagsList.add("readorder:" + readOrderFromCustomField);
-            itemUpdated = true;
-        }
-        // Case 4: Delete custom field if value is 0.0
-        if (readOrderFromCustomField.equals("0.0")) {
-            if (!dryRun) {
-                calibredb.deleteReadOrderCustomField(book.getId());
-            }
-            System.out.printf("%-30s for \"%s\"%n", "[delete custom field readorder]", book.getTitle());
-            // Skip further processing of this book
-            readOrderFromCustomField = NO_READORDER;
-        }
-        // Case 5: Delete readorder tag if custom field is empty
-        // Skip the update if there are no changes to the tags
-        if (NO_READORDER.equals(readOrderFromCustomField) && !NO_READORDER.equals(readOrderFromTags)) {
-            tagsList = tagsList.stream()
-                    .filter(tag -> !tag.trim().startsWith("readorder:"))
-                    .collect(Collectors.toList());
-            System.out.printf("%-30s for \"%s\" from \"%s\" to \"%s\"%n", "[delete readorder tag]", book.getTitle(), readOrderFromTags, readOrderFromCustomField);
-            itemUpdated = true;
-        }
-
-        if (!dryRun && !Arrays.stream(originalTags).sorted().toList().equals(tagsList.stream().sorted().toList())) {
-            calibredb.replaceBookTags(book.getId(), tagsList);
+            journal = Path.of(options.getUndo());
+        }
+        out().println("Undoing the run recorded in \"" + journal + "\" in Calibre library \"" + libraryPath + "\"\n");
+        long runStartNanos = System.nanoTime();
+        List<BookUpdate> restores = new ArrayList<>();
+        readPlan(journal, restores::add);
+        // A book written by several batches ends up with its value before the first one
+        Collections.reverse(restores);
+        for (BookUpdate restore : restores) {
+            write(options, restore);
+        }
+        flushWrites(options, runStartNanos, restores.size());
+        if (!options.isDryRun()) {
+            try {
+                UndoJournal.markUndone(journal);
+            } catch (IOException e) {
+                logger.debug("Error marking {} as undone", journal, e);
+                err().println("Error marking " + journal + " as undone, remove it before undoing the previous run");
+            }
+        }
+        String updateMessage = options.isDryRun() ? "to restore (dry-run)" : "restored";
+        out().printf("%d items %s%n", restores.size(), updateMessage);
+    }
+
+    private static void readPlan(Path file, UpdateConsumer consumer) throws DataAccessException {
+        try (PlanReader plan = PlanReader.open(file)) {
+            BookUpdate update;
+            while ((update = plan.next()) != null) {
+                consumer.accept(update);
+            }
+        } catch (NoSuchFileException e) {
+            throw new DataAccessException("Plan not found: " + file, e);
+        } catch (IOException | JsonParseException | IllegalStateException | NumberFormatException e) {
+            throw new DataAccessException("Error reading plan " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void write(AppOptions options, BookUpdate update) throws DataAccessException {
+        if (!options.isDryRun() && !update.isEmpty()) {
+            long start = System.nanoTime();
+            calibredb.applyUpdates(List.of(update));
+            writeTimer.recordSince(start);
         }
+    }
+
+    private void flushWrites(AppOptions options, long runStartNanos, int items) throws DataAccessException {
+        if (!options.isDryRun()) {
+            long flushStart = System.nanoTime();
+            calibredb.flush();
+            writeTimer.recordSince(flushStart);
+        }
+        metrics.timer("run").recordSince(runStartNanos);
+        metrics.add("books.changed", items);
+        changedCount += items;
+    }
+
+    /**
+     * The names given with --rules were checked against the rules when the options were parsed.
+     */
+    private List<Rule> enabledRules(AppOptions options) {
+        return rules.stream().filter(rule -> options.isRuleEnabled(rule.getName())).toList();
+    }
 
+    private void saveCheckpoint(Instant runStart) {
+        // Books changed while this run was reading the library are processed again next time
+        try {
+            checkpoint.setLastRun(libraryPath, runStart);
+        } catch (IOException e) {
+            logger.debug("Error saving checkpoint", e);
+            err().println("Error saving checkpoint: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Evaluates the rules on a pool of threads. The output and the writes of each book are kept until all the
+     * previous books are done, so they happen in the same order as in a sequential run and only from this thread.
+     */
+    private void updateInParallel(AppOptions options, RuleEngine engine, Iterator<Book> books, UpdateCounters counters, PlanWriter plan)
+            throws DataAccessException, IOException {
+        int parallelism = options.getParallelism();
+        // Bounds the books held in memory while waiting for a slow one
+        int maxPending = parallelism * 64;
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            Timer listTimer = metrics.timer("phase.list");
+            Deque<Future<BookChanges>> pending = new ArrayDeque<>();
+            long listStart = System.nanoTime();
+            while (books.hasNext()) {
+                Book book = books.next();
+                listTimer.recordSince(listStart);
+                pending.add(executor.submit(() -> evaluate(engine, book, counters)));
+                if (pending.size() >= maxPending) {
+                    commit(options, pending.remove(), plan);
+                }
+                listStart = System.nanoTime();
+            }
+            listTimer.recordSince(listStart);
+            while (!pending.isEmpty()) {
+                commit(options, pending.remove(), plan);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void commit(AppOptions options, Future<BookChanges> future, PlanWriter plan) throws DataAccessException, IOException {
+        BookChanges changes;
+        try {
+            changes = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataAccessException("Interrupted while updating Calibre", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error evaluating book", e.getCause());
+        }
+        commit(options, changes, plan);
+    }
+
+    private BookChanges evaluate(RuleEngine engine, Book book, UpdateCounters counters) {
+        long start = System.nanoTime();
+        BookChanges changes = engine.evaluate(book);
+        evaluateTimer.recordSince(start);
+        counters.add(changes);
+        return changes;
+    }
+
+    /**
+     * Prints the report of a book, adds its changes to the plan, if any, and writes all its changes at once.
+     */
+    private void commit(AppOptions options, BookChanges changes, PlanWriter plan) throws DataAccessException, IOException {
+        out().print(changes.getReport());
+        if (plan != null) {
+            plan.write(changes.getBook(), changes.getUpdate());
+        }
+        if (!options.isDryRun() && !changes.getUpdate().isEmpty()) {
+            long start = System.nanoTime();
+            calibredb.applyUpdates(List.of(changes.getUpdate()));
+            writeTimer.recordSince(start);
+        }
+    }
+
+    boolean processAudiobook(boolean dryRun, Book book) throws DataAccessException {
+        return processRule(dryRun, book, AUDIOBOOK_RULE);
+    }
+
+    boolean processReadOrder(boolean dryRun, Book book) throws DataAccessException {
+        return processRule(dryRun, book, READORDER_RULE);
+    }
+
+    private boolean processRule(boolean dryRun, Book book, Rule rule) throws DataAccessException {
+        BookChanges changes = new BookChanges(book);
+        boolean itemUpdated = rule.evaluate(book, changes);
+        out().print(changes.getReport());
+        if (!dryRun && !changes.getUpdate().isEmpty()) {
+            calibredb.applyUpdates(List.of(changes.getUpdate()));
+        }
         return itemUpdated;
     }
-}
\ No newline at end of file
+
+    /**
+     * Counters shared by the threads evaluating books.
+     */
+    private static class UpdateCounters {
+        private final LongAdder items = new LongAdder();
+        // Changes made by each rule, in the order of the rules
+        private final Map<String, LongAdder> ruleChanges = new LinkedHashMap<>();
+
+        UpdateCounters(List<Rule> rules) {
+            for (Rule rule : rules) {
+                ruleChanges.put(rule.getName(), new LongAdder());
+            }
+        }
+
+        void add(BookChanges changes) {
+            for (String rule : changes.getChangedBy()) {
+                ruleChanges.get(rule).increment();
+            }
+            if (!changes.getChangedBy().isEmpty()) {
+                items.increment();
+            }
+        }
+
+        String summary() {
+            StringJoiner summary = new StringJoiner(", ");
+            ruleChanges.forEach((rule, count) -> summary.add(count.sum() + " " + rule + " changes"));
+            return summary.toString();
+        }
+    }
+
+    /**
+     * The outcome of the update of one library.
+     */
+    private record LibraryRun(boolean succeeded, long changed) {
+    }
+
+    @FunctionalInterface
+    private interface UpdateConsumer {
+        void accept(BookUpdate update) throws DataAccessException;
+    }
+}
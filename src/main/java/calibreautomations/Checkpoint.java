@@ -0,0 +1,71 @@
+package calibreautomations;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Properties;
+
+/**
+ * Remembers when each library was last updated, so an incremental run only processes the books changed since then.
+ */
+public class Checkpoint {
+
+    private static final Logger logger = LoggerFactory.getLogger(Checkpoint.class);
+
+    private final Path file;
+
+    public Checkpoint(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the start of the last successful run for the library, or null if there is none
+     */
+    public Instant getLastRun(String libraryPath) {
+        String value = load().getProperty(libraryPath);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Instant.parse(value);
+        } catch (DateTimeParseException e) {
+            logger.warn("Ignoring invalid checkpoint {} for {}", value, libraryPath);
+            return null;
+        }
+    }
+
+    /**
+     * Synchronized because the libraries updated at the same time share the file.
+     */
+    public synchronized void setLastRun(String libraryPath, Instant lastRun) throws IOException {
+        Properties properties = load();
+        properties.setProperty(libraryPath, lastRun.toString());
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        // Written to a temporary file first so a crash never leaves a truncated checkpoint
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream output = Files.newOutputStream(temporary)) {
+            properties.store(output, "Last successful run of CalibreUpdater per library");
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Properties load() {
+        Properties properties = new Properties();
+        if (Files.exists(file)) {
+            try (InputStream input = Files.newInputStream(file)) {
+                properties.load(input);
+            } catch (IOException e) {
+                logger.warn("Error reading checkpoint file {}", file, e);
+            }
+        }
+        return properties;
+    }
+}
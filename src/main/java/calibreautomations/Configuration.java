@@ -0,0 +1,172 @@
+package calibreautomations;
+
+import calibreautomations.persistence.CalibreDBCli;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The settings of {@code config.properties}, with the defaults of the settings it leaves out.
+ */
+public class Configuration {
+
+    private static final Logger logger = LoggerFactory.getLogger(Configuration.class);
+    private static final Path HOME = Path.of(System.getProperty("user.home"), ".calibre-automations");
+
+    private List<String> libraryPaths = List.of();
+    private String backend = "cli";
+    private int writeBatchSize = 100;
+    private int listShards = 1;
+    private String workerCommand = "calibre-debug -e {script} {library}";
+    private Duration calibredbTimeout = CalibreDBCli.DEFAULT_COMMAND_TIMEOUT;
+    private Path checkpointFile = HOME.resolve("checkpoints.properties");
+    private boolean cacheEnabled = true;
+    private Path cacheDir = HOME.resolve("cache");
+    private Path undoDir = HOME.resolve("undo");
+    private int undoKeep = 20;
+    private Duration watchDebounce = Duration.ofMillis(500);
+    private int libraryParallelism = 2;
+    private int scanThreads = 8;
+
+    /**
+     * All the defaults, without any library.
+     */
+    public Configuration() {
+    }
+
+    public Configuration(Properties properties) {
+        List<String> paths = new ArrayList<>();
+        // A single path, which may contain commas
+        String libraryPath = properties.getProperty("calibre.library.path");
+        if (libraryPath != null && !libraryPath.isBlank()) {
+            paths.add(libraryPath.trim());
+        }
+        if (properties.getProperty("calibre.library.paths") != null) {
+            Arrays.stream(properties.getProperty("calibre.library.paths").split(","))
+                    .map(String::trim)
+                    .filter(path -> !path.isEmpty())
+                    .forEach(paths::add);
+        }
+        libraryPaths = List.copyOf(paths);
+        backend = properties.getProperty("calibre.backend", backend);
+        workerCommand = properties.getProperty("calibre.worker.command", workerCommand);
+        if (properties.getProperty("calibredb.timeout.seconds") != null) {
+            calibredbTimeout = Duration.ofSeconds(Long.parseLong(properties.getProperty("calibredb.timeout.seconds")));
+        }
+        writeBatchSize = Integer.parseInt(properties.getProperty("write.batch.size", String.valueOf(writeBatchSize)));
+        listShards = Integer.parseInt(properties.getProperty("list.shards", String.valueOf(listShards)));
+        if (properties.getProperty("checkpoint.file") != null) {
+            checkpointFile = Path.of(properties.getProperty("checkpoint.file"));
+        }
+        watchDebounce = Duration.ofMillis(Long.parseLong(properties.getProperty("watch.debounce.millis", String.valueOf(watchDebounce.toMillis()))));
+        if (properties.getProperty("undo.dir") != null) {
+            undoDir = Path.of(properties.getProperty("undo.dir"));
+        }
+        undoKeep = Integer.parseInt(properties.getProperty("undo.keep", String.valueOf(undoKeep)));
+        cacheEnabled = Boolean.parseBoolean(properties.getProperty("cache.enabled", String.valueOf(cacheEnabled)));
+        if (properties.getProperty("cache.dir") != null) {
+            cacheDir = Path.of(properties.getProperty("cache.dir"));
+        }
+        scanThreads = Integer.parseInt(properties.getProperty("scan.threads", String.valueOf(scanThreads)));
+        libraryParallelism = Integer.parseInt(properties.getProperty("libraries.parallelism", String.valueOf(libraryParallelism)));
+    }
+
+    /**
+     * Reads {@code config.properties} from the classpath, or uses the defaults if it cannot be read.
+     */
+    public static Configuration load() {
+        Properties properties = new Properties();
+        try (InputStream input = Configuration.class.getClassLoader().getResourceAsStream("config.properties")) {
+            if (input == null) {
+                System.err.println("Sorry, unable to find config.properties");
+                return new Configuration();
+            }
+            properties.load(input);
+            return new Configuration(properties);
+        } catch (IOException | IllegalArgumentException ex) {
+            logger.debug("Error loading configuration", ex);
+            System.err.println("Error loading configuration");
+            return new Configuration();
+        }
+    }
+
+    /**
+     * @return the library of {@code calibre.library.path} followed by those of {@code calibre.library.paths}, a comma
+     * separated list
+     */
+    public List<String> getLibraryPaths() {
+        return libraryPaths;
+    }
+
+    public String getBackend() {
+        return backend;
+    }
+
+    public int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    /**
+     * @return the number of id ranges the library is listed in at the same time, 1 to list it at once
+     */
+    public int getListShards() {
+        return listShards;
+    }
+
+    /**
+     * @return the command that starts the worker backend, with {@code {script}} and {@code {library}} placeholders
+     */
+    public String getWorkerCommand() {
+        return workerCommand;
+    }
+
+    public Duration getCalibredbTimeout() {
+        return calibredbTimeout;
+    }
+
+    public Path getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public boolean isCacheEnabled() {
+        return cacheEnabled;
+    }
+
+    public Path getCacheDir() {
+        return cacheDir;
+    }
+
+    public Path getUndoDir() {
+        return undoDir;
+    }
+
+    public int getUndoKeep() {
+        return undoKeep;
+    }
+
+    public Duration getWatchDebounce() {
+        return watchDebounce;
+    }
+
+    /**
+     * @return the threads walking the library folder with --validate
+     */
+    public int getScanThreads() {
+        return scanThreads;
+    }
+
+    /**
+     * @return how many libraries are updated at the same time
+     */
+    public int getLibraryParallelism() {
+        return libraryParallelism;
+    }
+}
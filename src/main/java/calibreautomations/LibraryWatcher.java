@@ -0,0 +1,70 @@
+package calibreautomations;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for changes to {@code metadata.db}, its journal or its write-ahead log. A burst of changes, e.g. Calibre
+ * saving several books, is reported once, when the files have been quiet for the debounce time.
+ */
+public class LibraryWatcher implements AutoCloseable {
+
+    // A library that never stops changing is still processed from time to time
+    private static final int MAX_DEBOUNCE_PERIODS = 20;
+
+    private final Path metadataDb;
+    private final Duration debounce;
+    private final WatchService watchService;
+
+    public LibraryWatcher(Path metadataDb, Duration debounce) throws IOException {
+        this.metadataDb = metadataDb;
+        this.debounce = debounce;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        metadataDb.toAbsolutePath().getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Blocks until the database changes and then stays quiet for the debounce time.
+     */
+    public void awaitChange() throws InterruptedException {
+        while (!takeChange(watchService.take())) {
+            // Other files of the library directory
+        }
+        for (int period = 1; period < MAX_DEBOUNCE_PERIODS; period++) {
+            WatchKey key = watchService.poll(debounce.toMillis(), TimeUnit.MILLISECONDS);
+            if (key == null) {
+                return;
+            }
+            takeChange(key);
+        }
+    }
+
+    /**
+     * @return true if any of the events is about the database files
+     */
+    private boolean takeChange(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // OVERFLOW means events were lost, which may include the database
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                || event.context() instanceof Path path && path.toString().startsWith(metadataDb.getFileName().toString())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
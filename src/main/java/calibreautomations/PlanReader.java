@@ -0,0 +1,92 @@
+package calibreautomations;
+
+import calibreautomations.persistence.BookUpdate;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the changes written by {@link PlanWriter} one book at a time. The old values are only there to review the
+ * plan, they are not checked against the library.
+ */
+public class PlanReader implements Closeable {
+
+    private final JsonReader reader;
+    private int count;
+
+    public PlanReader(Reader in) {
+        this.reader = new JsonReader(in);
+        // Lenient mode accepts one JSON object after another, i.e. JSON Lines
+        reader.setLenient(true);
+    }
+
+    public static PlanReader open(Path file) throws IOException {
+        return new PlanReader(Files.newBufferedReader(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the changes of the next book, or null at the end of the plan
+     */
+    public BookUpdate next() throws IOException {
+        JsonToken token;
+        try {
+            token = reader.peek();
+        } catch (EOFException e) {
+            // JsonReader only reports the end of the document after a value, an empty plan has no changes
+            if (count == 0) {
+                return null;
+            }
+            throw e;
+        }
+        if (token == JsonToken.END_DOCUMENT) {
+            return null;
+        }
+        Integer id = null;
+        String title = null;
+        List<String> tags = null;
+        boolean deleteReadOrder = false;
+        String readOrder = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id" -> id = reader.nextInt();
+                case "newTitle" -> title = reader.nextString();
+                case "newTags" -> tags = readTags();
+                case "readorder" -> deleteReadOrder = PlanWriter.DELETE.equals(reader.nextString());
+                case "newReadorder" -> readOrder = reader.nextString();
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        count++;
+        if (id == null) {
+            throw new IOException("Entry " + count + " of the plan has no book id");
+        }
+        BookUpdate update = new BookUpdate(id).setTitle(title).setDeleteReadOrder(deleteReadOrder).setReadOrder(readOrder);
+        return tags != null ? update.setTags(tags) : update;
+    }
+
+    private List<String> readTags() throws IOException {
+        List<String> tags = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            tags.add(reader.nextString());
+        }
+        reader.endArray();
+        return tags;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,115 @@
+package calibreautomations;
+
+import calibreautomations.persistence.BookUpdate;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Writes the changes of a run as JSON Lines, one object per changed book, so they can be reviewed and applied later
+ * with {@link PlanReader}. Only the fields that change are written, with their old and new values:
+ * <pre>
+ * {"id":12,"oldTitle":"Title","newTitle":"Title (audiobook)","oldTags":["a"],"newTags":["a","readorder:2.0"],"readorder":"delete","oldReadorder":"2.0"}
+ * </pre>
+ * A readorder custom field that is set instead of deleted is written as {@code "newReadorder":"2.0"}.
+ */
+public class PlanWriter implements Closeable {
+
+    static final String DELETE = "delete";
+
+    private final Writer out;
+    private int count;
+
+    public PlanWriter(Writer out) {
+        this.out = out;
+    }
+
+    public static PlanWriter open(Path file) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        return new PlanWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes the new values of a book, without the old ones, unless there are none.
+     */
+    public void write(BookUpdate update) throws IOException {
+        write(null, update);
+    }
+
+    /**
+     * Writes the changes of a book, unless there are none.
+     *
+     * @param book the book before the changes, or null to leave out the old values
+     */
+    public void write(Book book, BookUpdate update) throws IOException {
+        if (update.isEmpty()) {
+            return;
+        }
+        JsonWriter json = new JsonWriter(out);
+        json.setHtmlSafe(false);
+        json.beginObject();
+        json.name("id").value(update.getBookId());
+        if (update.getTitle() != null) {
+            if (book != null) {
+                json.name("oldTitle").value(book.getTitle());
+            }
+            json.name("newTitle").value(update.getTitle());
+        }
+        if (update.getTags() != null) {
+            if (book != null) {
+                writeTags(json.name("oldTags"), book.getTagList());
+            }
+            writeTags(json.name("newTags"), update.getTags());
+        }
+        if (update.isDeleteReadOrder()) {
+            json.name("readorder").value(DELETE);
+        }
+        if (update.getReadOrder() != null) {
+            json.name("newReadorder").value(update.getReadOrder());
+        }
+        if ((update.isDeleteReadOrder() || update.getReadOrder() != null) && book != null) {
+            json.name("oldReadorder").value(book.getReadOrderFromCustomField());
+        }
+        json.endObject();
+        // Not closing the JsonWriter, it would close the file
+        json.flush();
+        out.write('\n');
+        count++;
+    }
+
+    private static void writeTags(JsonWriter json, List<String> tags) throws IOException {
+        json.beginArray();
+        for (String tag : tags) {
+            json.value(tag);
+        }
+        json.endArray();
+    }
+
+    /**
+     * @return the number of books written so far
+     */
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Writes the buffered lines to the underlying writer.
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
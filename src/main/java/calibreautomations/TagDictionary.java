@@ -0,0 +1,84 @@
+package calibreautomations;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Library-wide table of the distinct tags, so each tag string is kept once and books only store small int ids.
+ * <p>
+ * Ids are assigned in order of first use and never change. Lookups are lock free, and tags can be added from
+ * several threads.
+ */
+public class TagDictionary {
+
+    private static final TagDictionary SHARED = new TagDictionary();
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[INITIAL_CAPACITY];
+    // Value of each readorder: tag, or null for the other tags
+    private volatile String[] readOrderValues = new String[INITIAL_CAPACITY];
+    private int size;
+
+    /**
+     * @return the dictionary used by books created without an explicit one
+     */
+    public static TagDictionary shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return the id of the tag, adding it if it is new
+     */
+    public int intern(String tag) {
+        Integer id = ids.get(tag);
+        if (id != null) {
+            return id;
+        }
+        return add(tag);
+    }
+
+    private synchronized int add(String tag) {
+        Integer existing = ids.get(tag);
+        if (existing != null) {
+            return existing;
+        }
+        int id = size;
+        if (id == names.length) {
+            readOrderValues = Arrays.copyOf(readOrderValues, id * 2);
+            names = Arrays.copyOf(names, id * 2);
+        }
+        names[id] = tag;
+        if (tag.startsWith(Book.READORDER_TAG_PREFIX)) {
+            readOrderValues[id] = tag.substring(Book.READORDER_TAG_PREFIX.length());
+        }
+        size++;
+        // Publishing the id after the arrays are written makes them visible to any thread that finds it
+        ids.put(tag, id);
+        return id;
+    }
+
+    /**
+     * @return the id of the tag, or -1 if no book has it
+     */
+    public int idOf(String tag) {
+        Integer id = ids.get(tag);
+        return id != null ? id : -1;
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * @return the value of a {@code readorder:} tag, or null if the tag is not a readorder tag
+     */
+    public String readOrderValue(int id) {
+        return readOrderValues[id];
+    }
+
+    public int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,125 @@
+package calibreautomations.metrics;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timers and counters collected during a run, printed as a summary at the end and optionally written to a file in
+ * JSON or in the Prometheus text format (for the node exporter textfile collector).
+ * <p>
+ * Names are dotted, e.g. {@code calibredb.applyUpdates}. Metrics can be recorded from several threads at once.
+ */
+public class RunMetrics {
+    static final String PROMETHEUS_PREFIX = "calibreautomations_";
+    private static final double[] QUANTILES = {0.5, 0.99};
+
+    private final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, key -> new Timer());
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    public void increment(String name) {
+        counter(name).increment();
+    }
+
+    public void add(String name, long value) {
+        counter(name).add(value);
+    }
+
+    public long getCounter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    /**
+     * @return a table with the calls and latencies of every timer, and the value of every counter
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format(Locale.ROOT, "%-32s %8s %11s %9s %9s %9s%n", "Timer", "calls", "total ms", "p50 ms", "p99 ms", "max ms"));
+        timers.forEach((name, timer) -> summary.append(String.format(Locale.ROOT, "%-32s %8d %11.1f %9.2f %9.2f %9.2f%n",
+                name, timer.getCount(), Timer.toMillis(timer.getTotalNanos()), Timer.toMillis(timer.getPercentileNanos(0.5)),
+                Timer.toMillis(timer.getPercentileNanos(0.99)), Timer.toMillis(timer.getMaxNanos()))));
+        if (!counters.isEmpty()) {
+            summary.append(String.format(Locale.ROOT, "%-32s %8s%n", "Counter", "value"));
+            counters.forEach((name, counter) -> summary.append(String.format(Locale.ROOT, "%-32s %8d%n", name, counter.sum())));
+        }
+        return summary.toString();
+    }
+
+    public String toJson() {
+        JsonObject json = new JsonObject();
+        JsonObject timersJson = new JsonObject();
+        timers.forEach((name, timer) -> {
+            JsonObject timerJson = new JsonObject();
+            timerJson.addProperty("count", timer.getCount());
+            timerJson.addProperty("total_seconds", Timer.toSeconds(timer.getTotalNanos()));
+            timerJson.addProperty("p50_seconds", Timer.toSeconds(timer.getPercentileNanos(0.5)));
+            timerJson.addProperty("p99_seconds", Timer.toSeconds(timer.getPercentileNanos(0.99)));
+            timerJson.addProperty("max_seconds", Timer.toSeconds(timer.getMaxNanos()));
+            timersJson.add(name, timerJson);
+        });
+        JsonObject countersJson = new JsonObject();
+        counters.forEach((name, counter) -> countersJson.addProperty(name, counter.sum()));
+        json.add("timers", timersJson);
+        json.add("counters", countersJson);
+        return new GsonBuilder().setPrettyPrinting().create().toJson(json);
+    }
+
+    /**
+     * Timers are written as summaries in seconds and counters as counters, all prefixed with
+     * {@value #PROMETHEUS_PREFIX}.
+     */
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        timers.forEach((name, timer) -> {
+            String metric = prometheusName(name) + "_seconds";
+            text.append("# TYPE ").append(metric).append(" summary\n");
+            for (double quantile : QUANTILES) {
+                text.append(metric).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(Timer.toSeconds(timer.getPercentileNanos(quantile))).append('\n');
+            }
+            text.append(metric).append("_sum ").append(Timer.toSeconds(timer.getTotalNanos())).append('\n');
+            text.append(metric).append("_count ").append(timer.getCount()).append('\n');
+        });
+        counters.forEach((name, counter) -> {
+            String metric = prometheusName(name) + "_total";
+            text.append("# TYPE ").append(metric).append(" counter\n");
+            text.append(metric).append(' ').append(counter.sum()).append('\n');
+        });
+        return text.toString();
+    }
+
+    private static String prometheusName(String name) {
+        return PROMETHEUS_PREFIX + name.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    /**
+     * Writes the metrics as JSON if the file name ends with {@code .json}, otherwise in the Prometheus text format.
+     */
+    public void write(Path file) throws IOException {
+        String content = file.getFileName().toString().endsWith(".json") ? toJson() : toPrometheus();
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        // The node exporter may read the file at any time, so it is replaced in one step
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(temporary, content, StandardCharsets.UTF_8);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
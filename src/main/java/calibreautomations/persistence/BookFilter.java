@@ -0,0 +1,167 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.function.Predicate;
+
+/**
+ * A condition on the books that the backends translate to a {@code calibredb} search or to SQL, so the books that
+ * cannot match are never transferred. Backends may still return books that do not match (Calibre searches ignore
+ * case), so callers that need exact results check each book with {@link #test(Book)}.
+ */
+public final class BookFilter implements Predicate<Book> {
+    private static final BookFilter ALL = new BookFilter(Kind.ALL, null, List.of());
+
+    private enum Kind {ALL, HAS_TAG, HAS_TAG_STARTING_WITH, TITLE_CONTAINS, HAS_READORDER, ANY_OF, ALL_OF}
+
+    private final Kind kind;
+    private final String value;
+    private final List<BookFilter> filters;
+
+    private BookFilter(Kind kind, String value, List<BookFilter> filters) {
+        this.kind = kind;
+        this.value = value;
+        this.filters = filters;
+    }
+
+    public static BookFilter all() {
+        return ALL;
+    }
+
+    public static BookFilter hasTag(String tag) {
+        return new BookFilter(Kind.HAS_TAG, tag, List.of());
+    }
+
+    public static BookFilter hasTagStartingWith(String prefix) {
+        return new BookFilter(Kind.HAS_TAG_STARTING_WITH, prefix, List.of());
+    }
+
+    public static BookFilter titleContains(String text) {
+        return new BookFilter(Kind.TITLE_CONTAINS, text, List.of());
+    }
+
+    /**
+     * Books with a value in the readorder custom field.
+     */
+    public static BookFilter hasReadOrder() {
+        return new BookFilter(Kind.HAS_READORDER, null, List.of());
+    }
+
+    /**
+     * Books matching at least one of the filters, all the books if one of them matches all.
+     */
+    public static BookFilter anyOf(List<BookFilter> filters) {
+        List<BookFilter> alternatives = new ArrayList<>();
+        for (BookFilter filter : filters) {
+            if (filter.isAll()) {
+                return ALL;
+            }
+            alternatives.addAll(filter.kind == Kind.ANY_OF ? filter.filters : List.of(filter));
+        }
+        return alternatives.size() == 1 ? alternatives.get(0) : new BookFilter(Kind.ANY_OF, null, List.copyOf(alternatives));
+    }
+
+    /**
+     * @return the books matching both this filter and the other one
+     */
+    public BookFilter and(BookFilter other) {
+        if (isAll()) {
+            return other;
+        }
+        if (other.isAll() || other == this) {
+            return this;
+        }
+        List<BookFilter> conditions = new ArrayList<>();
+        for (BookFilter filter : List.of(this, other)) {
+            conditions.addAll(filter.kind == Kind.ALL_OF ? filter.filters : List.of(filter));
+        }
+        return new BookFilter(Kind.ALL_OF, null, List.copyOf(conditions));
+    }
+
+    public boolean isAll() {
+        return kind == Kind.ALL;
+    }
+
+    @Override
+    public boolean test(Book book) {
+        return switch (kind) {
+            case ALL -> true;
+            case HAS_TAG -> book.hasTag(value);
+            case HAS_TAG_STARTING_WITH -> book.getTagList().stream().anyMatch(tag -> tag.startsWith(value));
+            case TITLE_CONTAINS -> book.getTitle().contains(value);
+            case HAS_READORDER -> !Book.NO_READORDER.equals(book.getReadOrderFromCustomField());
+            case ANY_OF -> filters.stream().anyMatch(filter -> filter.test(book));
+            case ALL_OF -> filters.stream().allMatch(filter -> filter.test(book));
+        };
+    }
+
+    /**
+     * @return the filter in the Calibre search syntax, used by {@code calibredb list --search}
+     */
+    String toCalibreSearch() {
+        return switch (kind) {
+            case ALL -> "";
+            case HAS_TAG -> "tags:" + quote("=" + value);
+            case HAS_TAG_STARTING_WITH -> "tags:" + quote("~^" + value.replaceAll("[\\\\.^$|?*+()\\[\\]{}]", "\\\\$0"));
+            case TITLE_CONTAINS -> "title:" + quote(value);
+            case HAS_READORDER -> "#readorder:true";
+            case ANY_OF -> {
+                StringJoiner search = new StringJoiner(" or ", "(", ")");
+                filters.forEach(filter -> search.add(filter.toCalibreSearch()));
+                yield search.toString();
+            }
+            case ALL_OF -> {
+                StringJoiner search = new StringJoiner(" and ", "(", ")");
+                filters.forEach(filter -> search.add(filter.toCalibreSearch()));
+                yield search.toString();
+            }
+        };
+    }
+
+    /**
+     * @param readOrderColumn the SQL expression of the readorder custom field of the book {@code b}
+     * @param parameters      where the values of the placeholders of the condition are added, in order
+     * @return the filter as a SQL condition on the table {@code books b}
+     */
+    String toSql(String readOrderColumn, List<Object> parameters) {
+        return switch (kind) {
+            case ALL -> "1 = 1";
+            case HAS_TAG -> {
+                parameters.add(value);
+                yield "EXISTS (SELECT 1 FROM books_tags_link fl JOIN tags ft ON ft.id = fl.tag WHERE fl.book = b.id AND ft.name = ?)";
+            }
+            case HAS_TAG_STARTING_WITH -> {
+                parameters.add(value.length());
+                parameters.add(value);
+                yield "EXISTS (SELECT 1 FROM books_tags_link fl JOIN tags ft ON ft.id = fl.tag WHERE fl.book = b.id AND substr(ft.name, 1, ?) = ?)";
+            }
+            case TITLE_CONTAINS -> {
+                parameters.add(value);
+                yield "instr(b.title, ?) > 0";
+            }
+            case HAS_READORDER -> readOrderColumn + " IS NOT NULL";
+            case ANY_OF -> {
+                StringJoiner condition = new StringJoiner(" OR ", "(", ")");
+                filters.forEach(filter -> condition.add(filter.toSql(readOrderColumn, parameters)));
+                yield condition.toString();
+            }
+            case ALL_OF -> {
+                StringJoiner condition = new StringJoiner(" AND ", "(", ")");
+                filters.forEach(filter -> condition.add(filter.toSql(readOrderColumn, parameters)));
+                yield condition.toString();
+            }
+        };
+    }
+
+    private static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    @Override
+    public String toString() {
+        return isAll() ? "all" : toCalibreSearch();
+    }
+}
@@ -0,0 +1,145 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import calibreautomations.TagDictionary;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the books printed by {@code calibredb list --for-machine} one at a time, without building the whole document
+ * in memory.
+ */
+class BookJsonReader implements Closeable {
+
+    private final JsonReader reader;
+    private final Instant modifiedSince;
+    private final TagDictionary tagDictionary;
+    private boolean started;
+    private boolean finished;
+
+    BookJsonReader(Reader in) {
+        this(in, null);
+    }
+
+    /**
+     * @param modifiedSince skips the books with a {@code last_modified} field older than this instant, if not null
+     */
+    BookJsonReader(Reader in, Instant modifiedSince) {
+        this(in, modifiedSince, TagDictionary.shared());
+    }
+
+    BookJsonReader(Reader in, Instant modifiedSince, TagDictionary tagDictionary) {
+        this(new JsonReader(in), modifiedSince, tagDictionary);
+    }
+
+    /**
+     * Reads the array of books at the current position of a reader that may contain more values after it.
+     */
+    BookJsonReader(JsonReader reader, Instant modifiedSince, TagDictionary tagDictionary) {
+        this.reader = reader;
+        this.modifiedSince = modifiedSince;
+        this.tagDictionary = tagDictionary;
+    }
+
+    /**
+     * @return the next book, or null when there are no more books
+     */
+    Book next() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (!started) {
+            reader.beginArray();
+            started = true;
+        }
+        while (reader.hasNext()) {
+            Book book = readBook();
+            if (book != null) {
+                return book;
+            }
+        }
+        reader.endArray();
+        finished = true;
+        return null;
+    }
+
+    /**
+     * Skips the books that were not read, leaving the reader after the end of the array.
+     */
+    void skipRemaining() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (!started) {
+            reader.beginArray();
+            started = true;
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
+        finished = true;
+    }
+
+    /**
+     * @return the book, or null if it was modified before {@code modifiedSince}
+     */
+    private Book readBook() throws IOException {
+        int id = 0;
+        String title = null;
+        String readOrder = null;
+        boolean modified = true;
+        List<String> tags = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id" -> id = reader.nextInt();
+                case "title" -> title = reader.nextString();
+                // Numbers are returned as written by calibredb, e.g. "2.0"
+                case "*readorder" -> readOrder = reader.nextString();
+                case "last_modified" -> modified = isModified(reader.nextString());
+                case "tags" -> {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        tags.add(reader.nextString());
+                    }
+                    reader.endArray();
+                }
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return modified ? new Book(id, title, tags, readOrder, tagDictionary) : null;
+    }
+
+    private boolean isModified(String lastModified) {
+        if (modifiedSince == null) {
+            return true;
+        }
+        try {
+            return OffsetDateTime.parse(lastModified).toInstant().isAfter(modifiedSince);
+        } catch (DateTimeParseException e) {
+            // Better to process the book again than to miss a change
+            return true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,112 @@
+package calibreautomations.persistence;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.StringJoiner;
+
+/**
+ * Restricts the books returned by {@link CalibreDB#streamBooks(BookQuery)}. Backends translate it to their own
+ * filtering so books that are not needed are never transferred.
+ */
+public class BookQuery {
+    private static final BookQuery ALL = new BookQuery(null, BookFilter.all(), 0, Integer.MAX_VALUE);
+
+    private final Instant modifiedSince;
+    private final BookFilter filter;
+    private final int fromId;
+    private final int toId;
+
+    private BookQuery(Instant modifiedSince, BookFilter filter, int fromId, int toId) {
+        this.modifiedSince = modifiedSince;
+        this.filter = filter;
+        this.fromId = fromId;
+        this.toId = toId;
+    }
+
+    public static BookQuery all() {
+        return ALL;
+    }
+
+    /**
+     * @param modifiedSince only books modified after this instant, or all books if null
+     */
+    public static BookQuery modifiedSince(Instant modifiedSince) {
+        return modifiedSince == null ? ALL : new BookQuery(modifiedSince, BookFilter.all(), 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return this query restricted to the books matching the filter as well as its own one, which backends may only
+     * apply loosely
+     */
+    public BookQuery matching(BookFilter filter) {
+        BookFilter combined = this.filter.and(filter);
+        if (combined == this.filter) {
+            return this;
+        }
+        return new BookQuery(modifiedSince, combined, fromId, toId);
+    }
+
+    /**
+     * @param fromId the lowest id returned
+     * @param toId   the id after the highest id returned, {@link Integer#MAX_VALUE} for no limit
+     * @return this query restricted to a range of book ids
+     */
+    public BookQuery withIds(int fromId, int toId) {
+        return new BookQuery(modifiedSince, filter, fromId, toId);
+    }
+
+    public Instant getModifiedSince() {
+        return modifiedSince;
+    }
+
+    public BookFilter getFilter() {
+        return filter;
+    }
+
+    public int getFromId() {
+        return fromId;
+    }
+
+    public int getToId() {
+        return toId;
+    }
+
+    public boolean hasIdRange() {
+        return fromId > 0 || toId < Integer.MAX_VALUE;
+    }
+
+    public boolean isAll() {
+        return modifiedSince == null && filter.isAll() && !hasIdRange();
+    }
+
+    /**
+     * @return the query as a {@code calibredb list --search} expression, or null if it selects all the books
+     */
+    String toCalibreSearch() {
+        StringJoiner search = new StringJoiner(" and ");
+        if (modifiedSince != null) {
+            // Calibre compares dates by day, the exact instant is checked on each book
+            search.add("last_modified:>=" + modifiedSince.atZone(ZoneId.systemDefault()).toLocalDate());
+        }
+        if (fromId > 0) {
+            search.add("id:>=" + fromId);
+        }
+        if (toId < Integer.MAX_VALUE) {
+            search.add("id:<" + toId);
+        }
+        if (!filter.isAll()) {
+            search.add(filter.toCalibreSearch());
+        }
+        return search.length() == 0 ? null : search.toString();
+    }
+
+    @Override
+    public String toString() {
+        return "BookQuery{" +
+               "modifiedSince=" + modifiedSince +
+               ", filter=" + filter +
+               ", fromId=" + fromId +
+               ", toId=" + toId +
+               '}';
+    }
+}
@@ -0,0 +1,101 @@
+package calibreautomations.persistence;
+
+import java.util.List;
+
+/**
+ * All the pending changes to a single book, so they can be written to the library in one operation.
+ * A null field means the value is left unchanged.
+ */
+public class BookUpdate {
+    private final int bookId;
+    private String title;
+    private List<String> tags;
+    private boolean deleteReadOrder;
+    private String readOrder;
+
+    public BookUpdate(int bookId) {
+        this.bookId = bookId;
+    }
+
+    public int getBookId() {
+        return bookId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public BookUpdate setTitle(String title) {
+        this.title = title;
+        return this;
+    }
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public BookUpdate setTags(List<String> tags) {
+        this.tags = List.copyOf(tags);
+        return this;
+    }
+
+    public boolean isDeleteReadOrder() {
+        return deleteReadOrder;
+    }
+
+    public BookUpdate setDeleteReadOrder(boolean deleteReadOrder) {
+        this.deleteReadOrder = deleteReadOrder;
+        if (deleteReadOrder) {
+            readOrder = null;
+        }
+        return this;
+    }
+
+    /**
+     * @return the new value of the readorder custom field, or null if it is left unchanged or deleted
+     */
+    public String getReadOrder() {
+        return readOrder;
+    }
+
+    public BookUpdate setReadOrder(String readOrder) {
+        this.readOrder = readOrder;
+        if (readOrder != null) {
+            deleteReadOrder = false;
+        }
+        return this;
+    }
+
+    /**
+     * Writes the changes with the individual {@link CalibreDB} operations.
+     */
+    public void applyTo(CalibreDB calibreDB) throws DataAccessException {
+        if (title != null) {
+            calibreDB.updateBookTitle(bookId, title);
+        }
+        if (tags != null) {
+            calibreDB.replaceBookTags(bookId, tags);
+        }
+        if (deleteReadOrder) {
+            calibreDB.deleteReadOrderCustomField(bookId);
+        }
+        if (readOrder != null) {
+            calibreDB.setReadOrderCustomField(bookId, readOrder);
+        }
+    }
+
+    public boolean isEmpty() {
+        return title == null && tags == null && !deleteReadOrder && readOrder == null;
+    }
+
+    @Override
+    public String toString() {
+        return "BookUpdate{" +
+               "bookId=" + bookId +
+               ", title='" + title + '\'' +
+               ", tags=" + tags +
+               ", deleteReadOrder=" + deleteReadOrder +
+               ", readOrder='" + readOrder + '\'' +
+               '}';
+    }
+}
@@ -0,0 +1,153 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Collects the changes made during a run and writes them to the wrapped {@link CalibreDB} in batches.
+ * <p>
+ * All the changes to the same book are merged into a single {@link BookUpdate}, and pending changes are written
+ * once {@code batchSize} books have been changed or when {@link #flush()} is called. Full batches are written even
+ * while a stream of books is open, so the pending changes never grow beyond a batch; the backends make sure a write
+ * does not wait for the listing to finish.
+ */
+public class BufferedCalibreDB implements CalibreDB {
+
+    private static final Logger logger = LoggerFactory.getLogger(BufferedCalibreDB.class);
+
+    private final CalibreDB delegate;
+    private final int batchSize;
+    private final Map<Integer, BookUpdate> pending = new LinkedHashMap<>();
+    private int mutationCount;
+    private int batchCount;
+
+    public BufferedCalibreDB(CalibreDB delegate, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+        }
+        this.delegate = delegate;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public Stream<Book> streamBooks(BookQuery query) throws DataAccessException {
+        // Pending changes would not be visible otherwise
+        flush();
+        return delegate.streamBooks(query);
+    }
+
+    @Override
+    public void deleteReadOrderCustomField(int bookId) throws DataAccessException {
+        pendingUpdate(bookId).setDeleteReadOrder(true);
+        mutated();
+    }
+
+    @Override
+    public void setReadOrderCustomField(int bookId, String readOrder) throws DataAccessException {
+        pendingUpdate(bookId).setReadOrder(readOrder);
+        mutated();
+    }
+
+    @Override
+    public void replaceBookTags(int bookId, List<String> tagsList) throws DataAccessException {
+        pendingUpdate(bookId).setTags(tagsList);
+        mutated();
+    }
+
+    @Override
+    public void updateBookTitle(int bookId, String title) throws DataAccessException {
+        pendingUpdate(bookId).setTitle(title);
+        mutated();
+    }
+
+    /**
+     * Merges the updates into the pending changes, each field counted as a change.
+     */
+    @Override
+    public void applyUpdates(List<BookUpdate> updates) throws DataAccessException {
+        for (BookUpdate update : updates) {
+            if (update.isEmpty()) {
+                continue;
+            }
+            BookUpdate pendingUpdate = pendingUpdate(update.getBookId());
+            if (update.getTitle() != null) {
+                pendingUpdate.setTitle(update.getTitle());
+                mutationCount++;
+            }
+            if (update.getTags() != null) {
+                pendingUpdate.setTags(update.getTags());
+                mutationCount++;
+            }
+            if (update.isDeleteReadOrder()) {
+                pendingUpdate.setDeleteReadOrder(true);
+                mutationCount++;
+            }
+            if (update.getReadOrder() != null) {
+                pendingUpdate.setReadOrder(update.getReadOrder());
+                mutationCount++;
+            }
+            flushIfFull();
+        }
+    }
+
+    @Override
+    public void flush() throws DataAccessException {
+        writeBatch();
+        delegate.flush();
+    }
+
+    @Override
+    public void close() throws DataAccessException {
+        delegate.close();
+    }
+
+    /**
+     * @return the number of individual changes requested, before merging
+     */
+    public int getMutationCount() {
+        return mutationCount;
+    }
+
+    /**
+     * @return the number of batches written to the wrapped {@link CalibreDB}
+     */
+    public int getBatchCount() {
+        return batchCount;
+    }
+
+    private BookUpdate pendingUpdate(int bookId) {
+        return pending.computeIfAbsent(bookId, BookUpdate::new);
+    }
+
+    private void mutated() throws DataAccessException {
+        mutationCount++;
+        flushIfFull();
+    }
+
+    /**
+     * Writes a full batch, leaving the flush of the wrapped {@link CalibreDB} (e.g. saving the listing cache) to the
+     * end of the run.
+     */
+    private void flushIfFull() throws DataAccessException {
+        if (pending.size() >= batchSize) {
+            writeBatch();
+        }
+    }
+
+    private void writeBatch() throws DataAccessException {
+        if (!pending.isEmpty()) {
+            List<BookUpdate> batch = new ArrayList<>(pending.values());
+            pending.clear();
+            logger.debug("Writing batch of {} book updates", batch.size());
+            delegate.applyUpdates(batch);
+            batchCount++;
+        }
+    }
+}
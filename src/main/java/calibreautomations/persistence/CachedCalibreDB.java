@@ -0,0 +1,309 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import calibreautomations.TagDictionary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Keeps a snapshot of the whole library on disk and returns it instead of listing the books again while
+ * {@code metadata.db} has not changed.
+ * <p>
+ * The snapshot is keyed by the size and modification time of {@code metadata.db} and its journal. The books written
+ * through this class are patched into the snapshot, which is then keyed by the new state of the database, so the
+ * updater's own changes do not invalidate it. Any other change to the library does. Listings restricted to the books
+ * modified since an instant skip the snapshot. A {@link BookFilter} is applied in memory: when there is no up to date
+ * snapshot every book is listed to take a new one, and only the matching books are returned, so the filtered listings
+ * of a normal run keep the snapshot fresh.
+ * Libraries that are not local directories (e.g. a content server URL) are never cached.
+ */
+public class CachedCalibreDB implements CalibreDB {
+
+    private static final Logger logger = LoggerFactory.getLogger(CachedCalibreDB.class);
+
+    private final CalibreDB delegate;
+    private final Path metadataDb;
+    private final Path snapshotFile;
+    private final TagDictionary tagDictionary = new TagDictionary();
+    private boolean refresh;
+    private LibrarySnapshot snapshot;
+    private boolean snapshotChanged;
+    // Own writes not patched into the snapshot yet, and the state of the library after them
+    private final Map<Integer, List<BookUpdate>> patches = new HashMap<>();
+    private LibraryVersion patchedKey;
+    // The listing being recorded as the next snapshot, if any
+    private RecordingBooks recording;
+
+    /**
+     * @param refresh ignore the snapshot saved by a previous run and list the books again
+     */
+    public CachedCalibreDB(CalibreDB delegate, String calibreLibraryPath, Path cacheDirectory, boolean refresh) {
+        this.delegate = delegate;
+        this.metadataDb = Path.of(calibreLibraryPath, "metadata.db");
+        this.snapshotFile = cacheDirectory.resolve(LibraryFiles.name(calibreLibraryPath) + ".snapshot");
+        this.refresh = refresh;
+    }
+
+    @Override
+    public Stream<Book> streamBooks(BookQuery query) throws DataAccessException {
+        if (query.getModifiedSince() != null) {
+            return delegate.streamBooks(query);
+        }
+        LibraryVersion key = currentKey();
+        if (key == null) {
+            return delegate.streamBooks(query);
+        }
+        if (snapshot == null && !refresh) {
+            snapshot = loadSnapshot();
+        }
+        BookFilter filter = query.getFilter();
+        applyPatches();
+        if (snapshot != null && snapshot.getKey().equals(key)) {
+            logger.debug("Using the snapshot of the library in {}", snapshotFile);
+            return filter.isAll() ? snapshot.getBooks().stream() : snapshot.getBooks().stream().filter(filter);
+        }
+        refresh = false;
+        discardSnapshot();
+        // Every book goes into the snapshot, the filter only decides which ones are returned
+        Stream<Book> books = delegate.streamBooks(BookQuery.all());
+        RecordingBooks recordingBooks = new RecordingBooks(books.spliterator(), filter, key);
+        recording = recordingBooks;
+        return StreamSupport.stream(recordingBooks, false).onClose(() -> {
+            if (recording == recordingBooks) {
+                recording = null;
+            }
+            books.close();
+        });
+    }
+
+    @Override
+    public void deleteReadOrderCustomField(int bookId) throws DataAccessException {
+        LibraryVersion before = currentKey();
+        delegate.deleteReadOrderCustomField(bookId);
+        written(before, List.of(new BookUpdate(bookId).setDeleteReadOrder(true)));
+    }
+
+    @Override
+    public void setReadOrderCustomField(int bookId, String readOrder) throws DataAccessException {
+        LibraryVersion before = currentKey();
+        delegate.setReadOrderCustomField(bookId, readOrder);
+        written(before, List.of(new BookUpdate(bookId).setReadOrder(readOrder)));
+    }
+
+    @Override
+    public void replaceBookTags(int bookId, List<String> tagsList) throws DataAccessException {
+        LibraryVersion before = currentKey();
+        delegate.replaceBookTags(bookId, tagsList);
+        written(before, List.of(new BookUpdate(bookId).setTags(tagsList)));
+    }
+
+    @Override
+    public void updateBookTitle(int bookId, String title) throws DataAccessException {
+        LibraryVersion before = currentKey();
+        delegate.updateBookTitle(bookId, title);
+        written(before, List.of(new BookUpdate(bookId).setTitle(title)));
+    }
+
+    @Override
+    public void applyUpdates(List<BookUpdate> updates) throws DataAccessException {
+        LibraryVersion before = currentKey();
+        delegate.applyUpdates(updates);
+        written(before, updates);
+    }
+
+    @Override
+    public void flush() throws DataAccessException {
+        delegate.flush();
+        saveSnapshot();
+    }
+
+    @Override
+    public void close() throws DataAccessException {
+        saveSnapshot();
+        delegate.close();
+    }
+
+    /**
+     * Records the books just written, to be patched into the snapshot, as long as nobody else changed the library
+     * since it was taken. The snapshot itself is rebuilt once, when it is used or saved, not after every batch.
+     */
+    private void written(LibraryVersion before, List<BookUpdate> updates) throws DataAccessException {
+        if (recording != null) {
+            recording.written(before, updates);
+        }
+        if (snapshot == null) {
+            return;
+        }
+        LibraryVersion key = patchedKey != null ? patchedKey : snapshot.getKey();
+        if (before == null || !before.equals(key)) {
+            logger.debug("The library changed since the snapshot was taken, discarding it");
+            discardSnapshot();
+            return;
+        }
+        addPatches(patches, updates);
+        patchedKey = currentKey();
+        snapshotChanged = true;
+    }
+
+    private void applyPatches() {
+        if (snapshot == null || patchedKey == null) {
+            return;
+        }
+        snapshot = new LibrarySnapshot(patchedKey, patchAll(snapshot.getBooks(), patches));
+        patches.clear();
+        patchedKey = null;
+    }
+
+    private void discardSnapshot() {
+        snapshot = null;
+        patches.clear();
+        patchedKey = null;
+    }
+
+    private static void addPatches(Map<Integer, List<BookUpdate>> patches, List<BookUpdate> updates) {
+        for (BookUpdate update : updates) {
+            patches.computeIfAbsent(update.getBookId(), id -> new ArrayList<>(1)).add(update);
+        }
+    }
+
+    /**
+     * @return the books with the updates applied, in one pass
+     */
+    private List<Book> patchAll(List<Book> books, Map<Integer, List<BookUpdate>> patches) {
+        List<Book> patched = new ArrayList<>(books.size());
+        for (Book book : books) {
+            for (BookUpdate update : patches.getOrDefault(book.getId(), List.of())) {
+                book = patch(book, update);
+            }
+            patched.add(book);
+        }
+        return List.copyOf(patched);
+    }
+
+    private Book patch(Book book, BookUpdate update) {
+        return new Book(book.getId(),
+                update.getTitle() != null ? update.getTitle() : book.getTitle(),
+                update.getTags() != null ? update.getTags() : book.getTagList(),
+                readOrder(book, update),
+                tagDictionary);
+    }
+
+    private static String readOrder(Book book, BookUpdate update) {
+        if (update.getReadOrder() != null) {
+            // The listing shows the values as doubles
+            return Double.toString(Double.parseDouble(update.getReadOrder()));
+        }
+        if (update.isDeleteReadOrder() || Book.NO_READORDER.equals(book.getReadOrderFromCustomField())) {
+            return null;
+        }
+        return book.getReadOrderFromCustomField();
+    }
+
+    private LibraryVersion currentKey() throws DataAccessException {
+        try {
+            return LibraryVersion.of(metadataDb);
+        } catch (IOException e) {
+            throw new DataAccessException("Error reading " + metadataDb, e);
+        }
+    }
+
+    private LibrarySnapshot loadSnapshot() {
+        try {
+            return LibrarySnapshot.read(snapshotFile, tagDictionary);
+        } catch (IOException e) {
+            logger.debug("Ignoring the snapshot in {}", snapshotFile, e);
+            return null;
+        }
+    }
+
+    private void saveSnapshot() {
+        if (snapshot == null || !snapshotChanged) {
+            return;
+        }
+        applyPatches();
+        try {
+            snapshot.write(snapshotFile);
+            snapshotChanged = false;
+        } catch (IOException e) {
+            // The next run lists the books again
+            logger.warn("Error saving the snapshot of the library to {}", snapshotFile, e);
+        }
+    }
+
+
+    /**
+     * Collects the books while they are consumed, and keeps them as the new snapshot if all of them were read. Only the
+     * books matching the filter are returned. Batches written through this class while the listing is read are patched
+     * into it at the end.
+     */
+    private class RecordingBooks extends Spliterators.AbstractSpliterator<Book> {
+        private final Spliterator<Book> books;
+        private final BookFilter filter;
+        private final List<Book> recorded = new ArrayList<>();
+        private final Map<Integer, List<BookUpdate>> patches = new HashMap<>();
+        // The state of the library the books are from, null once somebody else changed it
+        private LibraryVersion key;
+        private Book next;
+
+        RecordingBooks(Spliterator<Book> books, BookFilter filter, LibraryVersion key) {
+            super(books.estimateSize(), books.characteristics() & (ORDERED | NONNULL | DISTINCT));
+            this.books = books;
+            this.filter = filter;
+            this.key = key;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Book> action) {
+            while (books.tryAdvance(book -> next = book)) {
+                Book book = next;
+                next = null;
+                recorded.add(book);
+                if (filter.isAll() || filter.test(book)) {
+                    action.accept(book);
+                    return true;
+                }
+            }
+            completed();
+            return false;
+        }
+
+        void written(LibraryVersion before, List<BookUpdate> updates) throws DataAccessException {
+            if (key == null || !key.equals(before)) {
+                key = null;
+                return;
+            }
+            key = currentKey();
+            addPatches(patches, updates);
+        }
+
+        private void completed() {
+            try {
+                // Books may have been changed after they were listed
+                if (key == null || !key.equals(currentKey())) {
+                    logger.debug("The library changed while it was listed, not keeping a snapshot");
+                    return;
+                }
+            } catch (DataAccessException e) {
+                logger.debug("Error checking the library after listing it", e);
+                return;
+            }
+            discardSnapshot();
+            // Patching again a book listed after it was written changes nothing
+            snapshot = new LibrarySnapshot(key, patchAll(recorded, patches));
+            snapshotChanged = true;
+            saveSnapshot();
+        }
+    }
+}
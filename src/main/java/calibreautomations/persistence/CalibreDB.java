@@ -3,13 +3,64 @@ package calibreautomations.persistence;
 import calibreautomations.Book;
 
 import java.util.List;
+import java.util.stream.Stream;
 
-public interface CalibreDB {
-    List<Book> getBooks() throws DataAccessException;
+public interface CalibreDB extends AutoCloseable {
+    /**
+     * Returns the books of the library matching the query, ordered by id and read while they are consumed. The stream
+     * must be closed to release the underlying process or connection. Errors found while reading are thrown as
+     * {@link UncheckedDataAccessException}.
+     */
+    Stream<Book> streamBooks(BookQuery query) throws DataAccessException;
+
+    default Stream<Book> streamBooks() throws DataAccessException {
+        return streamBooks(BookQuery.all());
+    }
+
+    default List<Book> getBooks() throws DataAccessException {
+        try (Stream<Book> books = streamBooks()) {
+            return books.toList();
+        } catch (UncheckedDataAccessException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return the highest book id in the library, or -1 if the backend cannot find it cheaply, so the listing is
+     * never split by {@link ShardedCalibreDB}
+     */
+    default int getMaxBookId() throws DataAccessException {
+        return -1;
+    }
 
     void deleteReadOrderCustomField(int bookId) throws DataAccessException;
 
+    void setReadOrderCustomField(int bookId, String readOrder) throws DataAccessException;
+
     void replaceBookTags(int bookId, List<String> tagsList) throws DataAccessException;
 
     void updateBookTitle(int bookId, String title) throws DataAccessException;
+
+    /**
+     * Writes several book updates. Implementations should override it when they can write all the changes to a
+     * book, or several books, in a single operation.
+     */
+    default void applyUpdates(List<BookUpdate> updates) throws DataAccessException {
+        for (BookUpdate update : updates) {
+            update.applyTo(this);
+        }
+    }
+
+    /**
+     * Writes any pending changes. Implementations that write immediately do nothing.
+     */
+    default void flush() throws DataAccessException {
+    }
+
+    /**
+     * Releases any process or connection kept open between operations.
+     */
+    @Override
+    default void close() throws DataAccessException {
+    }
 }
@@ -1,56 +1,99 @@
 package calibreautomations.persistence;
 
 import calibreautomations.Book;
+import calibreautomations.TagDictionary;
 import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class CalibreDBCli implements CalibreDB {
 
+    public static final Duration DEFAULT_COMMAND_TIMEOUT = Duration.ofMinutes(5);
+
     private static final Logger logger = LoggerFactory.getLogger(CalibreDBCli.class);
 
     private final String calibreLibraryPath;
+    private final TagDictionary tagDictionary = new TagDictionary();
+    private final AtomicInteger processCount = new AtomicInteger();
+    private final LongAdder bytesRead = new LongAdder();
+    private final ProcessRunner processRunner;
+    private final Duration commandTimeout;
 
     public CalibreDBCli(String calibreLibraryPath) {
+        this(calibreLibraryPath, DEFAULT_COMMAND_TIMEOUT);
+    }
+
+    /**
+     * @param commandTimeout how long each calibredb command that writes to the library may run, and how long a listing
+     *                       may go without sending anything, before it is killed
+     */
+    public CalibreDBCli(String calibreLibraryPath, Duration commandTimeout) {
         this.calibreLibraryPath = calibreLibraryPath;
+        this.processRunner = new ProcessRunner(commandTimeout, bytesRead);
+        this.commandTimeout = commandTimeout;
     }
 
     @Override
-    public List<Book> getBooks() throws DataAccessException {
-        List<Book> books = new ArrayList<>();
+    public Stream<Book> streamBooks(BookQuery query) throws DataAccessException {
+        String fields = query.getModifiedSince() != null ? "title,tags,*readorder,last_modified" : "title,tags,*readorder";
+        // calibredb sorts by descending id unless told otherwise
+        List<String> command = new ArrayList<>(List.of("calibredb", "list", "--for-machine", "--fields", fields, "--sort-by", "id", "--ascending"));
+        String search = query.toCalibreSearch();
+        if (search != null) {
+            command.add("--search");
+            command.add(search);
+        }
+        command.add("--library-path=" + calibreLibraryPath);
+        return listBooks(command.toArray(new String[0]), query);
+    }
+
+    private Stream<Book> listBooks(String[] command, BookQuery query) throws DataAccessException {
         try {
-            String[] command = {"calibredb", "list", "--for-machine", "--fields", "title,tags,*readorder",  "--library-path=" + calibreLibraryPath};
-            String jsonOutput = executeCalibreCommand(command);
-
-            JsonArray jsonArray = JsonParser.parseString(jsonOutput).getAsJsonArray();
-            for (int i = 0; i < jsonArray.size(); i++) {
-                JsonObject jsonObject = jsonArray.get(i).getAsJsonObject();
-                int id = jsonObject.get("id").getAsInt();
-                String title = jsonObject.get("title").getAsString();
-                String readOrder = jsonObject.has("*readorder") ? jsonObject.get("*readorder").getAsString() : null;
-                JsonArray tagsArray = jsonObject.get("tags").getAsJsonArray();
-                StringBuilder tagsBuilder = new StringBuilder();
-                for (int j = 0; j < tagsArray.size(); j++) {
-                    if (j > 0) {
-                        tagsBuilder.append(", ");
-                    }
-                    tagsBuilder.append(tagsArray.get(j).getAsString());
-                }
-                String tags = tagsBuilder.toString();
-                books.add(new Book(id, title, tags, readOrder));
-            }
+            // stderr goes to a file so calibredb never blocks on it while stdout is being parsed
+            Path errorFile = Files.createTempFile("calibredb", ".err");
+            Process process = new ProcessBuilder(command).redirectError(errorFile.toFile()).start();
+            processCount.incrementAndGet();
+            // The listing may run for long, but a calibredb that stops sending books is stuck
+            IdleTimeoutInputStream output = new IdleTimeoutInputStream(process.getInputStream(), process, commandTimeout);
+            BookJsonReader reader = new BookJsonReader(new InputStreamReader(new CountingInputStream(output, bytesRead), StandardCharsets.UTF_8),
+                    query.getModifiedSince(), tagDictionary);
+            ListedBooks listedBooks = new ListedBooks(command, process, output, reader, errorFile, commandTimeout);
+            return StreamSupport.stream(listedBooks, false).onClose(listedBooks::close);
+        } catch (IOException e) {
+            throw new DataAccessException("Error retrieving books.\n" + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Lists a single book, the first one by descending id.
+     */
+    @Override
+    public int getMaxBookId() throws DataAccessException {
+        String[] command = {"calibredb", "list", "--for-machine", "--fields", "id", "--sort-by", "id", "--limit", "1", "--library-path=" + calibreLibraryPath};
+        try {
+            JsonArray books = JsonParser.parseString(executeCalibreCommand(command)).getAsJsonArray();
+            return books.isEmpty() ? 0 : books.get(0).getAsJsonObject().get("id").getAsInt();
         } catch (Exception e) {
-            throw new DataAccessException("Error retrieving books.\n" + e.getMessage());
+            throw new DataAccessException("Error finding the highest book id", e);
         }
-        return books;
     }
 
     @Override
@@ -64,6 +107,16 @@ public class CalibreDBCli implements CalibreDB {
         }
     }
 
+    @Override
+    public void setReadOrderCustomField(int bookId, String readOrder) throws DataAccessException {
+        try {
+            String[] command = {"calibredb", "set_custom", "readorder", String.valueOf(bookId), readOrder, "--library-path=" + calibreLibraryPath};
+            executeCalibreCommand(command);
+        } catch (Exception e) {
+            throw new DataAccessException("Error setting readorder custom field", e);
+        }
+    }
+
     @Override
     public void replaceBookTags(int bookId, List<String> tagsList) throws DataAccessException {
         try {
@@ -79,36 +132,172 @@ public class CalibreDBCli implements CalibreDB {
     public void updateBookTitle(int bookId, String title) throws DataAccessException {
         // invoke calibredb to change the book tittle
         try {
-            String[] command = {"calibredb", "set_metadata", String.valueOf(bookId), "--field", "title:\"" + title + "\"", "--library-path=" + calibreLibraryPath};
+            String[] command = {"calibredb", "set_metadata", String.valueOf(bookId), "--field", titleField(title), "--library-path=" + calibreLibraryPath};
             executeCalibreCommand(command);
         } catch (Exception e) {
             throw new DataAccessException("Error updating book title", e);
         }
     }
 
-    private static String executeCalibreCommand(String[] command) throws IOException, InterruptedException, DataAccessException {
-        ProcessBuilder processBuilder = new ProcessBuilder(command);
-        Process process = processBuilder.start();
-        BufferedReader standardReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-        BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-        StringBuilder standardOutput = new StringBuilder();
-        StringBuilder errorOutput = new StringBuilder();
-        String line;
-
-        while ((line = standardReader.readLine()) != null) {
-            standardOutput.append(line);
+    /**
+     * calibredb only changes one book per invocation, so each book gets a single set_metadata call with all its fields.
+     */
+    @Override
+    public void applyUpdates(List<BookUpdate> updates) throws DataAccessException {
+        for (BookUpdate update : updates) {
+            if (update.isEmpty()) {
+                continue;
+            }
+            List<String> command = new ArrayList<>(List.of("calibredb", "set_metadata", String.valueOf(update.getBookId())));
+            if (update.getTitle() != null) {
+                command.add("--field");
+                command.add(titleField(update.getTitle()));
+            }
+            if (update.getTags() != null) {
+                command.add("--field");
+                command.add("tags:" + String.join(",", update.getTags()));
+            }
+            if (update.isDeleteReadOrder()) {
+                command.add("--field");
+                command.add("#readorder:");
+            }
+            if (update.getReadOrder() != null) {
+                command.add("--field");
+                command.add("#readorder:" + update.getReadOrder());
+            }
+            command.add("--library-path=" + calibreLibraryPath);
+            try {
+                executeCalibreCommand(command.toArray(new String[0]));
+            } catch (Exception e) {
+                throw new DataAccessException("Error updating book " + update.getBookId(), e);
+            }
         }
-        logger.debug("Output for command: {} \n {}", String.join(" ", command), standardOutput);
+    }
 
-        while ((line = errorReader.readLine()) != null) {
-            errorOutput.append(line);
+    /**
+     * @return the number of calibredb processes started so far
+     */
+    public int getProcessCount() {
+        return processCount.get();
+    }
+
+    /**
+     * @return the number of bytes read from the standard output of calibredb so far
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    private static String titleField(String title) {
+        return "title:\"" + title + "\"";
+    }
+
+    /**
+     * Books parsed from the output of a running {@code calibredb list}.
+     */
+    private static class ListedBooks extends Spliterators.AbstractSpliterator<Book> {
+        private final String[] command;
+        private final Process process;
+        private final IdleTimeoutInputStream output;
+        private final BookJsonReader reader;
+        private final Path errorFile;
+        private final Duration timeout;
+
+        ListedBooks(String[] command, Process process, IdleTimeoutInputStream output, BookJsonReader reader, Path errorFile, Duration timeout) {
+            super(Long.MAX_VALUE, ORDERED | NONNULL);
+            this.command = command;
+            this.process = process;
+            this.output = output;
+            this.reader = reader;
+            this.errorFile = errorFile;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Book> action) {
+            Book book;
+            try {
+                book = reader.next();
+            } catch (IOException | JsonParseException e) {
+                throw new UncheckedDataAccessException(failure(e));
+            }
+            if (book == null) {
+                DataAccessException failure = failure(null);
+                if (failure != null) {
+                    throw new UncheckedDataAccessException(failure);
+                }
+                return false;
+            }
+            action.accept(book);
+            return true;
+        }
+
+        /**
+         * @return the error reported by calibredb, or the parsing error followed by what calibredb reported
+         */
+        private DataAccessException failure(Exception parseError) {
+            if (output.isTimedOut()) {
+                closeOutput();
+                return new DataAccessException("Error retrieving books.\ncalibredb sent nothing for " + timeout.toSeconds() + " seconds", parseError);
+            }
+            if (parseError != null) {
+                // calibredb may still be writing, and would block forever on a full pipe nobody reads
+                closeOutput();
+            }
+            // What calibredb reported, null if it succeeded
+            String errors = null;
+            try {
+                if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                    process.destroyForcibly();
+                    return new DataAccessException("Error retrieving books.\ncalibredb did not exit after " + timeout.toSeconds() + " seconds", parseError);
+                }
+                if (process.exitValue() != 0) {
+                    errors = "calibredb exited with code " + process.exitValue();
+                    String stderr = Files.readString(errorFile, StandardCharsets.UTF_8);
+                    if (!stderr.isBlank()) {
+                        errors = stderr;
+                    }
+                }
+            } catch (IOException e) {
+                logger.debug("Error reading stderr of {}", String.join(" ", command), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                process.destroy();
+            }
+            if (parseError != null) {
+                return new DataAccessException("Error retrieving books.\n" + parseError.getMessage() + (errors == null ? "" : "\n" + errors), parseError);
+            }
+            return errors == null ? null : new DataAccessException("Error retrieving books.\n" + errors);
         }
-        int exitCode = process.waitFor();
-        if (exitCode != 0) {
-            throw new DataAccessException(errorOutput.toString());
+
+        void close() {
+            closeOutput();
+            try {
+                Files.deleteIfExists(errorFile);
+            } catch (IOException e) {
+                logger.debug("Error deleting stderr of {}", String.join(" ", command), e);
+            }
+            // The stream may be closed before all the books were read
+            process.destroy();
         }
 
-        return standardOutput.toString();
+        private void closeOutput() {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                logger.debug("Error closing output of {}", String.join(" ", command), e);
+            }
+        }
+    }
+
+    private String executeCalibreCommand(String[] command) throws IOException, InterruptedException, DataAccessException {
+        processCount.incrementAndGet();
+        ProcessRunner.Result result = processRunner.run(List.of(command));
+        logger.debug("Output for command: {} \n {}", String.join(" ", command), result.output());
+        if (result.exitCode() != 0) {
+            throw new DataAccessException(result.errors());
+        }
+        return result.output();
     }
 
 }
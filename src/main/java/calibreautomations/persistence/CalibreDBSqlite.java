@@ -0,0 +1,503 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import calibreautomations.TagDictionary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads and writes the Calibre library directly through its {@code metadata.db} SQLite database, avoiding the cost
+ * of starting a {@code calibredb} process for every operation.
+ * <p>
+ * Every write runs in a transaction, updates {@code books.last_modified} and marks the book as dirtied so Calibre
+ * regenerates its {@code metadata.opf} the next time it opens the library. With an {@link UndoJournal}, the previous
+ * values of the books are recorded in the same transaction, before it commits.
+ */
+public class CalibreDBSqlite implements CalibreDB {
+
+    private static final Logger logger = LoggerFactory.getLogger(CalibreDBSqlite.class);
+
+    static final String READORDER_LABEL = "readorder";
+    private static final int BUSY_TIMEOUT_MILLIS = 10_000;
+    static final int PAGE_SIZE = 1000;
+    private static final DateTimeFormatter CALIBRE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSSSSSxxx");
+    private static final String[] TITLE_SORT_ARTICLES = {"A ", "An ", "The "};
+
+    private final String databaseUrl;
+    private final TagDictionary tagDictionary = new TagDictionary();
+    private final UndoJournal undoJournal;
+
+    public CalibreDBSqlite(String calibreLibraryPath) {
+        this(calibreLibraryPath, null);
+    }
+
+    /**
+     * @param undoJournal where the values of the books are recorded before they change, or null to not record them
+     */
+    public CalibreDBSqlite(String calibreLibraryPath, UndoJournal undoJournal) {
+        this(Path.of(calibreLibraryPath, "metadata.db"), undoJournal);
+    }
+
+    public CalibreDBSqlite(Path metadataDb) {
+        this(metadataDb, null);
+    }
+
+    public CalibreDBSqlite(Path metadataDb, UndoJournal undoJournal) {
+        this.databaseUrl = "jdbc:sqlite:" + metadataDb;
+        this.undoJournal = undoJournal;
+        if (!Files.isRegularFile(metadataDb)) {
+            logger.warn("Calibre database not found at {}", metadataDb);
+        }
+    }
+
+    /**
+     * Books are read in pages of {@value #PAGE_SIZE}, each one in its own short read transaction, so batches can be
+     * written while a listing is open without waiting for the whole library to be read.
+     */
+    @Override
+    public Stream<Book> streamBooks(BookQuery query) throws DataAccessException {
+        Connection connection = null;
+        try {
+            connection = openConnection();
+            String readOrderTable = findReadOrderTable(connection);
+            String readOrderColumn = readOrderTable == null ? "NULL" : "c.value";
+            String readOrderJoin = readOrderTable == null ? "" : " LEFT JOIN " + readOrderTable + " c ON c.book = b.id";
+            List<Object> parameters = new ArrayList<>();
+            String bookFilter = query.getFilter().toSql(readOrderColumn, parameters);
+            if (query.getModifiedSince() != null) {
+                bookFilter = "b.last_modified > ? AND " + bookFilter;
+                parameters.add(0, query.getModifiedSince().atOffset(ZoneOffset.UTC).format(CALIBRE_TIMESTAMP));
+            }
+            if (query.hasIdRange()) {
+                // Keyset pagination on the primary key, each range is a seek on the index
+                bookFilter = "b.id >= ? AND b.id < ? AND " + bookFilter;
+                parameters.add(0, query.getToId());
+                parameters.add(0, query.getFromId());
+            }
+            // Each page starts after the last book of the previous one
+            String pageFilter = "b.id > ? AND " + bookFilter;
+            String pageIds = "SELECT b.id FROM books b" + readOrderJoin + " WHERE " + pageFilter + " ORDER BY b.id LIMIT ?";
+            PreparedStatement booksStatement = connection.prepareStatement(
+                    "SELECT b.id, b.title, " + readOrderColumn + " AS readorder FROM books b" + readOrderJoin +
+                    " WHERE " + pageFilter + " ORDER BY b.id LIMIT ?");
+            PreparedStatement tagsStatement = connection.prepareStatement(
+                    "SELECT l.book, t.name FROM books_tags_link l JOIN tags t ON t.id = l.tag" +
+                    " WHERE l.book IN (" + pageIds + ") ORDER BY l.book, l.id");
+            Connection openedConnection = connection;
+            return StreamSupport.stream(new BookPages(connection, booksStatement, tagsStatement, parameters, tagDictionary), false)
+                    .onClose(() -> closeQuietly(openedConnection));
+        } catch (SQLException e) {
+            closeQuietly(connection);
+            throw new DataAccessException("Error retrieving books.\n" + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public int getMaxBookId() throws DataAccessException {
+        try (Connection connection = openConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT coalesce(max(id), 0) FROM books")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            throw new DataAccessException("Error finding the highest book id", e);
+        }
+    }
+
+    @Override
+    public void deleteReadOrderCustomField(int bookId) throws DataAccessException {
+        applyUpdates(List.of(new BookUpdate(bookId).setDeleteReadOrder(true)));
+    }
+
+    @Override
+    public void setReadOrderCustomField(int bookId, String readOrder) throws DataAccessException {
+        applyUpdates(List.of(new BookUpdate(bookId).setReadOrder(readOrder)));
+    }
+
+    @Override
+    public void replaceBookTags(int bookId, List<String> tagsList) throws DataAccessException {
+        applyUpdates(List.of(new BookUpdate(bookId).setTags(tagsList)));
+    }
+
+    @Override
+    public void updateBookTitle(int bookId, String title) throws DataAccessException {
+        applyUpdates(List.of(new BookUpdate(bookId).setTitle(title)));
+    }
+
+    /**
+     * Writes all the updates in a single transaction, either all of them are applied or none. The previous values are
+     * added to the undo journal once the transaction has committed, so a batch rolled back leaves no trace in it.
+     */
+    @Override
+    public void applyUpdates(List<BookUpdate> updates) throws DataAccessException {
+        List<BookUpdate> restores = new ArrayList<>(updates.size());
+        try (Connection connection = openConnection()) {
+            String readOrderTable = findReadOrderTable(connection);
+            inTransaction(connection, () -> {
+                if (undoJournal != null) {
+                    readPreviousValues(connection, readOrderTable, updates, restores);
+                }
+                for (BookUpdate update : updates) {
+                    if (update.isEmpty()) {
+                        continue;
+                    }
+                    if (update.getTitle() != null) {
+                        writeTitle(connection, update.getBookId(), update.getTitle());
+                    }
+                    if (update.getTags() != null) {
+                        writeTags(connection, update.getBookId(), update.getTags());
+                    }
+                    if (update.isDeleteReadOrder() || update.getReadOrder() != null) {
+                        if (readOrderTable == null) {
+                            throw new SQLException("Custom column " + READORDER_LABEL + " does not exist in the library");
+                        }
+                        deleteReadOrder(connection, readOrderTable, update.getBookId());
+                        if (update.getReadOrder() != null) {
+                            insertReadOrder(connection, readOrderTable, update.getBookId(), update.getReadOrder());
+                        }
+                    }
+                    touchBook(connection, update.getBookId());
+                }
+            });
+        } catch (SQLException e) {
+            throw new DataAccessException("Error updating books", e);
+        }
+        if (undoJournal != null) {
+            try {
+                undoJournal.record(restores);
+            } catch (IOException e) {
+                throw new DataAccessException("Books updated, but the undo journal could not be written: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws DataAccessException {
+        if (undoJournal != null) {
+            try {
+                undoJournal.close();
+            } catch (IOException e) {
+                throw new DataAccessException("Error closing the undo journal", e);
+            }
+        }
+    }
+
+    /**
+     * Adds the updates that restore the fields about to change to {@code restores}, reading them in the write
+     * transaction so nobody can change them in between.
+     */
+    private static void readPreviousValues(Connection connection, String readOrderTable, List<BookUpdate> updates,
+                                           List<BookUpdate> restores) throws SQLException {
+        try (PreparedStatement titleQuery = connection.prepareStatement("SELECT title FROM books WHERE id = ?");
+             PreparedStatement tagsQuery = connection.prepareStatement(
+                     "SELECT t.name FROM books_tags_link l JOIN tags t ON t.id = l.tag WHERE l.book = ? ORDER BY l.id");
+             PreparedStatement readOrderQuery = readOrderTable == null ? null
+                     : connection.prepareStatement("SELECT value FROM " + readOrderTable + " WHERE book = ?")) {
+            for (BookUpdate update : updates) {
+                BookUpdate restore = new BookUpdate(update.getBookId());
+                if (update.getTitle() != null) {
+                    titleQuery.setInt(1, update.getBookId());
+                    try (ResultSet rs = titleQuery.executeQuery()) {
+                        if (rs.next()) {
+                            restore.setTitle(rs.getString(1));
+                        }
+                    }
+                }
+                if (update.getTags() != null) {
+                    List<String> tags = new ArrayList<>();
+                    tagsQuery.setInt(1, update.getBookId());
+                    try (ResultSet rs = tagsQuery.executeQuery()) {
+                        while (rs.next()) {
+                            tags.add(rs.getString(1));
+                        }
+                    }
+                    restore.setTags(tags);
+                }
+                if ((update.isDeleteReadOrder() || update.getReadOrder() != null) && readOrderQuery != null) {
+                    readOrderQuery.setInt(1, update.getBookId());
+                    try (ResultSet rs = readOrderQuery.executeQuery()) {
+                        if (rs.next()) {
+                            restore.setReadOrder(Double.toString(rs.getDouble(1)));
+                        } else {
+                            restore.setDeleteReadOrder(true);
+                        }
+                    }
+                }
+                if (!restore.isEmpty()) {
+                    restores.add(restore);
+                }
+            }
+        }
+    }
+
+    private Connection openConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(databaseUrl);
+        try (Statement statement = connection.createStatement()) {
+            // Calibre GUI may hold a lock on the database for a short time
+            statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS);
+        }
+        // Calibre's triggers call this function, which Calibre itself registers on every connection
+        org.sqlite.Function.create(connection, "title_sort", new org.sqlite.Function() {
+            @Override
+            protected void xFunc() throws SQLException {
+                result(titleSort(value_text(0)));
+            }
+        });
+        return connection;
+    }
+
+    private static String findReadOrderTable(Connection connection) throws SQLException {
+        try (PreparedStatement query = connection.prepareStatement(
+                "SELECT id, normalized FROM custom_columns WHERE label = ? AND mark_for_delete = 0")) {
+            query.setString(1, READORDER_LABEL);
+            try (ResultSet rs = query.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                if (rs.getBoolean("normalized")) {
+                    throw new SQLException("Custom column " + READORDER_LABEL + " must be a non-normalized column (e.g. float)");
+                }
+                return "custom_column_" + rs.getInt("id");
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            try {
+                // Also closes the statements and result sets
+                connection.close();
+            } catch (SQLException e) {
+                logger.debug("Error closing connection", e);
+            }
+        }
+    }
+
+    private static void writeTitle(Connection connection, int bookId, String title) throws SQLException {
+        try (PreparedStatement update = connection.prepareStatement("UPDATE books SET title = ? WHERE id = ?")) {
+            update.setString(1, title);
+            update.setInt(2, bookId);
+            if (update.executeUpdate() == 0) {
+                throw new SQLException("Book " + bookId + " does not exist");
+            }
+        }
+    }
+
+    private static void deleteReadOrder(Connection connection, String readOrderTable, int bookId) throws SQLException {
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + readOrderTable + " WHERE book = ?")) {
+            delete.setInt(1, bookId);
+            delete.executeUpdate();
+        }
+    }
+
+    private static void insertReadOrder(Connection connection, String readOrderTable, int bookId, String readOrder) throws SQLException {
+        double value;
+        try {
+            value = Double.parseDouble(readOrder);
+        } catch (NumberFormatException e) {
+            throw new SQLException("Invalid readorder " + readOrder + " for book " + bookId, e);
+        }
+        try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + readOrderTable + " (book, value) VALUES (?, ?)")) {
+            insert.setInt(1, bookId);
+            insert.setDouble(2, value);
+            insert.executeUpdate();
+        }
+    }
+
+    private static void writeTags(Connection connection, int bookId, List<String> tagsList) throws SQLException {
+        Set<String> tags = new LinkedHashSet<>();
+        for (String tag : tagsList) {
+            if (!tag.trim().isEmpty()) {
+                tags.add(tag.trim());
+            }
+        }
+        List<Integer> previousTagIds = new ArrayList<>();
+        try (PreparedStatement query = connection.prepareStatement("SELECT tag FROM books_tags_link WHERE book = ?")) {
+            query.setInt(1, bookId);
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    previousTagIds.add(rs.getInt(1));
+                }
+            }
+        }
+        try (PreparedStatement unlink = connection.prepareStatement("DELETE FROM books_tags_link WHERE book = ?")) {
+            unlink.setInt(1, bookId);
+            unlink.executeUpdate();
+        }
+        try (PreparedStatement insertTag = connection.prepareStatement("INSERT OR IGNORE INTO tags (name) VALUES (?)");
+             PreparedStatement link = connection.prepareStatement(
+                     "INSERT OR IGNORE INTO books_tags_link (book, tag) SELECT ?, id FROM tags WHERE name = ?")) {
+            for (String tag : tags) {
+                insertTag.setString(1, tag);
+                insertTag.executeUpdate();
+                link.setInt(1, bookId);
+                link.setString(2, tag);
+                link.executeUpdate();
+            }
+        }
+        // Calibre does not keep tags that are no longer used by any book
+        try (PreparedStatement deleteUnused = connection.prepareStatement(
+                "DELETE FROM tags WHERE id = ? AND NOT EXISTS (SELECT 1 FROM books_tags_link WHERE tag = ?)")) {
+            for (int tagId : previousTagIds) {
+                deleteUnused.setInt(1, tagId);
+                deleteUnused.setInt(2, tagId);
+                deleteUnused.executeUpdate();
+            }
+        }
+    }
+
+    private static void touchBook(Connection connection, int bookId) throws SQLException {
+        try (PreparedStatement update = connection.prepareStatement("UPDATE books SET last_modified = ? WHERE id = ?");
+             PreparedStatement dirty = connection.prepareStatement("INSERT OR IGNORE INTO metadata_dirtied (book) VALUES (?)")) {
+            update.setString(1, OffsetDateTime.now(ZoneOffset.UTC).format(CALIBRE_TIMESTAMP));
+            update.setInt(2, bookId);
+            update.executeUpdate();
+            dirty.setInt(1, bookId);
+            dirty.executeUpdate();
+        }
+    }
+
+    private static void inTransaction(Connection connection, SqlWork work) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            work.run();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        }
+    }
+
+    static String titleSort(String title) {
+        if (title == null) {
+            return null;
+        }
+        for (String article : TITLE_SORT_ARTICLES) {
+            if (title.regionMatches(true, 0, article, 0, article.length()) && title.length() > article.length()) {
+                return title.substring(article.length()).trim() + ", " + title.substring(0, article.length()).trim();
+            }
+        }
+        return title;
+    }
+
+    /**
+     * Reads the books a page at a time, merging each page with its tags from two result sets ordered by book id. Both
+     * queries of a page run in one read transaction, so a write committed meanwhile cannot give a page the titles of
+     * one state of the library and the tags of another. The transaction ends before the books of the page are
+     * returned.
+     */
+    private static class BookPages extends Spliterators.AbstractSpliterator<Book> {
+        private final Connection connection;
+        private final PreparedStatement booksStatement;
+        private final PreparedStatement tagsStatement;
+        private final List<Object> parameters;
+        private final TagDictionary tagDictionary;
+        private final Deque<Book> page = new ArrayDeque<>(PAGE_SIZE);
+        private int lastId;
+        private boolean lastPage;
+
+        BookPages(Connection connection, PreparedStatement booksStatement, PreparedStatement tagsStatement, List<Object> parameters, TagDictionary tagDictionary) {
+            super(Long.MAX_VALUE, ORDERED | NONNULL | DISTINCT);
+            this.connection = connection;
+            this.booksStatement = booksStatement;
+            this.tagsStatement = tagsStatement;
+            this.parameters = parameters;
+            this.tagDictionary = tagDictionary;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Book> action) {
+            if (page.isEmpty() && !lastPage) {
+                try {
+                    readPage();
+                } catch (SQLException e) {
+                    throw new UncheckedDataAccessException(new DataAccessException("Error retrieving books.\n" + e.getMessage(), e));
+                }
+            }
+            Book book = page.poll();
+            if (book == null) {
+                return false;
+            }
+            action.accept(book);
+            return true;
+        }
+
+        private void readPage() throws SQLException {
+            inTransaction(connection, this::readPageRows);
+        }
+
+        private void readPageRows() throws SQLException {
+            bind(booksStatement);
+            bind(tagsStatement);
+            List<Integer> ids = new ArrayList<>(PAGE_SIZE);
+            List<String> titles = new ArrayList<>(PAGE_SIZE);
+            List<String> readOrders = new ArrayList<>(PAGE_SIZE);
+            try (ResultSet bookRows = booksStatement.executeQuery()) {
+                while (bookRows.next()) {
+                    ids.add(bookRows.getInt("id"));
+                    titles.add(bookRows.getString("title"));
+                    double readOrderValue = bookRows.getDouble("readorder");
+                    readOrders.add(bookRows.wasNull() ? null : Double.toString(readOrderValue));
+                }
+            }
+            lastPage = ids.size() < PAGE_SIZE;
+            if (ids.isEmpty()) {
+                return;
+            }
+            try (ResultSet tagRows = tagsStatement.executeQuery()) {
+                boolean hasTagRow = tagRows.next();
+                // Book keeps only the tag ids, so the list is reused for every book
+                List<String> tags = new ArrayList<>();
+                for (int i = 0; i < ids.size(); i++) {
+                    int id = ids.get(i);
+                    while (hasTagRow && tagRows.getInt(1) < id) {
+                        hasTagRow = tagRows.next();
+                    }
+                    tags.clear();
+                    while (hasTagRow && tagRows.getInt(1) == id) {
+                        tags.add(tagRows.getString(2));
+                        hasTagRow = tagRows.next();
+                    }
+                    page.add(new Book(id, titles.get(i), tags, readOrders.get(i), tagDictionary));
+                }
+            }
+            lastId = ids.get(ids.size() - 1);
+        }
+
+        private void bind(PreparedStatement statement) throws SQLException {
+            int index = 1;
+            statement.setInt(index++, lastId);
+            for (Object parameter : parameters) {
+                statement.setObject(index++, parameter);
+            }
+            statement.setInt(index, PAGE_SIZE);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlWork {
+        void run() throws SQLException;
+    }
+}
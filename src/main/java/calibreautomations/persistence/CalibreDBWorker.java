@@ -0,0 +1,363 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import calibreautomations.TagDictionary;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Keeps a single Calibre process running with the library loaded and sends it every operation, instead of starting
+ * a new {@code calibredb} process each time.
+ * <p>
+ * The worker reads one JSON request per line on stdin and answers each one with a JSON value on stdout (see
+ * {@code calibre_worker.py}). Listings are returned a page at a time, and each response is read whole before the
+ * next request is sent, so updates can be written between two pages of a listing without holding the rest of it in
+ * memory.
+ */
+public class CalibreDBWorker implements CalibreDB {
+
+    private static final Logger logger = LoggerFactory.getLogger(CalibreDBWorker.class);
+
+    static final String WORKER_SCRIPT = "calibre_worker.py";
+    private static final long STOP_TIMEOUT_SECONDS = 10;
+    static final int PAGE_SIZE = 1000;
+
+    private final List<String> command;
+    private final int pageSize;
+    private final TagDictionary tagDictionary = new TagDictionary();
+    private Process process;
+    private Writer requests;
+    private JsonReader responses;
+    private Path errorFile;
+    private WorkerBooks listing;
+    private int processCount;
+    private final LongAdder bytesRead = new LongAdder();
+
+    /**
+     * @param command the command that starts the worker, e.g. {@code calibre-debug -e calibre_worker.py <library>}
+     */
+    public CalibreDBWorker(List<String> command) {
+        this(command, PAGE_SIZE);
+    }
+
+    /**
+     * @param pageSize the number of books the worker returns per response of a listing
+     */
+    CalibreDBWorker(List<String> command, int pageSize) {
+        this.command = List.copyOf(command);
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Extracts the worker script bundled with the application, so it can be passed to {@code calibre-debug}.
+     */
+    public static Path extractWorkerScript() throws IOException {
+        Path script = Files.createTempFile("calibre_worker", ".py");
+        script.toFile().deleteOnExit();
+        try (InputStream input = CalibreDBWorker.class.getResourceAsStream(WORKER_SCRIPT)) {
+            if (input == null) {
+                throw new IOException("Worker script " + WORKER_SCRIPT + " not found");
+            }
+            Files.copy(input, script, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return script;
+    }
+
+    @Override
+    public synchronized Stream<Book> streamBooks(BookQuery query) throws DataAccessException {
+        if (listing != null) {
+            // The worker keeps a single listing
+            throw new IllegalStateException("The previous listing of books must be closed first");
+        }
+        WorkerBooks workerBooks = new WorkerBooks(query.getModifiedSince());
+        workerBooks.readPage(writer -> {
+            writer.name("op").value("list");
+            writer.name("limit").value(pageSize);
+            String search = query.toCalibreSearch();
+            if (search != null) {
+                writer.name("search").value(search);
+            }
+        });
+        listing = workerBooks;
+        return StreamSupport.stream(workerBooks, false).onClose(workerBooks::close);
+    }
+
+    @Override
+    public void deleteReadOrderCustomField(int bookId) throws DataAccessException {
+        applyUpdates(List.of(new BookUpdate(bookId).setDeleteReadOrder(true)));
+    }
+
+    @Override
+    public void setReadOrderCustomField(int bookId, String readOrder) throws DataAccessException {
+        applyUpdates(List.of(new BookUpdate(bookId).setReadOrder(readOrder)));
+    }
+
+    @Override
+    public void replaceBookTags(int bookId, List<String> tagsList) throws DataAccessException {
+        applyUpdates(List.of(new BookUpdate(bookId).setTags(tagsList)));
+    }
+
+    @Override
+    public void updateBookTitle(int bookId, String title) throws DataAccessException {
+        applyUpdates(List.of(new BookUpdate(bookId).setTitle(title)));
+    }
+
+    /**
+     * Sends all the updates in a single request, the worker writes each field for all the books at once.
+     */
+    @Override
+    public synchronized void applyUpdates(List<BookUpdate> updates) throws DataAccessException {
+        try {
+            sendRequest(writer -> {
+                writer.name("op").value("apply");
+                writer.name("updates").beginArray();
+                for (BookUpdate update : updates) {
+                    writer.beginObject();
+                    writer.name("id").value(update.getBookId());
+                    if (update.getTitle() != null) {
+                        writer.name("title").value(update.getTitle());
+                    }
+                    if (update.getTags() != null) {
+                        writer.name("tags").beginArray();
+                        for (String tag : update.getTags()) {
+                            if (!tag.trim().isEmpty()) {
+                                writer.value(tag.trim());
+                            }
+                        }
+                        writer.endArray();
+                    }
+                    if (update.isDeleteReadOrder()) {
+                        writer.name("delete_readorder").value(true);
+                    }
+                    if (update.getReadOrder() != null) {
+                        writer.name("readorder").value(update.getReadOrder());
+                    }
+                    writer.endObject();
+                }
+                writer.endArray();
+            });
+            responses.beginObject();
+            String name = responses.nextName();
+            if (!name.equals("updated")) {
+                throw new DataAccessException("Error updating books.\n" + readError(name));
+            }
+            responses.skipValue();
+            responses.endObject();
+        } catch (IOException | JsonParseException e) {
+            throw workerFailure("Error updating books", e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (process == null) {
+            return;
+        }
+        try {
+            requests.write("{\"op\": \"quit\"}\n");
+            requests.close();
+            if (!process.waitFor(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Calibre worker did not stop, killing it");
+            }
+        } catch (IOException e) {
+            logger.debug("Error stopping Calibre worker", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * @return the number of worker processes started so far
+     */
+    public int getProcessCount() {
+        return processCount;
+    }
+
+    /**
+     * @return the number of bytes read from the responses of the worker so far
+     */
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    private void sendRequest(RequestBody body) throws IOException {
+        ensureStarted();
+        StringWriter line = new StringWriter();
+        JsonWriter writer = new JsonWriter(line);
+        writer.beginObject();
+        body.write(writer);
+        writer.endObject();
+        writer.close();
+        requests.write(line.toString());
+        requests.write('\n');
+        requests.flush();
+    }
+
+    private void ensureStarted() throws IOException {
+        if (process != null && process.isAlive()) {
+            return;
+        }
+        if (process != null) {
+            logger.warn("Calibre worker exited with code {}, starting it again", process.exitValue());
+            stop();
+        }
+        errorFile = Files.createTempFile("calibre_worker", ".err");
+        process = new ProcessBuilder(command).redirectError(errorFile.toFile()).start();
+        processCount++;
+        logger.debug("Started Calibre worker: {}", String.join(" ", command));
+        requests = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        responses = new JsonReader(new InputStreamReader(new CountingInputStream(process.getInputStream(), bytesRead), StandardCharsets.UTF_8));
+        // The responses are a sequence of JSON values
+        responses.setLenient(true);
+    }
+
+    private String readError(String name) throws IOException {
+        String message = name.equals("error") ? responses.nextString() : "Unexpected response: " + name;
+        while (responses.hasNext()) {
+            responses.skipValue();
+        }
+        responses.endObject();
+        return message;
+    }
+
+    /**
+     * The protocol cannot be trusted after an I/O error, so the worker is stopped and started again on next use.
+     */
+    private DataAccessException workerFailure(String message, Exception cause) {
+        String errors = "";
+        try {
+            if (errorFile != null && Files.exists(errorFile)) {
+                errors = Files.readString(errorFile, StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            logger.debug("Error reading worker stderr", e);
+        }
+        stop();
+        return new DataAccessException(message + ".\n" + (errors.isBlank() ? cause.getMessage() : errors), cause);
+    }
+
+    private void stop() {
+        listing = null;
+        if (process != null) {
+            process.destroy();
+            process = null;
+        }
+        try {
+            if (errorFile != null) {
+                Files.deleteIfExists(errorFile);
+            }
+        } catch (IOException e) {
+            logger.debug("Error deleting worker stderr file", e);
+        }
+    }
+
+    /**
+     * Books of a listing, read a page at a time. The worker keeps the ids of the books left to list, and sends the
+     * next page when asked for it, so the requests in between are served as usual.
+     */
+    private class WorkerBooks extends Spliterators.AbstractSpliterator<Book> {
+        private final Instant modifiedSince;
+        private final Deque<Book> page = new ArrayDeque<>();
+        private boolean lastPage;
+
+        WorkerBooks(Instant modifiedSince) {
+            super(Long.MAX_VALUE, ORDERED | NONNULL);
+            this.modifiedSince = modifiedSince;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Book> action) {
+            Book book;
+            synchronized (CalibreDBWorker.this) {
+                // Books older than modifiedSince are skipped, so a page may have none to return
+                while (page.isEmpty() && !lastPage && listing == this) {
+                    try {
+                        readPage(writer -> writer.name("op").value("next"));
+                    } catch (DataAccessException e) {
+                        throw new UncheckedDataAccessException(e);
+                    }
+                }
+                if (page.isEmpty() && !lastPage && listing != this) {
+                    throw new UncheckedDataAccessException(new DataAccessException("Error retrieving books.\nThe Calibre worker stopped before the end of the listing"));
+                }
+                book = page.poll();
+            }
+            if (book == null) {
+                return false;
+            }
+            action.accept(book);
+            return true;
+        }
+
+        /**
+         * Sends the request and reads the whole page it returns.
+         */
+        void readPage(RequestBody request) throws DataAccessException {
+            try {
+                sendRequest(request);
+                responses.beginObject();
+                String name = responses.nextName();
+                if (!name.equals("books")) {
+                    throw new DataAccessException("Error retrieving books.\n" + readError(name));
+                }
+                BookJsonReader reader = new BookJsonReader(responses, modifiedSince, tagDictionary);
+                for (Book book = reader.next(); book != null; book = reader.next()) {
+                    page.add(book);
+                }
+                lastPage = true;
+                while (responses.hasNext()) {
+                    if (responses.nextName().equals("more")) {
+                        lastPage = !responses.nextBoolean();
+                    } else {
+                        responses.skipValue();
+                    }
+                }
+                responses.endObject();
+            } catch (IOException | JsonParseException e) {
+                throw workerFailure("Error retrieving books", e);
+            }
+        }
+
+        void close() {
+            synchronized (CalibreDBWorker.this) {
+                page.clear();
+                // The pages left are never asked for, the next listing replaces them in the worker
+                if (listing == this) {
+                    listing = null;
+                }
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface RequestBody {
+        void write(JsonWriter writer) throws IOException;
+    }
+}
@@ -0,0 +1,77 @@
+package calibreautomations.persistence;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the output of a process and kills the process if a read waits longer than the timeout for it to send
+ * anything. Only the time spent waiting in a read counts, so a consumer that takes its time between reads never gets
+ * the process killed. Once killed, reads end as if the output had ended and {@link #isTimedOut()} tells them apart.
+ */
+class IdleTimeoutInputStream extends FilterInputStream {
+    private static final long NOT_READING = Long.MIN_VALUE;
+
+    private final Process process;
+    private final long timeoutNanos;
+    private final ScheduledFuture<?> watchdog;
+    private volatile long readingSince = NOT_READING;
+    private volatile boolean timedOut;
+
+    IdleTimeoutInputStream(InputStream in, Process process, Duration timeout) {
+        super(in);
+        this.process = process;
+        this.timeoutNanos = timeout.toNanos();
+        // Checked a few times per timeout, so a stuck process lives at most a tenth longer than the timeout
+        long period = Math.max(100, Math.min(timeout.toMillis() / 10, 10_000));
+        this.watchdog = ProcessRunner.WATCHDOG.scheduleAtFixedRate(this::killIfIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void killIfIdle() {
+        long since = readingSince;
+        if (since != NOT_READING && System.nanoTime() - since > timeoutNanos && !timedOut) {
+            timedOut = true;
+            // The process goes first, so it cannot carry on once its children are gone
+            List<ProcessHandle> descendants = process.descendants().toList();
+            process.destroyForcibly();
+            descendants.forEach(ProcessHandle::destroyForcibly);
+        }
+    }
+
+    /**
+     * @return whether the process was killed because it sent nothing for longer than the timeout
+     */
+    boolean isTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public int read() throws IOException {
+        readingSince = System.nanoTime();
+        try {
+            return super.read();
+        } finally {
+            readingSince = NOT_READING;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        readingSince = System.nanoTime();
+        try {
+            return super.read(buffer, offset, length);
+        } finally {
+            readingSince = NOT_READING;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchdog.cancel(false);
+        super.close();
+    }
+}
@@ -0,0 +1,27 @@
+package calibreautomations.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Names of the files kept outside a library for it, e.g. the listing cache, the undo journals and the hash index.
+ */
+public final class LibraryFiles {
+
+    private LibraryFiles() {
+    }
+
+    /**
+     * @return {@code library-} followed by a hash of the library path, so the names are valid on every file system
+     */
+    public static String name(String calibreLibraryPath) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(calibreLibraryPath.getBytes(StandardCharsets.UTF_8));
+            return "library-" + HexFormat.of().formatHex(digest, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import calibreautomations.TagDictionary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The books of a library saved in a compact binary file, with the state of {@code metadata.db} they were read from.
+ * <p>
+ * The file holds the distinct tags once, and each book refers to them by index:
+ * <pre>
+ * magic, version, library version (4 longs), tag count, tags, book count,
+ * books (id, title, readorder or empty, tag count, tag indexes)
+ * </pre>
+ */
+class LibrarySnapshot {
+
+    private static final int MAGIC = 0x43414C53; // "CALS"
+    private static final int VERSION = 1;
+
+    private final LibraryVersion key;
+    private final List<Book> books;
+
+    LibrarySnapshot(LibraryVersion key, List<Book> books) {
+        this.key = key;
+        this.books = books;
+    }
+
+    LibraryVersion getKey() {
+        return key;
+    }
+
+    List<Book> getBooks() {
+        return books;
+    }
+
+    /**
+     * @return the snapshot in the file, or null if it does not exist
+     * @throws IOException if the file cannot be read or is not a snapshot of this version
+     */
+    static LibrarySnapshot read(Path file, TagDictionary tagDictionary) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a library snapshot of version " + VERSION + ": " + file);
+            }
+            LibraryVersion key = new LibraryVersion(input.readLong(), input.readLong(), input.readLong(), input.readLong());
+            String[] tags = new String[input.readInt()];
+            for (int i = 0; i < tags.length; i++) {
+                tags[i] = readString(input);
+            }
+            int bookCount = input.readInt();
+            List<Book> books = new ArrayList<>(bookCount);
+            List<String> bookTags = new ArrayList<>();
+            for (int i = 0; i < bookCount; i++) {
+                int id = input.readInt();
+                String title = readString(input);
+                String readOrder = readString(input);
+                int tagCount = input.readInt();
+                bookTags.clear();
+                for (int j = 0; j < tagCount; j++) {
+                    bookTags.add(tags[input.readInt()]);
+                }
+                books.add(new Book(id, title, bookTags, readOrder.isEmpty() ? null : readOrder, tagDictionary));
+            }
+            return new LibrarySnapshot(key, books);
+        }
+    }
+
+    /**
+     * Replaces the file in one step, so a crash never leaves a truncated snapshot.
+     */
+    void write(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Map<String, Integer> tagIndexes = new HashMap<>();
+        List<String> tags = new ArrayList<>();
+        for (Book book : books) {
+            for (String tag : book.getTagList()) {
+                if (tagIndexes.putIfAbsent(tag, tags.size()) == null) {
+                    tags.add(tag);
+                }
+            }
+        }
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(key.size());
+            output.writeLong(key.modified());
+            output.writeLong(key.journalSize());
+            output.writeLong(key.journalModified());
+            output.writeInt(tags.size());
+            for (String tag : tags) {
+                writeString(output, tag);
+            }
+            output.writeInt(books.size());
+            for (Book book : books) {
+                output.writeInt(book.getId());
+                writeString(output, book.getTitle());
+                String readOrder = book.getReadOrderFromCustomField();
+                writeString(output, Book.NO_READORDER.equals(readOrder) ? "" : readOrder);
+                List<String> bookTags = book.getTagList();
+                output.writeInt(bookTags.size());
+                for (String tag : bookTags) {
+                    output.writeInt(tagIndexes.get(tag));
+                }
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // DataOutputStream.writeUTF is limited to 64 KB
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,35 @@
+package calibreautomations.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Identifies the state of a local library: size and modification time of {@code metadata.db} and of its journal or
+ * write-ahead log, which change on every write to the database.
+ */
+public record LibraryVersion(long size, long modified, long journalSize, long journalModified) {
+
+    /**
+     * @return the current state of the database, or null if it is not a local file
+     */
+    public static LibraryVersion of(Path metadataDb) throws IOException {
+        if (!Files.isRegularFile(metadataDb)) {
+            return null;
+        }
+        BasicFileAttributes attributes = Files.readAttributes(metadataDb, BasicFileAttributes.class);
+        long journalSize = 0;
+        long journalModified = 0;
+        for (String suffix : new String[]{"-wal", "-journal"}) {
+            Path journal = metadataDb.resolveSibling(metadataDb.getFileName() + suffix);
+            if (Files.isRegularFile(journal)) {
+                BasicFileAttributes journalAttributes = Files.readAttributes(journal, BasicFileAttributes.class);
+                journalSize += journalAttributes.size();
+                journalModified = Math.max(journalModified, journalAttributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+            }
+        }
+        return new LibraryVersion(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), journalSize, journalModified);
+    }
+}
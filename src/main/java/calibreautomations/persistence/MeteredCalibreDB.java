@@ -0,0 +1,172 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import calibreautomations.metrics.RunMetrics;
+import calibreautomations.metrics.Timer;
+
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Times every call to the wrapped {@link CalibreDB} and counts the books read and written, whatever the backend.
+ * <p>
+ * Books are read while they are consumed, so opening a listing ({@code calibredb.streamBooks}) and reading each book
+ * from it ({@code calibredb.readBook}) are timed separately; the latter does not include the time spent by the
+ * consumer of the stream.
+ */
+public class MeteredCalibreDB implements CalibreDB {
+
+    private final CalibreDB delegate;
+    private final RunMetrics metrics;
+    private final Timer streamBooksTimer;
+    private final Timer readBookTimer;
+    private final LongAdder booksRead;
+
+    public MeteredCalibreDB(CalibreDB delegate, RunMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.streamBooksTimer = metrics.timer("calibredb.streamBooks");
+        this.readBookTimer = metrics.timer("calibredb.readBook");
+        this.booksRead = metrics.counter("books.read");
+    }
+
+    @Override
+    public Stream<Book> streamBooks(BookQuery query) throws DataAccessException {
+        long start = System.nanoTime();
+        Stream<Book> books;
+        try {
+            books = delegate.streamBooks(query);
+        } catch (DataAccessException e) {
+            metrics.increment("calibredb.errors");
+            throw e;
+        } finally {
+            streamBooksTimer.recordSince(start);
+        }
+        return StreamSupport.stream(new TimedBooks(books.spliterator()), false).onClose(books::close);
+    }
+
+    @Override
+    public void deleteReadOrderCustomField(int bookId) throws DataAccessException {
+        long start = System.nanoTime();
+        try {
+            delegate.deleteReadOrderCustomField(bookId);
+            metrics.increment("books.written");
+        } catch (DataAccessException e) {
+            metrics.increment("calibredb.errors");
+            throw e;
+        } finally {
+            metrics.timer("calibredb.deleteReadOrderCustomField").recordSince(start);
+        }
+    }
+
+    @Override
+    public void setReadOrderCustomField(int bookId, String readOrder) throws DataAccessException {
+        long start = System.nanoTime();
+        try {
+            delegate.setReadOrderCustomField(bookId, readOrder);
+            metrics.increment("books.written");
+        } catch (DataAccessException e) {
+            metrics.increment("calibredb.errors");
+            throw e;
+        } finally {
+            metrics.timer("calibredb.setReadOrderCustomField").recordSince(start);
+        }
+    }
+
+    @Override
+    public void replaceBookTags(int bookId, List<String> tagsList) throws DataAccessException {
+        long start = System.nanoTime();
+        try {
+            delegate.replaceBookTags(bookId, tagsList);
+            metrics.increment("books.written");
+        } catch (DataAccessException e) {
+            metrics.increment("calibredb.errors");
+            throw e;
+        } finally {
+            metrics.timer("calibredb.replaceBookTags").recordSince(start);
+        }
+    }
+
+    @Override
+    public void updateBookTitle(int bookId, String title) throws DataAccessException {
+        long start = System.nanoTime();
+        try {
+            delegate.updateBookTitle(bookId, title);
+            metrics.increment("books.written");
+        } catch (DataAccessException e) {
+            metrics.increment("calibredb.errors");
+            throw e;
+        } finally {
+            metrics.timer("calibredb.updateBookTitle").recordSince(start);
+        }
+    }
+
+    @Override
+    public void applyUpdates(List<BookUpdate> updates) throws DataAccessException {
+        long start = System.nanoTime();
+        try {
+            delegate.applyUpdates(updates);
+            metrics.add("books.written", updates.size());
+        } catch (DataAccessException e) {
+            metrics.increment("calibredb.errors");
+            throw e;
+        } finally {
+            metrics.timer("calibredb.applyUpdates").recordSince(start);
+        }
+    }
+
+    @Override
+    public void flush() throws DataAccessException {
+        long start = System.nanoTime();
+        try {
+            delegate.flush();
+        } finally {
+            metrics.timer("calibredb.flush").recordSince(start);
+        }
+    }
+
+    @Override
+    public void close() throws DataAccessException {
+        delegate.close();
+    }
+
+    /**
+     * Times how long the backend takes to produce each book.
+     */
+    private class TimedBooks extends Spliterators.AbstractSpliterator<Book> {
+        private final Spliterator<Book> books;
+        private Book next;
+
+        TimedBooks(Spliterator<Book> books) {
+            super(books.estimateSize(), books.characteristics() & (ORDERED | NONNULL | DISTINCT));
+            this.books = books;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Book> action) {
+            long start = System.nanoTime();
+            boolean advanced;
+            try {
+                advanced = books.tryAdvance(book -> next = book);
+            } catch (UncheckedDataAccessException e) {
+                metrics.increment("calibredb.errors");
+                throw e;
+            } finally {
+                readBookTimer.recordSince(start);
+            }
+            if (!advanced) {
+                return false;
+            }
+            booksRead.increment();
+            Book book = next;
+            next = null;
+            action.accept(book);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package calibreautomations.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a command to completion. stdout is read on the calling thread while stderr is drained on another thread, so
+ * the process never blocks on a full pipe, and both are decoded as UTF-8. The process is killed if it does not finish
+ * within the timeout.
+ */
+class ProcessRunner {
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    // Daemon threads, so a stream that never closes cannot keep the application running
+    private static final ExecutorService STDERR_READERS = Executors.newCachedThreadPool(daemonThreads("process-stderr"));
+    // Also watches the output of calibredb list, see IdleTimeoutInputStream
+    static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(daemonThreads("process-watchdog"));
+
+    private final Duration timeout;
+    private final LongAdder bytesRead;
+
+    /**
+     * @param bytesRead counts the bytes read from stdout
+     */
+    ProcessRunner(Duration timeout, LongAdder bytesRead) {
+        this.timeout = timeout;
+        this.bytesRead = bytesRead;
+    }
+
+    Result run(List<String> command) throws IOException, InterruptedException, DataAccessException {
+        Process process = new ProcessBuilder(command).start();
+        // Nothing is sent to the command, closing stdin makes sure it never waits for input
+        process.getOutputStream().close();
+        Future<byte[]> errors = STDERR_READERS.submit(() -> readAll(process.getErrorStream(), null));
+        AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> watchdog = WATCHDOG.schedule(() -> {
+            timedOut.set(true);
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        try {
+            byte[] output = readAll(process.getInputStream(), bytesRead);
+            byte[] errorOutput = errors.get();
+            int exitCode = process.waitFor();
+            if (timedOut.get()) {
+                throw timeoutFailure(command);
+            }
+            return new Result(exitCode, new String(output, StandardCharsets.UTF_8), new String(errorOutput, StandardCharsets.UTF_8));
+        } catch (IOException | ExecutionException e) {
+            // Killing the process may also break the pipes
+            if (timedOut.get()) {
+                throw timeoutFailure(command);
+            }
+            if (e instanceof ExecutionException) {
+                throw new IOException("Error reading stderr of " + String.join(" ", command), e.getCause());
+            }
+            throw (IOException) e;
+        } finally {
+            watchdog.cancel(false);
+            if (process.isAlive()) {
+                // Only after an error or an interruption
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private DataAccessException timeoutFailure(List<String> command) {
+        return new DataAccessException("Command did not finish in " + timeout.toMillis() + " ms and was killed: " + String.join(" ", command));
+    }
+
+    private static byte[] readAll(InputStream stream, LongAdder counter) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+        try (InputStream input = counter != null ? new CountingInputStream(stream, counter) : stream) {
+            input.transferTo(buffer);
+        }
+        return buffer.toByteArray();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    record Result(int exitCode, String output, String errors) {
+    }
+}
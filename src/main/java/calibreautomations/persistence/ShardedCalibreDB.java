@@ -0,0 +1,192 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Splits the listing of the wrapped {@link CalibreDB} into ranges of book ids that are read at the same time, for
+ * backends where a listing is a single-threaded process, such as {@code calibredb list}.
+ * <p>
+ * The shards are returned one after the other, so the books keep the id order; a backend that returns the books of a
+ * range in another order fails the listing instead of breaking that order. Each shard reads at most
+ * {@value #READ_AHEAD} books ahead of the one being returned, so the library is never held in memory.
+ */
+public class ShardedCalibreDB implements CalibreDB {
+
+    private static final Logger logger = LoggerFactory.getLogger(ShardedCalibreDB.class);
+    static final int READ_AHEAD = 1024;
+    // Marks the end of a shard in its queue
+    private static final Book END = new Book(0, "", "", null);
+
+    private final CalibreDB delegate;
+    private final int shardCount;
+
+    /**
+     * @param shardCount number of id ranges listed at the same time
+     */
+    public ShardedCalibreDB(CalibreDB delegate, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+        }
+        this.delegate = delegate;
+        this.shardCount = shardCount;
+    }
+
+    @Override
+    public Stream<Book> streamBooks(BookQuery query) throws DataAccessException {
+        if (shardCount == 1 || query.hasIdRange()) {
+            return delegate.streamBooks(query);
+        }
+        int maxId = delegate.getMaxBookId();
+        if (maxId < shardCount) {
+            return delegate.streamBooks(query);
+        }
+        // Ranges of the same width, the first and the last one open so books added meanwhile are not missed
+        int width = (maxId + shardCount - 1) / shardCount;
+        List<BookQuery> shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            int fromId = i == 0 ? 0 : 1 + i * width;
+            int toId = i == shardCount - 1 ? Integer.MAX_VALUE : 1 + (i + 1) * width;
+            shards.add(query.withIds(fromId, toId));
+        }
+        logger.debug("Listing {} shards of {} ids", shardCount, width);
+        ShardedBooks books = new ShardedBooks(shards);
+        return StreamSupport.stream(books, false).onClose(books::close);
+    }
+
+    @Override
+    public int getMaxBookId() throws DataAccessException {
+        return delegate.getMaxBookId();
+    }
+
+    @Override
+    public void deleteReadOrderCustomField(int bookId) throws DataAccessException {
+        delegate.deleteReadOrderCustomField(bookId);
+    }
+
+    @Override
+    public void setReadOrderCustomField(int bookId, String readOrder) throws DataAccessException {
+        delegate.setReadOrderCustomField(bookId, readOrder);
+    }
+
+    @Override
+    public void replaceBookTags(int bookId, List<String> tagsList) throws DataAccessException {
+        delegate.replaceBookTags(bookId, tagsList);
+    }
+
+    @Override
+    public void updateBookTitle(int bookId, String title) throws DataAccessException {
+        delegate.updateBookTitle(bookId, title);
+    }
+
+    @Override
+    public void applyUpdates(List<BookUpdate> updates) throws DataAccessException {
+        delegate.applyUpdates(updates);
+    }
+
+    @Override
+    public void flush() throws DataAccessException {
+        delegate.flush();
+    }
+
+    @Override
+    public void close() throws DataAccessException {
+        delegate.close();
+    }
+
+    /**
+     * A listing in progress on one thread per shard.
+     */
+    private class ShardedBooks extends Spliterators.AbstractSpliterator<Book> {
+        private final List<Shard> shards = new ArrayList<>();
+        private final ExecutorService executor;
+        private int current;
+        private int lastId = Integer.MIN_VALUE;
+
+        ShardedBooks(List<BookQuery> queries) {
+            super(Long.MAX_VALUE, ORDERED | NONNULL);
+            executor = Executors.newFixedThreadPool(queries.size());
+            for (BookQuery query : queries) {
+                Shard shard = new Shard(query);
+                shards.add(shard);
+                executor.execute(() -> list(shard));
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Book> action) {
+            while (current < shards.size()) {
+                Shard shard = shards.get(current);
+                Book book;
+                try {
+                    book = shard.books.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UncheckedDataAccessException(new DataAccessException("Interrupted while listing books", e));
+                }
+                if (book != END) {
+                    if (book.getId() <= lastId) {
+                        throw new UncheckedDataAccessException(new DataAccessException(
+                                "Books not listed in id order: " + book.getId() + " after " + lastId + " in " + shard.query));
+                    }
+                    lastId = book.getId();
+                    action.accept(book);
+                    return true;
+                }
+                if (shard.failure != null) {
+                    throw new UncheckedDataAccessException(shard.failure);
+                }
+                current++;
+            }
+            return false;
+        }
+
+        void close() {
+            // Interrupts the shards still reading, which close their listings
+            executor.shutdownNow();
+        }
+    }
+
+    private void list(Shard shard) {
+        try {
+            try (Stream<Book> books = delegate.streamBooks(shard.query)) {
+                Iterator<Book> iterator = books.iterator();
+                while (iterator.hasNext()) {
+                    shard.books.put(iterator.next());
+                }
+            } catch (DataAccessException e) {
+                shard.failure = e;
+            } catch (UncheckedDataAccessException e) {
+                shard.failure = e.getCause();
+            } catch (RuntimeException e) {
+                shard.failure = new DataAccessException("Error retrieving books.\n" + e.getMessage(), e);
+            }
+            shard.books.put(END);
+        } catch (InterruptedException e) {
+            logger.debug("Listing of {} cancelled", shard.query);
+        }
+    }
+
+    private static class Shard {
+        private final BookQuery query;
+        private final BlockingQueue<Book> books = new ArrayBlockingQueue<>(READ_AHEAD);
+        private volatile DataAccessException failure;
+
+        Shard(BookQuery query) {
+            this.query = query;
+        }
+    }
+}
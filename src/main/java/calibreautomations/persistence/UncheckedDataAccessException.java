@@ -0,0 +1,18 @@
+package calibreautomations.persistence;
+
+/**
+ * Wraps a {@link DataAccessException} thrown while a {@link java.util.stream.Stream} of books is being consumed,
+ * where checked exceptions cannot be thrown.
+ */
+public class UncheckedDataAccessException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public UncheckedDataAccessException(DataAccessException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized DataAccessException getCause() {
+        return (DataAccessException) super.getCause();
+    }
+}
@@ -0,0 +1,129 @@
+package calibreautomations.persistence;
+
+import calibreautomations.PlanWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the values the books of a library had before each run changed them, one file per run, as a plan that
+ * restores them ({@link PlanWriter} format). Every batch is appended and synced to disk as soon as its transaction
+ * commits, and batches that roll back are never appended, so undoing a run only restores the books it changed.
+ * <p>
+ * Only the newest {@code keep} journals of each library are kept. A journal that has been undone is renamed with
+ * the {@value #UNDONE_SUFFIX} suffix, so the next undo goes one run further back.
+ */
+public class UndoJournal implements Closeable {
+
+    /**
+     * Selects the journal of the newest run that has not been undone yet.
+     */
+    public static final String LAST = "LAST";
+    public static final String UNDONE_SUFFIX = ".undone";
+
+    private static final Logger logger = LoggerFactory.getLogger(UndoJournal.class);
+    private static final String PREFIX = "undo-";
+    private static final String SUFFIX = ".jsonl";
+    private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSSSSS");
+
+    private final Path directory;
+    private final int keep;
+    private FileChannel channel;
+    private PlanWriter writer;
+
+    /**
+     * @param directory where the journals of a single library are kept, see {@link #directoryFor}
+     */
+    public UndoJournal(Path directory, int keep) {
+        if (keep < 1) {
+            throw new IllegalArgumentException("At least one journal must be kept: " + keep);
+        }
+        this.directory = directory;
+        this.keep = keep;
+    }
+
+    public static Path directoryFor(Path undoDirectory, String calibreLibraryPath) {
+        return undoDirectory.resolve(LibraryFiles.name(calibreLibraryPath));
+    }
+
+    /**
+     * Appends the updates that restore the books of a batch and syncs them to disk.
+     */
+    public synchronized void record(List<BookUpdate> restores) throws IOException {
+        if (writer == null) {
+            open();
+        }
+        for (BookUpdate restore : restores) {
+            writer.write(restore);
+        }
+        writer.flush();
+        channel.force(false);
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve(PREFIX + LocalDateTime.now().format(FILE_TIMESTAMP) + SUFFIX);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        writer = new PlanWriter(new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8)));
+        logger.debug("Recording the previous values of the changed books in {}", file);
+        prune();
+    }
+
+    private void prune() throws IOException {
+        List<Path> journals = journals(directory, true);
+        for (Path journal : journals.subList(0, Math.max(0, journals.size() - keep))) {
+            Files.deleteIfExists(journal);
+        }
+    }
+
+    /**
+     * @return the journal of the newest run that has not been undone yet, or null if there is none
+     */
+    public static Path last(Path directory) throws IOException {
+        List<Path> journals = journals(directory, false);
+        return journals.isEmpty() ? null : journals.get(journals.size() - 1);
+    }
+
+    public static void markUndone(Path journal) throws IOException {
+        Files.move(journal, journal.resolveSibling(journal.getFileName() + UNDONE_SUFFIX));
+    }
+
+    /**
+     * @return the journals from oldest to newest, the timestamps in their names sort them
+     */
+    private static List<Path> journals(Path directory, boolean includeUndone) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> {
+                        String name = file.getFileName().toString();
+                        return name.startsWith(PREFIX) && (name.endsWith(SUFFIX) || includeUndone && name.endsWith(SUFFIX + UNDONE_SUFFIX));
+                    })
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+}
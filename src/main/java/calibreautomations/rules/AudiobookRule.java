@@ -0,0 +1,49 @@
+package calibreautomations.rules;
+
+import calibreautomations.Book;
+import calibreautomations.persistence.BookFilter;
+
+import java.util.List;
+
+/**
+ * Adds "(audiobook)" to the title of the books with the {@code format:audiobook} tag, before the subtitle if there is
+ * one, and removes it from the other books.
+ */
+public class AudiobookRule implements Rule {
+    public static final String NAME = "audiobook";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Books to mark as audiobooks or with the marker to remove.
+     */
+    @Override
+    public BookFilter getCandidates() {
+        return BookFilter.anyOf(List.of(BookFilter.hasTag(Book.AUDIOBOOK_TAG), BookFilter.titleContains(TitleRewriter.AUDIOBOOK_MARKER)));
+    }
+
+    @Override
+    public boolean evaluate(Book book, BookChanges changes) {
+        String currentTitle = changes.getTitle();
+        boolean itemUpdated = false;
+        if (book.isAudioBookFromTags()) {
+            if (!TitleRewriter.hasAudiobookMarker(currentTitle)) {
+                String title = TitleRewriter.addAudiobookMarker(currentTitle);
+                changes.report("[add audiobook to title]", String.format("for \"%s\" to \"%s\"", currentTitle, title));
+                changes.setTitle(title);
+                itemUpdated = true;
+            }
+        }
+        // Custom field audiobook takes precedence over tags
+        else if (TitleRewriter.hasAudiobookMarker(currentTitle)) {
+            String title = TitleRewriter.removeAudiobookMarker(currentTitle);
+            changes.report("[remove audiobook from title]", String.format("for \"%s\" to \"%s\"", currentTitle, title));
+            changes.setTitle(title);
+            itemUpdated = true;
+        }
+        return itemUpdated;
+    }
+}
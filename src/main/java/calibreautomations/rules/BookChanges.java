@@ -0,0 +1,101 @@
+package calibreautomations.rules;
+
+import calibreautomations.Book;
+import calibreautomations.persistence.BookUpdate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The changes all the rules propose for a book, merged into a single {@link BookUpdate}, and the report of what
+ * they changed.
+ */
+public class BookChanges {
+    private final Book book;
+    private final BookUpdate update;
+    private final StringBuilder report = new StringBuilder();
+    private final List<String> changedBy = new ArrayList<>(1);
+
+    public BookChanges(Book book) {
+        this.book = book;
+        this.update = new BookUpdate(book.getId());
+    }
+
+    public Book getBook() {
+        return book;
+    }
+
+    /**
+     * @return the title with the changes proposed so far
+     */
+    public String getTitle() {
+        return update.getTitle() != null ? update.getTitle() : book.getTitle();
+    }
+
+    public BookChanges setTitle(String title) {
+        update.setTitle(title);
+        return this;
+    }
+
+    /**
+     * @return the tags with the changes proposed so far
+     */
+    public List<String> getTags() {
+        return update.getTags() != null ? update.getTags() : book.getTagList();
+    }
+
+    public BookChanges setTags(List<String> tags) {
+        update.setTags(tags);
+        return this;
+    }
+
+    /**
+     * @return the values of the {@code readorder:} tags with the changes proposed so far
+     */
+    public List<String> getReadOrderTags() {
+        if (update.getTags() == null) {
+            return book.getReadOrderTags();
+        }
+        List<String> values = new ArrayList<>(1);
+        for (String tag : update.getTags()) {
+            if (tag.startsWith(Book.READORDER_TAG_PREFIX)) {
+                values.add(tag.substring(Book.READORDER_TAG_PREFIX.length()));
+            }
+        }
+        return values;
+    }
+
+    public BookChanges deleteReadOrder() {
+        update.setDeleteReadOrder(true);
+        return this;
+    }
+
+    /**
+     * Adds a line to the report, e.g. {@code [add readorder tag]          for "Title"}.
+     */
+    public void report(String action, String details) {
+        report.append(String.format("%-30s %s%n", action, details));
+    }
+
+    public String getReport() {
+        return report.toString();
+    }
+
+    /**
+     * @return the changes to write, empty if no rule changed the book
+     */
+    public BookUpdate getUpdate() {
+        return update;
+    }
+
+    /**
+     * @return the names of the rules that changed the book
+     */
+    public List<String> getChangedBy() {
+        return changedBy;
+    }
+
+    void changedBy(Rule rule) {
+        changedBy.add(rule.getName());
+    }
+}
@@ -0,0 +1,90 @@
+package calibreautomations.rules;
+
+import calibreautomations.Book;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Groups the editions of the same work, the audiobook and the ebook, by a normalized key of their titles.
+ * <p>
+ * The key is the title without the "(audiobook)" marker, wherever {@link TitleRewriter} puts it, accents,
+ * punctuation or case. The subtitle is kept, as works sharing a main title, such as the volumes of a series, are
+ * different works. Books are grouped with one hash lookup each, so a library is paired in a
+ * single pass instead of comparing every pair of titles.
+ */
+public class EditionIndex {
+    private final Map<String, List<Book>> booksByTitle = new LinkedHashMap<>();
+
+    /**
+     * {@code "The Hobbit (audiobook): There and Back Again"} and {@code "The hobbit: there and back again"} both give
+     * {@code "the hobbit there and back again"}.
+     */
+    public static String titleKey(String title) {
+        String decomposed = Normalizer.normalize(TitleRewriter.removeAudiobookMarker(title), Normalizer.Form.NFKD);
+        StringBuilder key = new StringBuilder(decomposed.length());
+        boolean space = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && !key.isEmpty()) {
+                    key.append(' ');
+                }
+                key.append(Character.toLowerCase(c));
+                space = false;
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                // Punctuation and spaces separate words, accents are dropped
+                space = true;
+            }
+        }
+        return key.toString();
+    }
+
+    public void add(Book book) {
+        String key = titleKey(book.getTitle());
+        if (!key.isEmpty()) {
+            booksByTitle.computeIfAbsent(key, k -> new ArrayList<>(2)).add(book);
+        }
+    }
+
+    /**
+     * @return the groups with an audiobook and at least one other edition, in the order their first book was added
+     */
+    public List<List<Book>> getEditions() {
+        List<List<Book>> editions = new ArrayList<>();
+        for (List<Book> books : booksByTitle.values()) {
+            if (books.size() > 1
+                && books.stream().anyMatch(Book::isAudioBookFromTags)
+                && !books.stream().allMatch(Book::isAudioBookFromTags)) {
+                editions.add(books);
+            }
+        }
+        return editions;
+    }
+
+    /**
+     * @return the distinct readorders of the editions, without the books with none or with 0.0, which is cleared
+     */
+    public static Set<String> readOrders(List<Book> editions) {
+        Set<String> readOrders = new LinkedHashSet<>();
+        for (Book book : editions) {
+            String readOrder = book.getReadOrderFromCustomField();
+            if (!Book.NO_READORDER.equals(readOrder) && !ReadOrderIndex.isCleared(readOrder)) {
+                readOrders.add(readOrder);
+            }
+        }
+        return readOrders;
+    }
+
+    /**
+     * @return the number of distinct title keys
+     */
+    public int size() {
+        return booksByTitle.size();
+    }
+}
@@ -0,0 +1,156 @@
+package calibreautomations.rules;
+
+import calibreautomations.Book;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The books of a library sorted by the numeric value of their readorder custom field, to check that the readorders
+ * form a sequence and to renumber them.
+ * <p>
+ * Values are compared as numbers, so {@code "2"} and {@code "2.0"} are the same readorder. Books without a readorder,
+ * or with 0, which the readorder rule clears, are not indexed; values that are not numbers or are negative are kept
+ * apart.
+ * <p>
+ * Fractional readorders put a book between two others, so the sequence is made of the whole parts of the readorders:
+ * it is compact when they go 1, 2, 3... without gaps, and 1, 2, 2.5 and 3 is compact.
+ */
+public class ReadOrderIndex {
+    private final TreeMap<BigDecimal, List<Book>> booksByReadOrder = new TreeMap<>();
+    private final List<Book> invalid = new ArrayList<>();
+    private int size;
+
+    /**
+     * Integers missing from the sequence, from {@code from} to {@code to} inclusive.
+     */
+    public record Gap(long from, long to) {
+    }
+
+    /**
+     * A book whose readorder changes to {@code readOrder}.
+     */
+    public record Renumbering(Book book, String readOrder) {
+    }
+
+    /**
+     * @return the value of a readorder, or null if there is none or it is not a number
+     */
+    public static BigDecimal parse(String readOrder) {
+        if (readOrder == null || Book.NO_READORDER.equals(readOrder)) {
+            return null;
+        }
+        try {
+            return new BigDecimal(readOrder.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the readorder is 0 in any of its forms ({@code "0.0"}, {@code "0"}, {@code "0.00"}), which
+     * means it has to be cleared
+     */
+    public static boolean isCleared(String readOrder) {
+        BigDecimal value = parse(readOrder);
+        return value != null && value.signum() == 0;
+    }
+
+    public void add(Book book) {
+        String readOrder = book.getReadOrderFromCustomField();
+        if (Book.NO_READORDER.equals(readOrder)) {
+            return;
+        }
+        BigDecimal value = parse(readOrder);
+        if (value == null || value.signum() < 0) {
+            invalid.add(book);
+        } else if (value.signum() != 0) {
+            booksByReadOrder.computeIfAbsent(value, v -> new ArrayList<>(1)).add(book);
+            size++;
+        }
+    }
+
+    /**
+     * @return the number of books with a readorder
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the books whose readorder is not a number or is negative
+     */
+    public List<Book> getInvalid() {
+        return invalid;
+    }
+
+    /**
+     * @return the readorders shared by several books, in order, with their books
+     */
+    public Map<BigDecimal, List<Book>> duplicates() {
+        Map<BigDecimal, List<Book>> duplicates = new TreeMap<>();
+        booksByReadOrder.forEach((readOrder, books) -> {
+            if (books.size() > 1) {
+                duplicates.put(readOrder, books);
+            }
+        });
+        return duplicates;
+    }
+
+    /**
+     * @return the integers missing from 1 to the largest readorder
+     */
+    public List<Gap> gaps() {
+        List<Gap> gaps = new ArrayList<>();
+        long expected = 1;
+        for (BigDecimal readOrder : booksByReadOrder.keySet()) {
+            long whole = wholePart(readOrder);
+            if (whole > expected) {
+                gaps.add(new Gap(expected, whole - 1));
+            }
+            expected = Math.max(expected, whole + 1);
+        }
+        return gaps;
+    }
+
+    /**
+     * Numbers the distinct whole parts of the readorders 1, 2, 3... keeping their order, so the gaps are closed.
+     * Fractional readorders keep their fraction and move with their whole part, and those below 1 stay where they
+     * are. Books sharing a readorder keep sharing it, as there is no order between them to keep.
+     *
+     * @return the books whose readorder changes, in the order of the readorders, empty if the sequence is already
+     * compact
+     */
+    public List<Renumbering> renumber() {
+        List<Renumbering> changes = new ArrayList<>();
+        long number = 0;
+        long previousWhole = 0;
+        for (Map.Entry<BigDecimal, List<Book>> entry : booksByReadOrder.entrySet()) {
+            long whole = wholePart(entry.getKey());
+            if (whole == 0) {
+                continue;
+            }
+            if (whole != previousWhole) {
+                number++;
+                previousWhole = whole;
+            }
+            if (whole != number) {
+                BigDecimal renumbered = entry.getKey().subtract(BigDecimal.valueOf(whole - number));
+                // Calibre formats float custom fields with at least one decimal
+                String readOrder = renumbered.setScale(Math.max(1, renumbered.scale()), RoundingMode.UNNECESSARY).toPlainString();
+                for (Book book : entry.getValue()) {
+                    changes.add(new Renumbering(book, readOrder));
+                }
+            }
+        }
+        return changes;
+    }
+
+    private static long wholePart(BigDecimal readOrder) {
+        return readOrder.setScale(0, RoundingMode.FLOOR).longValue();
+    }
+}
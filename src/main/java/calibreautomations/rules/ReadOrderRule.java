@@ -0,0 +1,103 @@
+package calibreautomations.rules;
+
+import calibreautomations.Book;
+import calibreautomations.persistence.BookFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static calibreautomations.Book.NO_READORDER;
+
+/**
+ * Keeps a single {@code readorder:} tag with the value of the readorder custom field, which takes precedence over
+ * the tag. A custom field of 0.0 is cleared.
+ */
+public class ReadOrderRule implements Rule {
+    public static final String NAME = "readorder";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Books without a readorder tag or custom field are never changed.
+     */
+    @Override
+    public BookFilter getCandidates() {
+        return BookFilter.anyOf(List.of(BookFilter.hasTagStartingWith(Book.READORDER_TAG_PREFIX), BookFilter.hasReadOrder()));
+    }
+
+    @Override
+    public boolean evaluate(Book book, BookChanges changes) {
+        String readOrderFromCustomField = book.getReadOrderFromCustomField();
+        List<String> readOrderTags = changes.getReadOrderTags();
+        String readOrderFromTags;
+        if (!readOrderTags.isEmpty()) {
+            readOrderFromTags = readOrderTags.get(0);
+        } else {
+            readOrderFromTags = NO_READORDER;
+        }
+        // Values of the readorder tags the book must have, null while they do not change
+        List<String> newReadOrderTags = null;
+        boolean itemUpdated = false;
+        // Case 1: More than one readorder tag, we keep the first one
+        if (readOrderTags.size() > 1) {
+            changes.report("[remove extra readorder tags]", String.format("for \"%s\"", book.getTitle()));
+            newReadOrderTags = List.of(readOrderFromTags);
+            itemUpdated = true;
+        }
+        // Case 2: No readorder tag but custom field exists, we add the tag
+        if (NO_READORDER.equals(readOrderFromTags) && !NO_READORDER.equals(readOrderFromCustomField)) {
+            changes.report("[add readorder tag]", String.format("for \"%s\"", book.getTitle()));
+            newReadOrderTags = List.of(readOrderFromCustomField);
+            itemUpdated = true;
+        }
+        // Case 3: Mismatch between tag and custom field, custom field wins
+        else if (!NO_READORDER.equals(readOrderFromTags) && !NO_READORDER.equals(readOrderFromCustomField) &&
+                 !readOrderFromTags.equals(readOrderFromCustomField)) {
+            changes.report("[update readorder]", String.format("for \"%s\" from \"%s\" to \"%s\"", book.getTitle(), readOrderFromTags, readOrderFromCustomField));
+            // Update the tag to match the custom field value
+            newReadOrderTags = List.of(readOrderFromCustomField);
+            itemUpdated = true;
+        }
+        // Case 4: Delete custom field if value is 0.0
+        if (ReadOrderIndex.isCleared(readOrderFromCustomField)) {
+            changes.deleteReadOrder();
+            changes.report("[delete custom field readorder]", String.format("for \"%s\"", book.getTitle()));
+            // Skip further processing of this book
+            readOrderFromCustomField = NO_READORDER;
+        }
+        // Case 5: Delete readorder tag if custom field is empty
+        // Skip the update if there are no changes to the tags
+        if (NO_READORDER.equals(readOrderFromCustomField) && !NO_READORDER.equals(readOrderFromTags)) {
+            newReadOrderTags = List.of();
+            changes.report("[delete readorder tag]", String.format("for \"%s\" from \"%s\" to \"%s\"", book.getTitle(), readOrderFromTags, readOrderFromCustomField));
+            itemUpdated = true;
+        }
+
+        // The other tags never change, so only the readorder tags need to be compared
+        if (newReadOrderTags != null && !sameValues(readOrderTags, newReadOrderTags)) {
+            List<String> tags = changes.getTags();
+            List<String> tagsList = new ArrayList<>(tags.size() + 1);
+            for (String tag : tags) {
+                if (!tag.startsWith(Book.READORDER_TAG_PREFIX)) {
+                    tagsList.add(tag);
+                }
+            }
+            for (String readOrder : newReadOrderTags) {
+                tagsList.add(Book.READORDER_TAG_PREFIX + readOrder);
+            }
+            changes.setTags(tagsList);
+        }
+
+        return itemUpdated;
+    }
+
+    private static boolean sameValues(List<String> values, List<String> otherValues) {
+        if (values.size() != otherValues.size()) {
+            return false;
+        }
+        return values.size() <= 1 ? values.equals(otherValues) : values.stream().sorted().toList().equals(otherValues.stream().sorted().toList());
+    }
+}
@@ -0,0 +1,37 @@
+package calibreautomations.rules;
+
+import calibreautomations.Book;
+import calibreautomations.persistence.BookFilter;
+
+/**
+ * Checks a book and proposes the changes it needs.
+ * <p>
+ * Rules are found with {@link java.util.ServiceLoader}: implementations are listed in
+ * {@code META-INF/services/calibreautomations.rules.Rule} and need a public no-argument constructor. The same instance
+ * evaluates books from several threads at once, so rules must not keep state between books.
+ */
+public interface Rule {
+
+    /**
+     * @return the name used to select the rule on the command line and in the summary, e.g. "audiobook"
+     */
+    String getName();
+
+    /**
+     * Adds the changes the book needs. {@code changes} already holds the changes proposed by the previous rules, so
+     * rules should read the current values from it rather than from the book.
+     *
+     * @return true if the rule changed the book
+     */
+    boolean evaluate(Book book, BookChanges changes);
+
+    /**
+     * The books the rule may change, judged on their listed values, so the backend only lists those. The rule must
+     * still leave any other book it is given unchanged.
+     *
+     * @return all the books unless the rule overrides it
+     */
+    default BookFilter getCandidates() {
+        return BookFilter.all();
+    }
+}
@@ -0,0 +1,57 @@
+package calibreautomations.rules;
+
+import calibreautomations.Book;
+import calibreautomations.persistence.BookFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Runs all the enabled rules on a book in a single pass, so the changes of every rule end up in one write.
+ */
+public class RuleEngine {
+    private final List<Rule> rules;
+
+    public RuleEngine(List<Rule> rules) {
+        this.rules = List.copyOf(rules);
+    }
+
+    /**
+     * @return the rules registered as services, in the order they are listed
+     */
+    public static List<Rule> loadRules() {
+        List<Rule> rules = new ArrayList<>();
+        for (Rule rule : ServiceLoader.load(Rule.class)) {
+            rules.add(rule);
+        }
+        return rules;
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    /**
+     * @return the books at least one of the rules may change, all of them if there are no rules
+     */
+    public BookFilter getCandidates() {
+        if (rules.isEmpty()) {
+            return BookFilter.all();
+        }
+        return BookFilter.anyOf(rules.stream().map(Rule::getCandidates).toList());
+    }
+
+    /**
+     * Evaluates the rules in order, each one seeing the changes proposed by the previous ones.
+     */
+    public BookChanges evaluate(Book book) {
+        BookChanges changes = new BookChanges(book);
+        for (Rule rule : rules) {
+            if (rule.evaluate(book, changes)) {
+                changes.changedBy(rule);
+            }
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,68 @@
+package calibreautomations.rules;
+
+/**
+ * Adds and removes the "(audiobook)" marker of a title by scanning it once, without regular expressions.
+ * Both operations are idempotent, and removing the marker added to a trimmed title gives back the same title.
+ */
+public final class TitleRewriter {
+    public static final String AUDIOBOOK_MARKER = "(audiobook)";
+
+    private TitleRewriter() {
+    }
+
+    public static boolean hasAudiobookMarker(String title) {
+        return title.contains(AUDIOBOOK_MARKER);
+    }
+
+    /**
+     * Adds the marker at the end of the main title, before the first colon if there is a subtitle:
+     * {@code "Title: subtitle: part"} becomes {@code "Title (audiobook): subtitle: part"}.
+     *
+     * @return the same title if it already has the marker
+     */
+    public static String addAudiobookMarker(String title) {
+        if (hasAudiobookMarker(title)) {
+            return title;
+        }
+        int colon = title.indexOf(':');
+        int end = colon < 0 ? title.length() : colon;
+        while (end > 0 && Character.isWhitespace(title.charAt(end - 1))) {
+            end--;
+        }
+        StringBuilder result = new StringBuilder(title.length() + AUDIOBOOK_MARKER.length() + 1);
+        result.append(title, 0, end);
+        if (end > 0) {
+            result.append(' ');
+        }
+        return result.append(AUDIOBOOK_MARKER).append(title, end, title.length()).toString();
+    }
+
+    /**
+     * Removes every marker with one of the spaces around it, keeping the rest of the title, including all its
+     * subtitles, as it is. The result is trimmed.
+     *
+     * @return the same title if it has no marker
+     */
+    public static String removeAudiobookMarker(String title) {
+        int index = title.indexOf(AUDIOBOOK_MARKER);
+        if (index < 0) {
+            return title;
+        }
+        StringBuilder result = new StringBuilder(title.length());
+        int start = 0;
+        while (index >= 0) {
+            int cutStart = index;
+            int cutEnd = index + AUDIOBOOK_MARKER.length();
+            if (cutStart > start && Character.isWhitespace(title.charAt(cutStart - 1))) {
+                cutStart--;
+            } else if (cutEnd < title.length() && Character.isWhitespace(title.charAt(cutEnd))) {
+                cutEnd++;
+            }
+            result.append(title, start, cutStart);
+            start = cutEnd;
+            index = title.indexOf(AUDIOBOOK_MARKER, start);
+        }
+        result.append(title, start, title.length());
+        return result.toString().strip();
+    }
+}
@@ -0,0 +1,16 @@
+package calibreautomations.validation;
+
+import java.nio.file.Path;
+
+/**
+ * A file in the folder of a book.
+ *
+ * @param expected the format of the file extension
+ * @param found    the format of the file header, or null if the file could not be read
+ */
+public record BookFile(Path path, FileFormat expected, FileFormat found) {
+
+    public String getName() {
+        return path.getFileName().toString();
+    }
+}
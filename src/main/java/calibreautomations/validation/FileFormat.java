@@ -0,0 +1,111 @@
+package calibreautomations.validation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The book formats told apart by the first bytes of their files, so a file can be checked without reading its payload.
+ */
+public enum FileFormat {
+    EPUB(false, "epub"),
+    PDF(false, "pdf"),
+    MOBI(false, "mobi", "azw", "azw3"),
+    MP3(true, "mp3"),
+    MP4_AUDIO(true, "m4b", "m4a"),
+    UNKNOWN(false);
+
+    /**
+     * Bytes read from the start of each file, enough for the {@code BOOKMOBI} signature at offset 60.
+     */
+    static final int HEADER_SIZE = 68;
+
+    private static final byte[] EPUB_MIMETYPE = "mimetypeapplication/epub+zip".getBytes(StandardCharsets.US_ASCII);
+    private static final List<String> MP4_AUDIO_BRANDS = List.of("M4B ", "M4A ", "M4P ", "mp42", "isom", "dash");
+
+    private final boolean audio;
+    private final List<String> extensions;
+
+    FileFormat(boolean audio, String... extensions) {
+        this.audio = audio;
+        this.extensions = List.of(extensions);
+    }
+
+    public boolean isAudio() {
+        return audio;
+    }
+
+    /**
+     * @return the format of the files with the extension of the name, or null if it is not a book format
+     */
+    public static FileFormat ofFileName(String name) {
+        String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT);
+        for (FileFormat format : values()) {
+            if (format.extensions.contains(extension)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the header of the file with a single positional read.
+     */
+    public static FileFormat sniff(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            // One read returns the whole header, except for files smaller than it
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    break;
+                }
+            }
+            return sniff(header.flip());
+        }
+    }
+
+    /**
+     * @param header the first bytes of a file, from position 0 to the limit
+     */
+    static FileFormat sniff(ByteBuffer header) {
+        if (startsWith(header, 0, "%PDF-".getBytes(StandardCharsets.US_ASCII))) {
+            return PDF;
+        }
+        // An EPUB is a ZIP whose first entry is the uncompressed mimetype file
+        if (startsWith(header, 0, new byte[]{'P', 'K', 3, 4})) {
+            return startsWith(header, 30, EPUB_MIMETYPE) ? EPUB : UNKNOWN;
+        }
+        if (startsWith(header, 60, "BOOKMOBI".getBytes(StandardCharsets.US_ASCII))) {
+            return MOBI;
+        }
+        if (startsWith(header, 4, "ftyp".getBytes(StandardCharsets.US_ASCII)) && header.limit() >= 12) {
+            String brand = new String(new byte[]{header.get(8), header.get(9), header.get(10), header.get(11)}, StandardCharsets.US_ASCII);
+            return MP4_AUDIO_BRANDS.contains(brand) ? MP4_AUDIO : UNKNOWN;
+        }
+        if (startsWith(header, 0, "ID3".getBytes(StandardCharsets.US_ASCII))) {
+            return MP3;
+        }
+        // MPEG audio frame sync without an ID3 tag: 11 set bits, layer III
+        if (header.limit() >= 2 && (header.get(0) & 0xFF) == 0xFF && (header.get(1) & 0xE6) == 0xE2) {
+            return MP3;
+        }
+        return UNKNOWN;
+    }
+
+    private static boolean startsWith(ByteBuffer header, int offset, byte[] prefix) {
+        if (header.limit() < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (header.get(offset + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
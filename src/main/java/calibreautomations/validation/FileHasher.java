@@ -0,0 +1,32 @@
+package calibreautomations.validation;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Computes the CRC32C of files by memory-mapping them in chunks, so the contents never go through the Java heap and
+ * the checksum runs on the CPU instructions the JVM uses for {@link CRC32C}.
+ */
+public final class FileHasher {
+
+    static final int CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private FileHasher() {
+    }
+
+    public static int crc32c(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += CHUNK_SIZE) {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+                crc.update(chunk);
+            }
+        }
+        return (int) crc.getValue();
+    }
+}
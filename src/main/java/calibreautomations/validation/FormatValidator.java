@@ -0,0 +1,43 @@
+package calibreautomations.validation;
+
+import calibreautomations.Book;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cross-checks the files found in the folder of a book with their extensions and with the {@code format:audiobook}
+ * tag of the book.
+ */
+public final class FormatValidator {
+
+    private FormatValidator() {
+    }
+
+    /**
+     * @return the problems found, empty if the files agree with their names and the tags
+     */
+    public static List<String> validate(Book book, List<BookFile> files) {
+        List<String> problems = new ArrayList<>();
+        if (files.isEmpty()) {
+            problems.add("no book file");
+        }
+        boolean audio = false;
+        for (BookFile file : files) {
+            if (file.found() == null) {
+                problems.add("cannot read " + file.getName());
+            } else if (file.found() == FileFormat.UNKNOWN) {
+                problems.add(file.getName() + " is not a valid " + file.expected() + " file");
+            } else if (file.found() != file.expected()) {
+                problems.add(file.getName() + " is a " + file.found() + " file");
+            }
+            audio |= file.found() != null && file.found().isAudio();
+        }
+        if (audio && !book.isAudioBookFromTags()) {
+            problems.add("audio files but no " + Book.AUDIOBOOK_TAG + " tag");
+        } else if (!audio && book.isAudioBookFromTags() && !files.isEmpty()) {
+            problems.add(Book.AUDIOBOOK_TAG + " tag but no audio file");
+        }
+        return problems;
+    }
+}
@@ -0,0 +1,181 @@
+package calibreautomations.validation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The CRC32C of every book file of a library, saved between runs so only the files whose size or modification time
+ * changed are hashed again.
+ * <p>
+ * The file holds:
+ * <pre>
+ * magic, version, entry count, entries (book id, path relative to the library, size, modification time, crc)
+ * </pre>
+ */
+public class HashIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashIndex.class);
+    private static final int MAGIC = 0x43414C48; // "CALH"
+    private static final int VERSION = 1;
+
+    /**
+     * @param modified the modification time of the file in milliseconds
+     */
+    public record Entry(int bookId, String path, long size, long modified, int crc) {
+    }
+
+    /**
+     * A file whose content is not the same as when it was last hashed.
+     */
+    public record Change(Entry previous, Entry current) {
+        /**
+         * @return true if the size and the modification time did not change, as when a file gets corrupted
+         */
+        public boolean isUnexpected() {
+            return previous.size() == current.size() && previous.modified() == current.modified();
+        }
+    }
+
+    /**
+     * @param hashed the number of files read to compute their hash
+     */
+    public record Update(HashIndex index, List<Change> changes, int hashed) {
+    }
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    public HashIndex(Collection<Entry> entries) {
+        for (Entry entry : entries) {
+            this.entries.put(entry.path(), entry);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the entries sorted by path
+     */
+    public List<Entry> getEntries() {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparing(Entry::path));
+        return sorted;
+    }
+
+    /**
+     * Hashes the book files of the library on a pool of threads, reusing the hashes of this index for the files that
+     * keep their size and modification time.
+     *
+     * @param verify hash every file again, to find the files that changed without changing their size or time
+     */
+    public Update update(Path library, int threads, boolean verify) throws IOException, InterruptedException {
+        Map<String, Entry> current = new ConcurrentHashMap<>();
+        List<Change> changes = Collections.synchronizedList(new ArrayList<>());
+        LongAdder hashed = new LongAdder();
+        new LibraryScanner(threads).walk(library, (bookId, file, attributes, expected) -> {
+            String path = library.relativize(file).toString();
+            long size = attributes.size();
+            long modified = attributes.lastModifiedTime().toMillis();
+            Entry previous = entries.get(path);
+            if (!verify && previous != null && previous.size() == size && previous.modified() == modified) {
+                current.put(path, new Entry(bookId, path, size, modified, previous.crc()));
+                return;
+            }
+            Entry entry;
+            try {
+                entry = new Entry(bookId, path, size, modified, FileHasher.crc32c(file));
+            } catch (IOException e) {
+                logger.warn("Cannot hash {}: {}", file, e.getMessage());
+                return;
+            }
+            hashed.increment();
+            current.put(path, entry);
+            if (previous != null && previous.crc() != entry.crc()) {
+                changes.add(new Change(previous, entry));
+            }
+        });
+        List<Change> sortedChanges = new ArrayList<>(changes);
+        sortedChanges.sort(Comparator.comparing(change -> change.current().path()));
+        return new Update(new HashIndex(current.values()), sortedChanges, hashed.intValue());
+    }
+
+    /**
+     * @return the groups of files with the same size and hash, each one sorted by path
+     */
+    public List<List<Entry>> duplicates() {
+        Map<String, List<Entry>> bySizeAndHash = new HashMap<>();
+        for (Entry entry : getEntries()) {
+            bySizeAndHash.computeIfAbsent(entry.size() + ":" + entry.crc(), key -> new ArrayList<>()).add(entry);
+        }
+        List<List<Entry>> duplicates = new ArrayList<>();
+        for (List<Entry> group : bySizeAndHash.values()) {
+            if (group.size() > 1) {
+                duplicates.add(group);
+            }
+        }
+        duplicates.sort(Comparator.comparing(group -> group.get(0).path()));
+        return duplicates;
+    }
+
+    /**
+     * @return the index saved in the file, or an empty one if there is none
+     * @throws IOException if the file cannot be read or is not an index of this version
+     */
+    public static HashIndex read(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return new HashIndex(List.of());
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Not a hash index of version " + VERSION + ": " + file);
+            }
+            int count = input.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                entries.add(new Entry(input.readInt(), input.readUTF(), input.readLong(), input.readLong(), input.readInt()));
+            }
+            return new HashIndex(entries);
+        }
+    }
+
+    /**
+     * Replaces the file in one step, so a crash never leaves a truncated index.
+     */
+    public void write(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(entries.size());
+            for (Entry entry : getEntries()) {
+                output.writeInt(entry.bookId());
+                // Paths are far below the 64 KB limit of writeUTF
+                output.writeUTF(entry.path());
+                output.writeLong(entry.size());
+                output.writeLong(entry.modified());
+                output.writeInt(entry.crc());
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
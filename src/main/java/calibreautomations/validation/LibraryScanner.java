@@ -0,0 +1,138 @@
+package calibreautomations.validation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Finds the book files in the folder of a Calibre library, laid out as {@code Author/Title (id)/file}, and sniffs the
+ * format of each one from its header.
+ * <p>
+ * The author folders are walked on a pool of threads. {@link #scan(Path)} only reads the first bytes of each file, so
+ * a library with terabytes of audio is scanned in about the time it takes to list its folders.
+ */
+public class LibraryScanner {
+
+    private static final Logger logger = LoggerFactory.getLogger(LibraryScanner.class);
+    private static final Pattern BOOK_FOLDER = Pattern.compile(".*\\((\\d+)\\)");
+
+    private final int threads;
+
+    public LibraryScanner(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return the files in a book format of each book id, books without any are left out
+     */
+    public Map<Integer, List<BookFile>> scan(Path library) throws IOException, InterruptedException {
+        Map<Integer, List<BookFile>> books = new ConcurrentHashMap<>();
+        walk(library, (bookId, file, attributes, expected) -> {
+            FileFormat found;
+            try {
+                found = FileFormat.sniff(file);
+            } catch (IOException e) {
+                logger.debug("Error reading {}", file, e);
+                found = null;
+            }
+            books.computeIfAbsent(bookId, id -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(new BookFile(file, expected, found));
+        });
+        return books;
+    }
+
+    /**
+     * Calls the visitor with every file in a book format, from the threads of the pool.
+     */
+    public void walk(Path library, BookFileVisitor visitor) throws IOException, InterruptedException {
+        List<Path> authors;
+        try (Stream<Path> entries = Files.list(library)) {
+            // Calibre keeps its trash and notes in hidden folders
+            authors = entries.filter(Files::isDirectory)
+                    .filter(folder -> !folder.getFileName().toString().startsWith("."))
+                    .toList();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> walks = new ArrayList<>(authors.size());
+            for (Path author : authors) {
+                walks.add(executor.submit(() -> {
+                    // Only the book folders and their files, not the data folders inside them
+                    Files.walkFileTree(author, EnumSet.noneOf(FileVisitOption.class), 2, new AuthorVisitor(author, visitor));
+                    return null;
+                }));
+            }
+            for (Future<?> walk : walks) {
+                walk.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException("Error scanning " + library, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    public interface BookFileVisitor {
+        /**
+         * @param expected the format of the file extension
+         */
+        void visit(int bookId, Path file, BasicFileAttributes attributes, FileFormat expected);
+    }
+
+    private static class AuthorVisitor extends SimpleFileVisitor<Path> {
+        private final Path author;
+        private final BookFileVisitor visitor;
+
+        AuthorVisitor(Path author, BookFileVisitor visitor) {
+            this.author = author;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+            Path folder = file.getParent();
+            if (!attributes.isRegularFile() || folder.equals(author)) {
+                return FileVisitResult.CONTINUE;
+            }
+            Matcher bookFolder = BOOK_FOLDER.matcher(folder.getFileName().toString());
+            FileFormat expected = FileFormat.ofFileName(file.getFileName().toString());
+            if (bookFolder.matches() && expected != null) {
+                visitor.visit(Integer.parseInt(bookFolder.group(1)), file, attributes, expected);
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e) {
+            logger.warn("Cannot read {}: {}", file, e.getMessage());
+            return FileVisitResult.CONTINUE;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+# Keeps a Calibre library open and serves the requests of CalibreDBWorker, one JSON object per line on stdin.
+# Each response is written as one JSON value on stdout. Run it with: calibre-debug -e calibre_worker.py <library path>
+import json
+import sys
+
+from calibre.library import db
+
+READORDER = '#readorder'
+PAGE_SIZE = 1000
+
+
+def list_books(cache, request, listing, out):
+    search = request.get('search')
+    # Only the ids are kept, each page is read from the library when it is asked for, after the updates sent before
+    listing['ids'] = sorted(cache.search(search) if search else cache.all_book_ids())
+    listing['position'] = 0
+    listing['limit'] = request.get('limit', PAGE_SIZE)
+    next_books(cache, listing, out)
+
+
+def next_books(cache, listing, out):
+    if 'ids' not in listing:
+        out.write(json.dumps({'error': 'No listing in progress'}) + '\n')
+        return
+    start = listing['position']
+    book_ids = listing['ids'][start:start + listing['limit']]
+    listing['position'] = start + len(book_ids)
+    more = listing['position'] < len(listing['ids'])
+    if not more:
+        listing.clear()
+    has_readorder = READORDER in cache.field_metadata.custom_field_keys()
+    # Books are written one by one so the page is never held as a single string
+    out.write('{"books": [')
+    for index, book_id in enumerate(book_ids):
+        book = {
+            'id': book_id,
+            'title': cache.field_for('title', book_id),
+            'tags': list(cache.field_for('tags', book_id)),
+            'last_modified': cache.field_for('last_modified', book_id).isoformat(),
+        }
+        if has_readorder:
+            book['*readorder'] = cache.field_for(READORDER, book_id)
+        if index > 0:
+            out.write(', ')
+        out.write(json.dumps(book))
+    out.write('], "more": %s}\n' % json.dumps(more))
+
+
+def apply_updates(cache, request, out):
+    updates = request['updates']
+    titles = {update['id']: update['title'] for update in updates if 'title' in update}
+    tags = {update['id']: update['tags'] for update in updates if 'tags' in update}
+    readorders = {update['id']: None for update in updates if update.get('delete_readorder')}
+    readorders.update({update['id']: float(update['readorder']) for update in updates if 'readorder' in update})
+    # One call per field for all the books of the batch
+    if titles:
+        cache.set_field('title', titles)
+    if tags:
+        cache.set_field('tags', tags)
+    if readorders:
+        cache.set_field(READORDER, readorders)
+    out.write(json.dumps({'updated': len(updates)}) + '\n')
+
+
+def main():
+    cache = db(sys.argv[-1]).new_api
+    out = sys.stdout
+    # The books left to list, between the pages of a listing
+    listing = {}
+    for line in sys.stdin:
+        if not line.strip():
+            continue
+        request = json.loads(line)
+        operation = request.get('op')
+        if operation == 'quit':
+            break
+        try:
+            if operation == 'list':
+                list_books(cache, request, listing, out)
+            elif operation == 'next':
+                next_books(cache, listing, out)
+            elif operation == 'apply':
+                apply_updates(cache, request, out)
+            else:
+                out.write(json.dumps({'error': 'Unknown operation: %s' % operation}) + '\n')
+        except Exception as e:
+            out.write(json.dumps({'error': str(e)}) + '\n')
+        out.flush()
+
+
+main()
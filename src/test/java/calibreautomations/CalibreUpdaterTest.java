@@ -1,16 +1,24 @@
 package calibreautomations;
 
+import calibreautomations.persistence.BookUpdate;
 import calibreautomations.persistence.CalibreDBCli;
 import calibreautomations.persistence.DataAccessException;
+import org.apache.commons.cli.ParseException;
 import org.junit.jupiter.api.Test;
-import org.mockito.Mockito;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
+@SuppressWarnings("unchecked")
 class CalibreUpdaterTest {
 
     @Test
@@ -32,89 +40,204 @@ class CalibreUpdaterTest {
     }
 
     @Test
-    void test_option_a_processes_Audiobook() throws DataAccessException {
+    void testAudiobookTagMustMatchExactly() {
+        Book book = new Book(1, "Test Book", "tag1,format:audiobook-abridged", "3.0");
+        assertFalse(book.isAudioBookFromTags());
+    }
+
+    @Test
+    void testTagsAreParsedOnce() {
+        Book book = new Book(1, "Test Book", "tag1, readorder:2.0,, tag2,readorder:3.0", "3.0");
+        assertEquals(List.of("tag1", "readorder:2.0", "tag2", "readorder:3.0"), book.getTagList());
+        assertEquals(List.of("2.0", "3.0"), book.getReadOrderTags());
+        assertTrue(book.hasTag("tag2"));
+        assertEquals("tag1, readorder:2.0, tag2, readorder:3.0", book.getTags());
+    }
+
+    @Test
+    void test_all_the_changes_to_a_book_are_written_together() throws DataAccessException {
         CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
-        CalibreUpdater mockUpdater = Mockito.spy(new CalibreUpdater(mockCalibreDB));
-        AppOptions mockOptions = mock(AppOptions.class);
+        CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
+        doReturn(Stream.of(new Book(1, "Test Book 1", "format:audiobook,readorder:2.0", "0.0"))).when(mockCalibreDB).streamBooks(any());
+
+        updater.run(new String[]{});
+
+        ArgumentCaptor<List<BookUpdate>> updatesCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockCalibreDB).applyUpdates(updatesCaptor.capture());
+        BookUpdate update = updatesCaptor.getValue().get(0);
+        assertEquals("Test Book 1 (audiobook)", update.getTitle());
+        assertEquals(List.of("format:audiobook"), update.getTags());
+        assertTrue(update.isDeleteReadOrder());
+        verify(mockCalibreDB, never()).updateBookTitle(anyInt(), anyString());
+        verify(mockCalibreDB, never()).replaceBookTags(anyInt(), any());
+    }
+
+    @Test
+    void test_option_a_processes_Audiobook() throws DataAccessException {
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
+        CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
 
-        // Mock the getBooks method to return a list of books
+        // Mock the streamBooks method to return a list of books
         List<Book> mockBooks = Arrays.asList(
                 new Book(1, "Test Book 1", "tag1,readorder:2.0,tag2", "3.0"),
                 new Book(2, "Test Book 2", "tag1,format:audiobook,tag2", "3.0")
         );
-        doReturn(mockBooks).when(mockCalibreDB).getBooks();
-
-        doNothing().when(mockUpdater).updateCalibre(mockOptions);
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
 
         String[] args = {"-a"};
-        mockUpdater.run(args);
+        updater.run(args);
 
-        when(mockOptions.isAudiobooks()).thenReturn(true);
-        when(mockOptions.isReadorders()).thenReturn(false);
-        when(mockOptions.isDryRun()).thenReturn(false);
-
-        // Verify that processAudiobook and processReadOrder are called
-        for (Book book : mockBooks) {
-            verify(mockUpdater).processAudiobook(anyBoolean(), eq(book));
-            verify(mockUpdater, never()).processReadOrder(anyBoolean(), eq(book));
-        }
+        // Only the audiobook rule runs
+        verify(mockCalibreDB).updateBookTitle(2, "Test Book 2 (audiobook)");
+        verify(mockCalibreDB, never()).replaceBookTags(anyInt(), any());
+        verify(mockCalibreDB, never()).deleteReadOrderCustomField(anyInt());
     }
 
     @Test
     void test_option_r_processes_Readorder() throws DataAccessException {
-        CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
-        CalibreUpdater mockUpdater = Mockito.spy(new CalibreUpdater(mockCalibreDB));
-        AppOptions mockOptions = mock(AppOptions.class);
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
+        CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
 
-        // Mock the getBooks method to return a list of books
+        // Mock the streamBooks method to return a list of books
         List<Book> mockBooks = Arrays.asList(
                 new Book(1, "Test Book 1", "tag1,readorder:2.0,tag2", "3.0"),
                 new Book(2, "Test Book 2", "tag1,format:audiobook,tag2", "3.0")
         );
-        doReturn(mockBooks).when(mockCalibreDB).getBooks();
-
-        doNothing().when(mockUpdater).updateCalibre(mockOptions);
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
 
         String[] args = {"-r"};
-        mockUpdater.run(args);
+        updater.run(args);
 
-        when(mockOptions.isAudiobooks()).thenReturn(false);
-        when(mockOptions.isReadorders()).thenReturn(true);
-        when(mockOptions.isDryRun()).thenReturn(false);
-
-        // Verify that processAudiobook and processReadOrder are called
-        for (Book book : mockBooks) {
-            verify(mockUpdater, never()).processAudiobook(anyBoolean(), eq(book));
-            verify(mockUpdater).processReadOrder(anyBoolean(), eq(book));
-        }
+        // Only the readorder rule runs
+        verify(mockCalibreDB).replaceBookTags(1, List.of("tag1", "tag2", "readorder:3.0"));
+        verify(mockCalibreDB).replaceBookTags(2, List.of("tag1", "format:audiobook", "tag2", "readorder:3.0"));
+        verify(mockCalibreDB, never()).updateBookTitle(anyInt(), anyString());
     }
 
     @Test
     void test_no_option_processes_audiobook_and_readorder() throws DataAccessException {
-        CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
-        CalibreUpdater mockUpdater = Mockito.spy(new CalibreUpdater(mockCalibreDB));
-        AppOptions mockOptions = mock(AppOptions.class);
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
+        CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
 
-        // Mock the getBooks method to return a list of books
+        // Mock the streamBooks method to return a list of books
         List<Book> mockBooks = Arrays.asList(
                 new Book(1, "Test Book 1", "tag1,readorder:2.0,tag2", "3.0"),
                 new Book(2, "Test Book 2", "tag1,format:audiobook,tag2", "3.0")
         );
-        doReturn(mockBooks).when(mockCalibreDB).getBooks();
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
 
-        when(mockOptions.isAudiobooks()).thenReturn(true);
-        when(mockOptions.isReadorders()).thenReturn(true);
+        String[] args = {};
+        updater.run(args);
 
-        doNothing().when(mockUpdater).updateCalibre(mockOptions);
+        verify(mockCalibreDB).updateBookTitle(2, "Test Book 2 (audiobook)");
+        verify(mockCalibreDB).replaceBookTags(1, List.of("tag1", "tag2", "readorder:3.0"));
+        verify(mockCalibreDB).replaceBookTags(2, List.of("tag1", "format:audiobook", "tag2", "readorder:3.0"));
+    }
 
-        String[] args = {};
-        mockUpdater.run(args);
+    @Test
+    void test_option_rules_selects_the_rules() throws DataAccessException {
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
+        CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
+
+        List<Book> mockBooks = List.of(new Book(2, "Test Book 2", "tag1,format:audiobook,tag2", "3.0"));
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
+
+        String[] args = {"--rules", "readorder"};
+        updater.run(args);
 
-        // Verify that processAudiobook and processReadOrder are called
-        for (Book book : mockBooks) {
-            verify(mockUpdater).processAudiobook(anyBoolean(), eq(book));
-            verify(mockUpdater).processReadOrder(anyBoolean(), eq(book));
+        verify(mockCalibreDB).replaceBookTags(2, List.of("tag1", "format:audiobook", "tag2", "readorder:3.0"));
+        verify(mockCalibreDB, never()).updateBookTitle(anyInt(), anyString());
+    }
+
+    @Test
+    void test_unknown_rule_is_a_usage_error() {
+        ParseException e = assertThrows(ParseException.class, () -> new AppOptions().parse(new String[]{"--rules", "readorder,audiobok"}));
+        assertTrue(e.getMessage().startsWith("Unknown rule: audiobok"));
+    }
+
+    @Test
+    void test_plan_of_a_dry_run_is_applied_without_listing_the_books(@TempDir Path tempDir) throws DataAccessException {
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
+        CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
+        Path plan = tempDir.resolve("plan.jsonl");
+
+        List<Book> mockBooks = List.of(
+                new Book(1, "Test Book 1", "tag1", null),
+                new Book(2, "Test Book 2", "tag1,format:audiobook,readorder:2.0", "0.0"));
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
+
+        updater.run(new String[]{"--dry-run", "--plan", plan.toString()});
+        verify(mockCalibreDB, never()).updateBookTitle(anyInt(), anyString());
+
+        updater.run(new String[]{"--apply-plan", plan.toString()});
+
+        verify(mockCalibreDB, times(1)).streamBooks(any());
+        verify(mockCalibreDB).updateBookTitle(2, "Test Book 2 (audiobook)");
+        verify(mockCalibreDB).replaceBookTags(2, List.of("tag1", "format:audiobook"));
+        verify(mockCalibreDB).deleteReadOrderCustomField(2);
+        verify(mockCalibreDB, never()).updateBookTitle(eq(1), anyString());
+    }
+
+    @Test
+    void test_parallel_option_writes_in_book_order() throws DataAccessException {
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
+        CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
+
+        List<Book> mockBooks = new ArrayList<>();
+        for (int id = 1; id <= 500; id++) {
+            mockBooks.add(new Book(id, "Test Book " + id, id % 2 == 0 ? "tag1,format:audiobook" : "tag1", null));
+        }
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
+
+        String[] args = {"-a", "--parallel", "4"};
+        updater.run(args);
+
+        // Writes happen in book order even if books are evaluated on several threads
+        InOrder inOrder = inOrder(mockCalibreDB);
+        for (int id = 2; id <= 500; id += 2) {
+            inOrder.verify(mockCalibreDB).updateBookTitle(id, "Test Book " + id + " (audiobook)");
         }
+        verify(mockCalibreDB, times(250)).updateBookTitle(anyInt(), anyString());
+    }
+
+    @Test
+    void test_editions_option_copies_the_readorder_to_the_other_edition() throws DataAccessException {
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
+        CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
+
+        List<Book> mockBooks = Arrays.asList(
+                new Book(1, "Dune: Book One", "tag1,readorder:1.0", "1.0"),
+                new Book(2, "Dune (audiobook): Book One", "format:audiobook", null),
+                new Book(3, "Dune: Messiah (audiobook)", "format:audiobook", null),
+                new Book(4, "Emma", "tag1", null));
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
+
+        updater.run(new String[]{"--editions"});
+
+        verify(mockCalibreDB).setReadOrderCustomField(2, "1.0");
+        verify(mockCalibreDB).replaceBookTags(2, List.of("format:audiobook", "readorder:1.0"));
+        verify(mockCalibreDB, never()).setReadOrderCustomField(eq(1), anyString());
+        verify(mockCalibreDB, never()).setReadOrderCustomField(eq(3), anyString());
+        verify(mockCalibreDB, never()).setReadOrderCustomField(eq(4), anyString());
+    }
+
+    @Test
+    void test_renumber_option_writes_only_the_books_out_of_sequence() throws DataAccessException {
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
+        CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
+
+        List<Book> mockBooks = Arrays.asList(
+                new Book(1, "A", "readorder:1.0", "1.0"),
+                new Book(2, "B", "tag1,readorder:3.0", "3.0"),
+                new Book(3, "C", "readorder:7.0", "7.0"));
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
+
+        updater.run(new String[]{"--renumber"});
+
+        verify(mockCalibreDB).setReadOrderCustomField(2, "2.0");
+        verify(mockCalibreDB).replaceBookTags(2, List.of("tag1", "readorder:2.0"));
+        verify(mockCalibreDB).setReadOrderCustomField(3, "3.0");
+        verify(mockCalibreDB, never()).setReadOrderCustomField(eq(1), anyString());
     }
 
     // TODO Tests for the 5 cases of readorder with dryrun and without
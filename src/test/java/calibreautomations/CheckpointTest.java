@@ -0,0 +1,46 @@
+package calibreautomations;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CheckpointTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void test_no_checkpoint_before_the_first_run() {
+        Checkpoint checkpoint = new Checkpoint(tempDir.resolve("checkpoints.properties"));
+
+        assertNull(checkpoint.getLastRun("/library"));
+    }
+
+    @Test
+    void test_last_run_is_kept_per_library() throws IOException {
+        Checkpoint checkpoint = new Checkpoint(tempDir.resolve("state").resolve("checkpoints.properties"));
+        Instant firstRun = Instant.parse("2024-01-15T10:00:00.123Z");
+        Instant secondRun = Instant.parse("2024-01-15T10:10:00Z");
+
+        checkpoint.setLastRun("/library1", firstRun);
+        checkpoint.setLastRun("/library2", secondRun);
+
+        Checkpoint reloaded = new Checkpoint(tempDir.resolve("state").resolve("checkpoints.properties"));
+        assertEquals(firstRun, reloaded.getLastRun("/library1"));
+        assertEquals(secondRun, reloaded.getLastRun("/library2"));
+    }
+
+    @Test
+    void test_invalid_checkpoint_is_ignored() throws IOException {
+        Path file = tempDir.resolve("checkpoints.properties");
+        Files.writeString(file, "/library=yesterday\n");
+
+        assertNull(new Checkpoint(file).getLastRun("/library"));
+    }
+}
@@ -0,0 +1,50 @@
+package calibreautomations;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConfigurationTest {
+
+    @Test
+    void test_several_libraries() {
+        Properties properties = new Properties();
+        properties.setProperty("calibre.library.path", "/books/fiction");
+        properties.setProperty("calibre.library.paths", "/books/audio, /books/comics ,");
+        properties.setProperty("libraries.parallelism", "3");
+
+        Configuration configuration = new Configuration(properties);
+
+        assertEquals(List.of("/books/fiction", "/books/audio", "/books/comics"), configuration.getLibraryPaths());
+        assertEquals(3, configuration.getLibraryParallelism());
+    }
+
+    @Test
+    void test_single_library_path_keeps_its_commas() {
+        Properties properties = new Properties();
+        properties.setProperty("calibre.library.path", "/books/Smith, John ");
+
+        Configuration configuration = new Configuration(properties);
+
+        assertEquals(List.of("/books/Smith, John"), configuration.getLibraryPaths());
+    }
+
+    @Test
+    void test_defaults() {
+        Properties properties = new Properties();
+        properties.setProperty("cache.dir", "/tmp/cache");
+
+        Configuration configuration = new Configuration(properties);
+
+        assertTrue(configuration.getLibraryPaths().isEmpty());
+        assertEquals("cli", configuration.getBackend());
+        assertEquals(100, configuration.getWriteBatchSize());
+        assertEquals(Path.of("/tmp/cache"), configuration.getCacheDir());
+        assertEquals(2, configuration.getLibraryParallelism());
+    }
+}
@@ -0,0 +1,27 @@
+package calibreautomations;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LibraryWatcherTest {
+
+    @TempDir
+    Path libraryDir;
+
+    @Test
+    void test_await_change_returns_after_the_database_changes() throws Exception {
+        Path metadataDb = Files.writeString(libraryDir.resolve("metadata.db"), "db");
+        try (LibraryWatcher watcher = new LibraryWatcher(metadataDb, Duration.ofMillis(50))) {
+            Files.writeString(libraryDir.resolve("cover.jpg"), "cover");
+            Files.writeString(libraryDir.resolve("metadata.db-wal"), "wal");
+
+            assertTimeoutPreemptively(Duration.ofSeconds(30), watcher::awaitChange);
+        }
+    }
+}
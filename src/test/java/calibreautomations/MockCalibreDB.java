@@ -0,0 +1,33 @@
+package calibreautomations;
+
+import calibreautomations.persistence.BookUpdate;
+import calibreautomations.persistence.CalibreDBCli;
+import calibreautomations.persistence.DataAccessException;
+
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * A mocked backend whose {@code applyUpdates} makes the individual calls of each update, so tests can verify the
+ * fields written to each book.
+ */
+final class MockCalibreDB {
+
+    private MockCalibreDB() {
+    }
+
+    static CalibreDBCli create() throws DataAccessException {
+        CalibreDBCli calibreDB = mock(CalibreDBCli.class);
+        doAnswer(invocation -> {
+            List<BookUpdate> updates = invocation.getArgument(0);
+            for (BookUpdate update : updates) {
+                update.applyTo(calibreDB);
+            }
+            return null;
+        }).when(calibreDB).applyUpdates(anyList());
+        return calibreDB;
+    }
+}
@@ -0,0 +1,62 @@
+package calibreautomations;
+
+import calibreautomations.persistence.BookUpdate;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PlanReaderTest {
+
+    @Test
+    void test_plan_round_trip() throws IOException {
+        Book book = new Book(7, "Title \"quoted\" <b>", "tag1,readorder:2.0", "2.0");
+        StringWriter out = new StringWriter();
+        try (PlanWriter writer = new PlanWriter(out)) {
+            writer.write(book, new BookUpdate(7).setTitle("Title \"quoted\" <b> (audiobook)")
+                    .setTags(List.of("tag1", "readorder:3.0")).setDeleteReadOrder(true));
+            writer.write(book, new BookUpdate(7));
+            writer.write(book, new BookUpdate(8).setDeleteReadOrder(true));
+            assertEquals(2, writer.getCount());
+        }
+
+        List<String> lines = out.toString().lines().toList();
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).contains("\"oldTags\":[\"tag1\",\"readorder:2.0\"]"));
+        assertTrue(lines.get(0).contains("\"oldReadorder\":\"2.0\""));
+
+        try (PlanReader reader = new PlanReader(new StringReader(out.toString()))) {
+            BookUpdate first = reader.next();
+            assertEquals(7, first.getBookId());
+            assertEquals("Title \"quoted\" <b> (audiobook)", first.getTitle());
+            assertEquals(List.of("tag1", "readorder:3.0"), first.getTags());
+            assertTrue(first.isDeleteReadOrder());
+
+            BookUpdate second = reader.next();
+            assertEquals(8, second.getBookId());
+            assertNull(second.getTitle());
+            assertNull(second.getTags());
+            assertTrue(second.isDeleteReadOrder());
+
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void test_empty_plan_has_no_changes() throws IOException {
+        PlanReader reader = new PlanReader(new StringReader(""));
+
+        assertNull(reader.next());
+    }
+
+    @Test
+    void test_book_without_id_is_an_error() {
+        PlanReader reader = new PlanReader(new StringReader("{\"newTitle\":\"Title\"}\n"));
+
+        assertThrows(IOException.class, reader::next);
+    }
+}
@@ -11,7 +11,7 @@ class ProcessAudiobookTest {
 
     @Test
     void testProcessAudiobook_AddsAudiobookToTitle_with_subtitle() throws DataAccessException {
-        CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
         CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
 
         Book book = new Book(1, "Test Book: the adventure", "tag1,format:audiobook,tag2", "3.0");
@@ -23,7 +23,7 @@ class ProcessAudiobookTest {
 
     @Test
     void testProcessAudiobook_AddsAudiobookToTitle_without_subtitle() throws DataAccessException {
-        CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
         CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
 
         Book book = new Book(1, "Test Book", "tag1,format:audiobook,tag2", "3.0");
@@ -35,7 +35,7 @@ class ProcessAudiobookTest {
 
     @Test
     void testProcessAudiobook_RemovesAudiobookFromTitle_with_subtitle() throws DataAccessException {
-        CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
         CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
 
         Book book = new Book(1, "Test Book (audiobook): the adventure", "tag1,tag2", "3.0");
@@ -47,7 +47,7 @@ class ProcessAudiobookTest {
 
     @Test
     void testProcessAudiobook_RemovesAudiobookFromTitle_without_subtitle() throws DataAccessException {
-        CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
         CalibreUpdater updater = new CalibreUpdater(mockCalibreDB);
 
         Book book = new Book(1, "Test Book (audiobook)", "tag1,tag2", "3.0");
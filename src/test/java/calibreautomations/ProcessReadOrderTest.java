@@ -16,7 +16,7 @@ class ProcessReadOrderTest {
 
     @Test
     void test_more_than_one_readorder_gets_first_if_no_custom_field() throws DataAccessException {
-        CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
         CalibreUpdater mockUpdater = Mockito.spy(new CalibreUpdater(mockCalibreDB));
         AppOptions mockOptions = mock(AppOptions.class);
 
@@ -24,7 +24,7 @@ class ProcessReadOrderTest {
         List<Book> mockBooks = List.of(
                 new Book(1, "Test Book 1", "tag1,readorder:2.0,readorder:3.0,tag2", "2.0")
         );
-        doReturn(mockBooks).when(mockCalibreDB).getBooks();
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
 
         when(mockOptions.isAudiobooks()).thenReturn(false);
         when(mockOptions.isReadorders()).thenReturn(true);
@@ -46,7 +46,7 @@ class ProcessReadOrderTest {
 
     @Test
     void test_if_no_readorder_tag_and_custom_field_exists_adds_readorder_tag() throws DataAccessException {
-        CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
         CalibreUpdater mockUpdater = Mockito.spy(new CalibreUpdater(mockCalibreDB));
         AppOptions mockOptions = mock(AppOptions.class);
 
@@ -54,7 +54,7 @@ class ProcessReadOrderTest {
         List<Book> mockBooks = List.of(
                 new Book(1, "Test Book 1", "tag1,tag2", "2.0")
         );
-        doReturn(mockBooks).when(mockCalibreDB).getBooks();
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
 
         when(mockOptions.isAudiobooks()).thenReturn(false);
         when(mockOptions.isReadorders()).thenReturn(true);
@@ -75,7 +75,7 @@ class ProcessReadOrderTest {
 
     @Test
     void test_if_readorder_custom_field_different_from_tag_custom_field_wins() throws DataAccessException {
-        CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
         CalibreUpdater mockUpdater = Mockito.spy(new CalibreUpdater(mockCalibreDB));
         AppOptions mockOptions = mock(AppOptions.class);
 
@@ -83,7 +83,7 @@ class ProcessReadOrderTest {
         List<Book> mockBooks = List.of(
                 new Book(1, "Test Book 1", "tag1,readorder:2.0,tag2", "3.0")
         );
-        doReturn(mockBooks).when(mockCalibreDB).getBooks();
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
 
         when(mockOptions.isAudiobooks()).thenReturn(false);
         when(mockOptions.isReadorders()).thenReturn(true);
@@ -105,7 +105,7 @@ class ProcessReadOrderTest {
 
     @Test
     void test_if_readorder_custom_field_same_as_tag_no_update() throws DataAccessException {
-        CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
         CalibreUpdater mockUpdater = Mockito.spy(new CalibreUpdater(mockCalibreDB));
         AppOptions mockOptions = mock(AppOptions.class);
 
@@ -113,7 +113,7 @@ class ProcessReadOrderTest {
         List<Book> mockBooks = List.of(
                 new Book(1, "Test Book 1", "tag1,readorder:2.0,tag2", "2.0")
         );
-        doReturn(mockBooks).when(mockCalibreDB).getBooks();
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
 
         when(mockOptions.isAudiobooks()).thenReturn(false);
         when(mockOptions.isReadorders()).thenReturn(true);
@@ -129,7 +129,7 @@ class ProcessReadOrderTest {
 
     @Test
     void test_if_custom_field_is_0_0_removes_tag() throws DataAccessException {
-        CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
         CalibreUpdater mockUpdater = Mockito.spy(new CalibreUpdater(mockCalibreDB));
         AppOptions mockOptions = mock(AppOptions.class);
 
@@ -137,7 +137,7 @@ class ProcessReadOrderTest {
         List<Book> mockBooks = List.of(
                 new Book(1, "Test Book 1", "tag1,readorder:2.0,tag2", "0.0")
         );
-        doReturn(mockBooks).when(mockCalibreDB).getBooks();
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
 
         when(mockOptions.isAudiobooks()).thenReturn(false);
         when(mockOptions.isReadorders()).thenReturn(true);
@@ -161,7 +161,7 @@ class ProcessReadOrderTest {
 
     @Test
     void test_if_readorder_custom_field_is_empty_removes_the_tag() throws DataAccessException {
-        CalibreDBCli mockCalibreDB = mock(CalibreDBCli.class);
+        CalibreDBCli mockCalibreDB = MockCalibreDB.create();
         CalibreUpdater mockUpdater = Mockito.spy(new CalibreUpdater(mockCalibreDB));
         AppOptions mockOptions = mock(AppOptions.class);
 
@@ -169,7 +169,7 @@ class ProcessReadOrderTest {
         List<Book> mockBooks = List.of(
                 new Book(1, "Test Book 1", "tag1,readorder:2.0,tag2", null)
         );
-        doReturn(mockBooks).when(mockCalibreDB).getBooks();
+        doReturn(mockBooks.stream()).when(mockCalibreDB).streamBooks(any());
 
         when(mockOptions.isAudiobooks()).thenReturn(false);
         when(mockOptions.isReadorders()).thenReturn(true);
@@ -0,0 +1,54 @@
+package calibreautomations;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagDictionaryTest {
+
+    @Test
+    void test_intern_returns_the_same_id_for_the_same_tag() {
+        TagDictionary dictionary = new TagDictionary();
+
+        int id = dictionary.intern("tag1");
+
+        assertEquals(id, dictionary.intern("tag1"));
+        assertNotEquals(id, dictionary.intern("tag2"));
+        assertEquals("tag1", dictionary.name(id));
+        assertEquals(2, dictionary.size());
+        assertEquals(-1, dictionary.idOf("unknown"));
+    }
+
+    @Test
+    void test_readorder_values_are_parsed_once() {
+        TagDictionary dictionary = new TagDictionary();
+
+        assertEquals("2.0", dictionary.readOrderValue(dictionary.intern("readorder:2.0")));
+        assertNull(dictionary.readOrderValue(dictionary.intern("tag1")));
+    }
+
+    @Test
+    void test_dictionary_grows_beyond_initial_capacity() {
+        TagDictionary dictionary = new TagDictionary();
+        for (int i = 0; i < 1000; i++) {
+            dictionary.intern("tag" + i);
+        }
+
+        assertEquals(1000, dictionary.size());
+        assertEquals("tag999", dictionary.name(dictionary.idOf("tag999")));
+    }
+
+    @Test
+    void test_books_share_the_tag_strings() {
+        TagDictionary dictionary = new TagDictionary();
+        Book book1 = new Book(1, "Test Book 1", List.of("tag1", "readorder:2.0"), null, dictionary);
+        Book book2 = new Book(2, "Test Book 2", List.of(" tag1", "tag2", "tag1"), null, dictionary);
+
+        assertSame(book1.getTagList().get(0), book2.getTagList().get(0));
+        assertEquals(List.of("tag1", "tag2"), book2.getTagList());
+        assertFalse(book2.hasTag("readorder:2.0"));
+        assertEquals(3, dictionary.size());
+    }
+}
@@ -0,0 +1,81 @@
+package calibreautomations.metrics;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RunMetricsTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void test_timer_percentiles_are_within_a_factor_of_two() {
+        Timer timer = new Timer();
+        for (int i = 0; i < 98; i++) {
+            timer.record(1_000);
+        }
+        timer.record(1_000_000);
+        timer.record(2_000_000);
+
+        assertEquals(100, timer.getCount());
+        long p50 = timer.getPercentileNanos(0.5);
+        assertTrue(p50 >= 1_000 && p50 < 2_000, "p50 was " + p50);
+        long p99 = timer.getPercentileNanos(0.99);
+        assertTrue(p99 >= 1_000_000 && p99 < 2_000_000, "p99 was " + p99);
+        assertEquals(2_000_000, timer.getPercentileNanos(1.0));
+        assertEquals(2_000_000, timer.getMaxNanos());
+    }
+
+    @Test
+    void test_empty_timer_has_zero_percentiles() {
+        assertEquals(0, new Timer().getPercentileNanos(0.99));
+    }
+
+    @Test
+    void test_prometheus_format() {
+        RunMetrics metrics = new RunMetrics();
+        metrics.timer("calibredb.applyUpdates").record(2_000_000_000L);
+        metrics.add("calibredb.processes", 3);
+
+        String text = metrics.toPrometheus();
+
+        assertTrue(text.contains("# TYPE calibreautomations_calibredb_applyUpdates_seconds summary\n"));
+        assertTrue(text.contains("calibreautomations_calibredb_applyUpdates_seconds{quantile=\"0.99\"} 2.0\n"));
+        assertTrue(text.contains("calibreautomations_calibredb_applyUpdates_seconds_count 1\n"));
+        assertTrue(text.contains("calibreautomations_calibredb_processes_total 3\n"));
+    }
+
+    @Test
+    void test_write_json_file() throws IOException {
+        RunMetrics metrics = new RunMetrics();
+        metrics.timer("phase.evaluate").record(1_000);
+        metrics.increment("books.read");
+        Path file = directory.resolve("metrics").resolve("run.json");
+
+        metrics.write(file);
+
+        JsonObject json = JsonParser.parseString(Files.readString(file)).getAsJsonObject();
+        assertEquals(1, json.getAsJsonObject("timers").getAsJsonObject("phase.evaluate").get("count").getAsInt());
+        assertEquals(1, json.getAsJsonObject("counters").get("books.read").getAsInt());
+    }
+
+    @Test
+    void test_write_prometheus_file() throws IOException {
+        RunMetrics metrics = new RunMetrics();
+        metrics.increment("books.read");
+        Path file = directory.resolve("calibre.prom");
+
+        metrics.write(file);
+
+        assertTrue(Files.readString(file).contains("calibreautomations_books_read_total 1\n"));
+        assertFalse(Files.exists(directory.resolve("calibre.prom.tmp")));
+    }
+}
@@ -0,0 +1,78 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BookFilterTest {
+
+    private static final BookFilter CANDIDATES = BookFilter.anyOf(List.of(
+            BookFilter.anyOf(List.of(BookFilter.hasTag(Book.AUDIOBOOK_TAG), BookFilter.titleContains("(audiobook)"))),
+            BookFilter.anyOf(List.of(BookFilter.hasTagStartingWith(Book.READORDER_TAG_PREFIX), BookFilter.hasReadOrder()))));
+
+    @Test
+    void test_books_matching_any_filter() {
+        assertTrue(CANDIDATES.test(new Book(1, "Title", "tag1,format:audiobook", null)));
+        assertTrue(CANDIDATES.test(new Book(2, "Title (audiobook)", "tag1", null)));
+        assertTrue(CANDIDATES.test(new Book(3, "Title", "readorder:2.0", null)));
+        assertTrue(CANDIDATES.test(new Book(4, "Title", "", "0.0")));
+        assertFalse(CANDIDATES.test(new Book(5, "Title", "tag1,format:ebook", null)));
+    }
+
+    @Test
+    void test_calibre_search() {
+        assertEquals("(tags:\"=format:audiobook\" or title:\"(audiobook)\" or tags:\"~^readorder:\" or #readorder:true)",
+                CANDIDATES.toCalibreSearch());
+        assertEquals("tags:\"~^a\\\\.b\\\"c\"", BookFilter.hasTagStartingWith("a.b\"c").toCalibreSearch());
+    }
+
+    @Test
+    void test_query_combines_the_filter_with_the_modification_date() {
+        assertNull(BookQuery.all().toCalibreSearch());
+        assertTrue(BookQuery.all().matching(BookFilter.all()).isAll());
+
+        BookQuery query = BookQuery.modifiedSince(Instant.parse("2024-05-01T12:00:00Z")).matching(BookFilter.hasReadOrder());
+
+        assertFalse(query.isAll());
+        assertTrue(query.toCalibreSearch().startsWith("last_modified:>="));
+        assertTrue(query.toCalibreSearch().endsWith(" and #readorder:true"));
+        assertEquals("id:>=10 and id:<20", BookQuery.all().withIds(10, 20).toCalibreSearch());
+        assertEquals("id:>=10", BookQuery.all().withIds(10, Integer.MAX_VALUE).toCalibreSearch());
+    }
+
+    @Test
+    void test_query_filters_are_combined() {
+        BookFilter audiobooks = BookFilter.hasTag(Book.AUDIOBOOK_TAG);
+        BookQuery readOrders = BookQuery.all().matching(BookFilter.hasReadOrder());
+
+        BookQuery query = readOrders.matching(audiobooks);
+
+        assertSame(readOrders, readOrders.matching(BookFilter.all()));
+        assertEquals("(#readorder:true and tags:\"=format:audiobook\")", query.toCalibreSearch());
+        assertTrue(query.getFilter().test(new Book(1, "Title", "format:audiobook", "2.0")));
+        assertFalse(query.getFilter().test(new Book(2, "Title", "format:audiobook", null)));
+        assertFalse(query.getFilter().test(new Book(3, "Title", "tag1", "2.0")));
+        List<Object> parameters = new ArrayList<>();
+        assertEquals("(c.value IS NOT NULL AND EXISTS (SELECT 1 FROM books_tags_link fl JOIN tags ft ON ft.id = fl.tag WHERE fl.book = b.id AND ft.name = ?))",
+                query.getFilter().toSql("c.value", parameters));
+        assertEquals(List.of(Book.AUDIOBOOK_TAG), parameters);
+    }
+
+    @Test
+    void test_sql_condition_and_parameters() {
+        List<Object> parameters = new ArrayList<>();
+
+        String condition = BookFilter.anyOf(List.of(BookFilter.hasTagStartingWith("readorder:"), BookFilter.hasReadOrder()))
+                .toSql("c.value", parameters);
+
+        assertTrue(condition.startsWith("(EXISTS ("));
+        assertTrue(condition.endsWith(" OR c.value IS NOT NULL)"));
+        assertEquals(List.of(10, "readorder:"), parameters);
+        assertEquals("1 = 1", BookFilter.all().toSql("c.value", parameters));
+    }
+}
@@ -0,0 +1,65 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BookJsonReaderTest {
+
+    @Test
+    void test_reads_books_one_at_a_time() throws IOException {
+        String json = """
+                [
+                  {"*readorder": 2.0, "id": 1, "tags": ["tag1", "readorder:2.0"], "title": "Test Book 1"},
+                  {"id": 2, "tags": [], "title": "Test Book 2", "uuid": "ignored"},
+                  {"*readorder": null, "id": 3, "tags": ["format:audiobook"], "title": "Test Book 3"}
+                ]
+                """;
+        try (BookJsonReader reader = new BookJsonReader(new StringReader(json))) {
+            Book book = reader.next();
+            assertEquals(1, book.getId());
+            assertEquals("Test Book 1", book.getTitle());
+            assertEquals("tag1, readorder:2.0", book.getTags());
+            assertEquals("2.0", book.getReadOrderFromCustomField());
+
+            book = reader.next();
+            assertEquals(2, book.getId());
+            assertEquals("", book.getTags());
+            assertEquals(Book.NO_READORDER, book.getReadOrderFromCustomField());
+
+            book = reader.next();
+            assertEquals(3, book.getId());
+            assertTrue(book.isAudioBookFromTags());
+            assertEquals(Book.NO_READORDER, book.getReadOrderFromCustomField());
+
+            assertNull(reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void test_skips_books_not_modified_since() throws IOException {
+        String json = """
+                [
+                  {"id": 1, "last_modified": "2024-01-15T09:59:59+00:00", "tags": [], "title": "Test Book 1"},
+                  {"id": 2, "last_modified": "2024-01-15T10:00:01+00:00", "tags": [], "title": "Test Book 2"}
+                ]
+                """;
+        try (BookJsonReader reader = new BookJsonReader(new StringReader(json), Instant.parse("2024-01-15T10:00:00Z"))) {
+            assertEquals(2, reader.next().getId());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void test_empty_library() throws IOException {
+        try (BookJsonReader reader = new BookJsonReader(new StringReader("[]"))) {
+            assertNull(reader.next());
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@SuppressWarnings("unchecked")
+class BufferedCalibreDBTest {
+
+    @Test
+    void test_changes_to_the_same_book_are_merged() throws DataAccessException {
+        CalibreDB mockCalibreDB = mock(CalibreDB.class);
+        BufferedCalibreDB bufferedCalibreDB = new BufferedCalibreDB(mockCalibreDB, 10);
+
+        bufferedCalibreDB.updateBookTitle(1, "Test Book (audiobook)");
+        bufferedCalibreDB.replaceBookTags(1, List.of("tag1", "readorder:2.0"));
+        bufferedCalibreDB.deleteReadOrderCustomField(1);
+        bufferedCalibreDB.replaceBookTags(2, List.of("tag2"));
+
+        // Nothing is written until the batch is flushed
+        verify(mockCalibreDB, never()).applyUpdates(any());
+        bufferedCalibreDB.flush();
+
+        ArgumentCaptor<List<BookUpdate>> updatesCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockCalibreDB).applyUpdates(updatesCaptor.capture());
+        List<BookUpdate> updates = updatesCaptor.getValue();
+        assertEquals(2, updates.size());
+        assertEquals("Test Book (audiobook)", updates.get(0).getTitle());
+        assertEquals(List.of("tag1", "readorder:2.0"), updates.get(0).getTags());
+        assertTrue(updates.get(0).isDeleteReadOrder());
+        assertNull(updates.get(1).getTitle());
+        assertEquals(4, bufferedCalibreDB.getMutationCount());
+        assertEquals(1, bufferedCalibreDB.getBatchCount());
+    }
+
+    @Test
+    void test_updates_are_merged_with_the_pending_changes() throws DataAccessException {
+        CalibreDB mockCalibreDB = mock(CalibreDB.class);
+        BufferedCalibreDB bufferedCalibreDB = new BufferedCalibreDB(mockCalibreDB, 10);
+
+        bufferedCalibreDB.updateBookTitle(1, "Test Book (audiobook)");
+        bufferedCalibreDB.applyUpdates(List.of(new BookUpdate(1).setTags(List.of("tag1")).setReadOrder("2.0")));
+        bufferedCalibreDB.flush();
+
+        ArgumentCaptor<List<BookUpdate>> updatesCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockCalibreDB).applyUpdates(updatesCaptor.capture());
+        BookUpdate update = updatesCaptor.getValue().get(0);
+        assertEquals("Test Book (audiobook)", update.getTitle());
+        assertEquals(List.of("tag1"), update.getTags());
+        assertEquals("2.0", update.getReadOrder());
+        assertEquals(3, bufferedCalibreDB.getMutationCount());
+    }
+
+    @Test
+    void test_batch_is_written_when_full() throws DataAccessException {
+        CalibreDB mockCalibreDB = mock(CalibreDB.class);
+        BufferedCalibreDB bufferedCalibreDB = new BufferedCalibreDB(mockCalibreDB, 2);
+
+        bufferedCalibreDB.updateBookTitle(1, "Test Book 1");
+        bufferedCalibreDB.updateBookTitle(1, "Test Book 1 (audiobook)");
+        verify(mockCalibreDB, never()).applyUpdates(any());
+
+        bufferedCalibreDB.updateBookTitle(2, "Test Book 2");
+        verify(mockCalibreDB, times(1)).applyUpdates(any());
+        // Flushing the wrapped backend, e.g. saving the listing cache, is left to the end of the run
+        verify(mockCalibreDB, never()).flush();
+
+        bufferedCalibreDB.flush();
+        // An empty buffer does not write again
+        bufferedCalibreDB.flush();
+        assertEquals(1, bufferedCalibreDB.getBatchCount());
+    }
+
+    @Test
+    void test_batches_are_written_while_books_are_being_read() throws DataAccessException {
+        CalibreDB mockCalibreDB = mock(CalibreDB.class);
+        doReturn(Stream.of(new Book(1, "Test Book 1", "tag1", null), new Book(2, "Test Book 2", "tag1", null),
+                new Book(3, "Test Book 3", "tag1", null), new Book(4, "Test Book 4", "tag1", null),
+                new Book(5, "Test Book 5", "tag1", null))).when(mockCalibreDB).streamBooks(any());
+        BufferedCalibreDB bufferedCalibreDB = new BufferedCalibreDB(mockCalibreDB, 2);
+
+        try (Stream<Book> books = bufferedCalibreDB.streamBooks()) {
+            Iterator<Book> iterator = books.iterator();
+            while (iterator.hasNext()) {
+                Book book = iterator.next();
+                bufferedCalibreDB.updateBookTitle(book.getId(), book.getTitle() + " (audiobook)");
+            }
+            // Two full batches during the listing, the last book waits for the flush
+            verify(mockCalibreDB, times(2)).applyUpdates(any());
+        }
+
+        bufferedCalibreDB.flush();
+        verify(mockCalibreDB, times(3)).applyUpdates(any());
+        assertEquals(3, bufferedCalibreDB.getBatchCount());
+    }
+}
@@ -0,0 +1,182 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class CachedCalibreDBTest {
+
+    @TempDir
+    Path libraryPath;
+
+    @TempDir
+    Path cacheDirectory;
+
+    private CalibreDB mockCalibreDB;
+
+    @BeforeEach
+    void setUp() throws IOException, DataAccessException {
+        // Only the size and modification time of metadata.db matter for the cache
+        Files.writeString(libraryPath.resolve("metadata.db"), "library");
+        mockCalibreDB = mock(CalibreDB.class);
+        doAnswer(invocation -> Stream.of(
+                new Book(1, "Test Book 1", "tag1,readorder:2.0", "2.0"),
+                new Book(2, "Test Book 2", "format:audiobook", null)))
+                .when(mockCalibreDB).streamBooks(any());
+        // Writing to the library changes metadata.db
+        doAnswer(invocation -> {
+            changeLibrary();
+            return null;
+        }).when(mockCalibreDB).applyUpdates(any());
+    }
+
+    @Test
+    void test_snapshot_is_reused_while_the_library_does_not_change() throws DataAccessException {
+        List<Book> listed = newCachedCalibreDB(false).getBooks();
+        List<Book> cached = newCachedCalibreDB(false).getBooks();
+
+        verify(mockCalibreDB, times(1)).streamBooks(any());
+        assertEquals(listed.size(), cached.size());
+        assertEquals("tag1, readorder:2.0", cached.get(0).getTags());
+        assertEquals("2.0", cached.get(0).getReadOrderFromCustomField());
+        assertEquals(Book.NO_READORDER, cached.get(1).getReadOrderFromCustomField());
+    }
+
+    @Test
+    void test_filter_is_applied_to_the_snapshot() throws DataAccessException {
+        BookQuery audiobooks = BookQuery.all().matching(BookFilter.hasTag(Book.AUDIOBOOK_TAG));
+        newCachedCalibreDB(false).getBooks();
+        List<Book> cached;
+        try (Stream<Book> books = newCachedCalibreDB(false).streamBooks(audiobooks)) {
+            cached = books.toList();
+        }
+
+        verify(mockCalibreDB, times(1)).streamBooks(BookQuery.all());
+        assertEquals(List.of(2), cached.stream().map(Book::getId).toList());
+    }
+
+    @Test
+    void test_filtered_listing_takes_a_snapshot() throws DataAccessException {
+        BookQuery audiobooks = BookQuery.all().matching(BookFilter.hasTag(Book.AUDIOBOOK_TAG));
+        List<Book> listed;
+        try (Stream<Book> books = newCachedCalibreDB(false).streamBooks(audiobooks)) {
+            listed = books.toList();
+        }
+        List<Book> cached;
+        try (Stream<Book> books = newCachedCalibreDB(false).streamBooks(audiobooks)) {
+            cached = books.toList();
+        }
+
+        // The first run lists every book for the snapshot, the second one never calls the backend
+        verify(mockCalibreDB, times(1)).streamBooks(any());
+        verify(mockCalibreDB).streamBooks(BookQuery.all());
+        assertEquals(List.of(2), listed.stream().map(Book::getId).toList());
+        assertEquals(List.of(2), cached.stream().map(Book::getId).toList());
+    }
+
+    @Test
+    void test_own_writes_are_patched_into_the_snapshot() throws DataAccessException {
+        CachedCalibreDB cachedCalibreDB = newCachedCalibreDB(false);
+        cachedCalibreDB.getBooks();
+        cachedCalibreDB.applyUpdates(List.of(new BookUpdate(2).setTitle("Test Book 2 (audiobook)"),
+                new BookUpdate(1).setTags(List.of("tag1")).setDeleteReadOrder(true)));
+        cachedCalibreDB.close();
+
+        List<Book> cached = newCachedCalibreDB(false).getBooks();
+
+        verify(mockCalibreDB, times(1)).streamBooks(any());
+        assertEquals("Test Book 2 (audiobook)", cached.get(1).getTitle());
+        assertEquals("tag1", cached.get(0).getTags());
+        assertEquals(Book.NO_READORDER, cached.get(0).getReadOrderFromCustomField());
+    }
+
+    @Test
+    void test_several_batches_are_patched_into_the_snapshot() throws DataAccessException {
+        CachedCalibreDB cachedCalibreDB = newCachedCalibreDB(false);
+        cachedCalibreDB.getBooks();
+        cachedCalibreDB.applyUpdates(List.of(new BookUpdate(2).setTitle("Test Book 2 (audiobook)")));
+        cachedCalibreDB.applyUpdates(List.of(new BookUpdate(1).setTags(List.of("tag1"))));
+        cachedCalibreDB.applyUpdates(List.of(new BookUpdate(2).setReadOrder("4.0")));
+
+        // The snapshot in use has every batch
+        List<Book> patched = cachedCalibreDB.getBooks();
+        cachedCalibreDB.close();
+        List<Book> cached = newCachedCalibreDB(false).getBooks();
+
+        verify(mockCalibreDB, times(1)).streamBooks(any());
+        for (List<Book> books : List.of(patched, cached)) {
+            assertEquals("tag1", books.get(0).getTags());
+            assertEquals("Test Book 2 (audiobook)", books.get(1).getTitle());
+            assertEquals("4.0", books.get(1).getReadOrderFromCustomField());
+        }
+    }
+
+    @Test
+    void test_writes_during_the_listing_are_patched_into_the_new_snapshot() throws DataAccessException {
+        CachedCalibreDB cachedCalibreDB = newCachedCalibreDB(false);
+        try (Stream<Book> books = cachedCalibreDB.streamBooks(BookQuery.all())) {
+            Iterator<Book> iterator = books.iterator();
+            iterator.next();
+            cachedCalibreDB.applyUpdates(List.of(new BookUpdate(1).setTitle("Test Book 1 (audiobook)")));
+            iterator.next();
+            assertFalse(iterator.hasNext());
+        }
+        cachedCalibreDB.close();
+
+        List<Book> cached = newCachedCalibreDB(false).getBooks();
+
+        verify(mockCalibreDB, times(1)).streamBooks(any());
+        assertEquals("Test Book 1 (audiobook)", cached.get(0).getTitle());
+    }
+
+    @Test
+    void test_other_changes_invalidate_the_snapshot() throws DataAccessException, IOException {
+        newCachedCalibreDB(false).getBooks();
+        changeLibrary();
+
+        newCachedCalibreDB(false).getBooks();
+
+        verify(mockCalibreDB, times(2)).streamBooks(any());
+    }
+
+    @Test
+    void test_refresh_ignores_the_snapshot() throws DataAccessException {
+        newCachedCalibreDB(false).getBooks();
+
+        newCachedCalibreDB(true).getBooks();
+
+        verify(mockCalibreDB, times(2)).streamBooks(any());
+    }
+
+    @Test
+    void test_filtered_queries_are_not_cached() throws DataAccessException {
+        CachedCalibreDB cachedCalibreDB = newCachedCalibreDB(false);
+        cachedCalibreDB.getBooks();
+
+        try (Stream<Book> books = cachedCalibreDB.streamBooks(BookQuery.modifiedSince(java.time.Instant.EPOCH))) {
+            assertEquals(2, books.count());
+        }
+
+        verify(mockCalibreDB, times(2)).streamBooks(any());
+    }
+
+    private CachedCalibreDB newCachedCalibreDB(boolean refresh) {
+        return new CachedCalibreDB(mockCalibreDB, libraryPath.toString(), cacheDirectory, refresh);
+    }
+
+    private void changeLibrary() throws IOException {
+        Files.writeString(libraryPath.resolve("metadata.db"), " changed", StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,262 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import calibreautomations.PlanReader;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CalibreDBSqliteTest {
+
+    @TempDir
+    Path libraryPath;
+
+    private CalibreDBSqlite calibreDB;
+
+    /**
+     * Creates a fixture metadata.db with the subset of the Calibre schema used by the updater.
+     */
+    static void createFixture(Path libraryPath) throws SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + libraryPath.resolve("metadata.db"));
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE books (id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT NOT NULL DEFAULT 'Unknown' COLLATE NOCASE, " +
+                              "sort TEXT COLLATE NOCASE, path TEXT NOT NULL DEFAULT '', " +
+                              "last_modified TIMESTAMP NOT NULL DEFAULT '2000-01-01 00:00:00+00:00')");
+            statement.execute("CREATE TABLE tags (id INTEGER PRIMARY KEY, name TEXT NOT NULL COLLATE NOCASE, UNIQUE (name))");
+            statement.execute("CREATE TABLE books_tags_link (id INTEGER PRIMARY KEY, book INTEGER NOT NULL, tag INTEGER NOT NULL, UNIQUE (book, tag))");
+            statement.execute("CREATE TABLE custom_columns (id INTEGER PRIMARY KEY AUTOINCREMENT, label TEXT NOT NULL, name TEXT NOT NULL, " +
+                              "datatype TEXT NOT NULL, mark_for_delete BOOL DEFAULT 0 NOT NULL, normalized BOOL NOT NULL)");
+            statement.execute("CREATE TABLE custom_column_1 (id INTEGER PRIMARY KEY AUTOINCREMENT, book INTEGER, value REAL NOT NULL, UNIQUE (book))");
+            statement.execute("CREATE TABLE metadata_dirtied (id INTEGER PRIMARY KEY, book INTEGER NOT NULL, UNIQUE (book))");
+            // Same trigger Calibre installs, it needs the title_sort function to be registered
+            statement.execute("CREATE TRIGGER books_update_trg AFTER UPDATE ON books BEGIN " +
+                              "UPDATE books SET sort = title_sort(NEW.title) WHERE id = NEW.id AND OLD.title <> NEW.title; END");
+
+            statement.execute("INSERT INTO custom_columns (label, name, datatype, normalized) VALUES ('readorder', 'Read order', 'float', 0)");
+            statement.execute("INSERT INTO books (id, title) VALUES (1, 'Test Book 1'), (2, 'The Test Book 2'), (3, 'Test Book 3')");
+            statement.execute("INSERT INTO tags (id, name) VALUES (1, 'tag1'), (2, 'readorder:2.0'), (3, 'tag2'), (4, 'format:audiobook')");
+            statement.execute("INSERT INTO books_tags_link (book, tag) VALUES (1, 1), (1, 2), (1, 3), (2, 4), (2, 1)");
+            statement.execute("INSERT INTO custom_column_1 (book, value) VALUES (1, 3.0), (3, 0.0)");
+        }
+    }
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        createFixture(libraryPath);
+        calibreDB = new CalibreDBSqlite(libraryPath.toString());
+    }
+
+    @Test
+    void test_get_books_reads_tags_and_readorder() throws DataAccessException {
+        List<Book> books = calibreDB.getBooks();
+
+        assertEquals(3, books.size());
+        assertEquals(1, books.get(0).getId());
+        assertEquals("Test Book 1", books.get(0).getTitle());
+        assertEquals("tag1, readorder:2.0, tag2", books.get(0).getTags());
+        assertEquals("3.0", books.get(0).getReadOrderFromCustomField());
+        assertEquals("format:audiobook, tag1", books.get(1).getTags());
+        assertEquals(Book.NO_READORDER, books.get(1).getReadOrderFromCustomField());
+        assertEquals("", books.get(2).getTags());
+        assertEquals("0.0", books.get(2).getReadOrderFromCustomField());
+    }
+
+    @Test
+    void test_filter_lists_only_the_matching_books() throws DataAccessException {
+        BookQuery readOrders = BookQuery.all().matching(
+                BookFilter.anyOf(List.of(BookFilter.hasTagStartingWith("readorder:"), BookFilter.hasReadOrder())));
+        BookQuery audiobooks = BookQuery.all().matching(BookFilter.hasTag("format:audiobook"));
+
+        try (Stream<Book> books = calibreDB.streamBooks(readOrders)) {
+            assertEquals(List.of(1, 3), books.map(Book::getId).toList());
+        }
+        try (Stream<Book> books = calibreDB.streamBooks(audiobooks)) {
+            List<Book> listed = books.toList();
+            assertEquals(1, listed.size());
+            // The tags of the listed books are complete, not only the ones matching the filter
+            assertEquals("format:audiobook, tag1", listed.get(0).getTags());
+        }
+    }
+
+    @Test
+    void test_id_range_and_max_book_id() throws DataAccessException {
+        assertEquals(3, calibreDB.getMaxBookId());
+        try (Stream<Book> books = calibreDB.streamBooks(BookQuery.all().withIds(2, 3))) {
+            List<Book> listed = books.toList();
+            assertEquals(List.of(2), listed.stream().map(Book::getId).toList());
+            assertEquals("format:audiobook, tag1", listed.get(0).getTags());
+        }
+    }
+
+    @Test
+    void test_update_book_title_updates_sort_and_marks_dirty() throws DataAccessException, SQLException {
+        calibreDB.updateBookTitle(2, "The Test Book 2 (audiobook)");
+
+        assertEquals("The Test Book 2 (audiobook)", queryString("SELECT title FROM books WHERE id = 2"));
+        assertEquals("Test Book 2 (audiobook), The", queryString("SELECT sort FROM books WHERE id = 2"));
+        assertEquals("2", queryString("SELECT book FROM metadata_dirtied"));
+    }
+
+    @Test
+    void test_replace_book_tags_relinks_and_removes_unused_tags() throws DataAccessException, SQLException {
+        calibreDB.replaceBookTags(1, List.of("tag1", " tag2", "readorder:3.0"));
+
+        assertEquals("tag1, tag2, readorder:3.0", calibreDB.getBooks().get(0).getTags());
+        assertNull(queryString("SELECT id FROM tags WHERE name = 'readorder:2.0'"));
+    }
+
+    @Test
+    void test_delete_readorder_custom_field() throws DataAccessException {
+        calibreDB.deleteReadOrderCustomField(3);
+
+        assertEquals(Book.NO_READORDER, calibreDB.getBooks().get(2).getReadOrderFromCustomField());
+    }
+
+    @Test
+    void test_apply_updates_writes_all_fields_in_one_transaction() throws DataAccessException {
+        calibreDB.applyUpdates(List.of(
+                new BookUpdate(1).setTitle("Test Book 1 (audiobook)").setTags(List.of("tag1", "readorder:3.0")),
+                new BookUpdate(3).setDeleteReadOrder(true)));
+
+        List<Book> books = calibreDB.getBooks();
+        assertEquals("Test Book 1 (audiobook)", books.get(0).getTitle());
+        assertEquals("tag1, readorder:3.0", books.get(0).getTags());
+        assertEquals(Book.NO_READORDER, books.get(2).getReadOrderFromCustomField());
+    }
+
+    @Test
+    void test_apply_updates_rolls_back_when_a_book_fails() throws DataAccessException {
+        assertThrows(DataAccessException.class, () -> calibreDB.applyUpdates(List.of(
+                new BookUpdate(1).setTitle("Changed"),
+                new BookUpdate(99).setTitle("Missing book"))));
+
+        assertEquals("Test Book 1", calibreDB.getBooks().get(0).getTitle());
+    }
+
+    @Test
+    void test_set_readorder_custom_field() throws DataAccessException {
+        calibreDB.setReadOrderCustomField(1, "4.5");
+        calibreDB.setReadOrderCustomField(2, "1.0");
+
+        List<Book> books = calibreDB.getBooks();
+        assertEquals("4.5", books.get(0).getReadOrderFromCustomField());
+        assertEquals("1.0", books.get(1).getReadOrderFromCustomField());
+    }
+
+    @Test
+    void test_undo_journal_restores_the_previous_values(@TempDir Path undoDir) throws DataAccessException, IOException {
+        Path journalDirectory = UndoJournal.directoryFor(undoDir, libraryPath.toString());
+        CalibreDBSqlite journaledDB = new CalibreDBSqlite(libraryPath.toString(), new UndoJournal(journalDirectory, 5));
+        List<Book> before = journaledDB.getBooks();
+        journaledDB.applyUpdates(List.of(
+                new BookUpdate(1).setTitle("Test Book 1 (audiobook)").setTags(List.of("tag1")).setDeleteReadOrder(true),
+                new BookUpdate(2).setReadOrder("7.0")));
+        journaledDB.applyUpdates(List.of(new BookUpdate(1).setTitle("Changed again")));
+        journaledDB.close();
+
+        List<BookUpdate> restores = new ArrayList<>();
+        try (PlanReader reader = PlanReader.open(UndoJournal.last(journalDirectory))) {
+            BookUpdate restore;
+            while ((restore = reader.next()) != null) {
+                restores.add(restore);
+            }
+        }
+        Collections.reverse(restores);
+        for (BookUpdate restore : restores) {
+            calibreDB.applyUpdates(List.of(restore));
+        }
+
+        assertEquals(before.toString(), calibreDB.getBooks().toString());
+    }
+
+    @Test
+    void test_undo_journal_skips_rolled_back_batches(@TempDir Path undoDir) throws DataAccessException, IOException, SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + libraryPath.resolve("metadata.db"));
+             Statement statement = connection.createStatement()) {
+            statement.execute("UPDATE custom_columns SET mark_for_delete = 1");
+        }
+        Path journalDirectory = UndoJournal.directoryFor(undoDir, libraryPath.toString());
+        CalibreDBSqlite journaledDB = new CalibreDBSqlite(libraryPath.toString(), new UndoJournal(journalDirectory, 5));
+
+        // The title is read for the journal before the missing custom column fails the batch
+        assertThrows(DataAccessException.class, () -> journaledDB.applyUpdates(List.of(
+                new BookUpdate(1).setTitle("Changed").setReadOrder("7.0"))));
+        journaledDB.close();
+
+        assertEquals("Test Book 1", calibreDB.getBooks().get(0).getTitle());
+        assertNull(UndoJournal.last(journalDirectory));
+    }
+
+    @Test
+    void test_batches_commit_while_books_are_listed() throws DataAccessException, SQLException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + libraryPath.resolve("metadata.db"));
+             Statement statement = connection.createStatement()) {
+            statement.execute("WITH RECURSIVE n(id) AS (SELECT 4 UNION ALL SELECT id + 1 FROM n WHERE id < 2500) " +
+                              "INSERT INTO books (id, title) SELECT id, 'Test Book ' || id FROM n");
+        }
+        BufferedCalibreDB bufferedDB = new BufferedCalibreDB(calibreDB, 100);
+
+        int listed = 0;
+        try (Stream<Book> books = bufferedDB.streamBooks()) {
+            Iterator<Book> iterator = books.iterator();
+            while (iterator.hasNext()) {
+                Book book = iterator.next();
+                bufferedDB.updateBookTitle(book.getId(), book.getTitle() + " (audiobook)");
+                listed++;
+            }
+            // Each full batch was committed while the listing was open
+            assertEquals(25, bufferedDB.getBatchCount());
+        }
+        bufferedDB.flush();
+
+        assertEquals(2500, listed);
+        assertEquals("Test Book 2500 (audiobook)", queryString("SELECT title FROM books WHERE id = 2500"));
+    }
+
+    @Test
+    void test_stream_books_modified_since() throws DataAccessException {
+        Instant beforeUpdate = Instant.now().minusSeconds(1);
+        calibreDB.replaceBookTags(2, List.of("format:audiobook"));
+
+        try (Stream<Book> books = calibreDB.streamBooks(BookQuery.modifiedSince(beforeUpdate))) {
+            List<Book> modifiedBooks = books.toList();
+            assertEquals(1, modifiedBooks.size());
+            assertEquals(2, modifiedBooks.get(0).getId());
+            assertEquals("format:audiobook", modifiedBooks.get(0).getTags());
+        }
+    }
+
+    @Test
+    void test_title_sort_moves_article_to_the_end() {
+        assertEquals("Hobbit, The", CalibreDBSqlite.titleSort("The Hobbit"));
+        assertEquals("Theory of everything", CalibreDBSqlite.titleSort("Theory of everything"));
+    }
+
+    private String queryString(String sql) throws SQLException {
+        List<String> values = new ArrayList<>();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + libraryPath.resolve("metadata.db"));
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            while (rs.next()) {
+                values.add(rs.getString(1));
+            }
+        }
+        return values.isEmpty() ? null : values.get(0);
+    }
+}
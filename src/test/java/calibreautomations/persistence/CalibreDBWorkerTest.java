@@ -0,0 +1,142 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class CalibreDBWorkerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private List<String> command;
+    private CalibreDBWorker calibreDB;
+
+    @BeforeEach
+    void setUp() throws IOException, URISyntaxException {
+        assumeTrue(isPythonAvailable(), "python3 is needed to run the fake worker");
+        Path library = tempDir.resolve("library.json");
+        Files.writeString(library, """
+                [
+                  {"id": 2, "title": "Test Book 2", "tags": ["format:audiobook"], "last_modified": "2024-01-15T10:00:00+00:00"},
+                  {"id": 1, "title": "Test Book 1", "tags": ["tag1", "readorder:2.0"], "*readorder": 3.0, "last_modified": "2024-01-15T10:00:00+00:00"},
+                  {"id": 3, "title": "Test Book 3", "tags": [], "*readorder": 0.0, "last_modified": "2024-01-15T10:00:00+00:00"}
+                ]
+                """);
+        Path script = Path.of(getClass().getResource("fake_calibre_worker.py").toURI());
+        command = List.of("python3", script.toString(), library.toString());
+        calibreDB = new CalibreDBWorker(command);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (calibreDB != null) {
+            calibreDB.close();
+        }
+    }
+
+    @Test
+    void test_all_requests_share_one_process() throws DataAccessException {
+        List<Book> books = calibreDB.getBooks();
+        assertEquals(3, books.size());
+        assertEquals(1, books.get(0).getId());
+        assertEquals("tag1, readorder:2.0", books.get(0).getTags());
+        assertEquals("3.0", books.get(0).getReadOrderFromCustomField());
+
+        calibreDB.updateBookTitle(2, "Test Book 2 (audiobook)");
+        calibreDB.applyUpdates(List.of(
+                new BookUpdate(1).setTags(List.of("tag1", " readorder:3.0")),
+                new BookUpdate(3).setDeleteReadOrder(true)));
+
+        books = calibreDB.getBooks();
+        assertEquals("tag1, readorder:3.0", books.get(0).getTags());
+        assertEquals("Test Book 2 (audiobook)", books.get(1).getTitle());
+        assertEquals(Book.NO_READORDER, books.get(2).getReadOrderFromCustomField());
+        assertEquals(1, calibreDB.getProcessCount());
+    }
+
+    @Test
+    void test_listing_closed_early_does_not_break_next_request() throws DataAccessException {
+        try (Stream<Book> books = calibreDB.streamBooks()) {
+            assertEquals(1, books.findFirst().orElseThrow().getId());
+        }
+
+        assertEquals(3, calibreDB.getBooks().size());
+        assertEquals(1, calibreDB.getProcessCount());
+    }
+
+    @Test
+    void test_updates_written_while_books_are_listed() throws DataAccessException {
+        List<Integer> ids = new ArrayList<>();
+        try (Stream<Book> books = calibreDB.streamBooks()) {
+            Iterator<Book> iterator = books.iterator();
+            while (iterator.hasNext()) {
+                Book book = iterator.next();
+                ids.add(book.getId());
+                if (book.getId() == 1) {
+                    calibreDB.updateBookTitle(2, "Test Book 2 (audiobook)");
+                }
+            }
+        }
+
+        assertEquals(List.of(1, 2, 3), ids);
+        assertEquals("Test Book 2 (audiobook)", calibreDB.getBooks().get(1).getTitle());
+        assertEquals(1, calibreDB.getProcessCount());
+    }
+
+    @Test
+    void test_listing_is_read_a_page_at_a_time() throws DataAccessException {
+        calibreDB.close();
+        calibreDB = new CalibreDBWorker(command, 1);
+        List<String> titles = new ArrayList<>();
+        try (Stream<Book> books = calibreDB.streamBooks()) {
+            Iterator<Book> iterator = books.iterator();
+            while (iterator.hasNext()) {
+                Book book = iterator.next();
+                titles.add(book.getTitle());
+                if (book.getId() == 1) {
+                    calibreDB.updateBookTitle(2, "Test Book 2 (audiobook)");
+                }
+            }
+        }
+
+        // The second book was not read yet when the update was written
+        assertEquals(List.of("Test Book 1", "Test Book 2 (audiobook)", "Test Book 3"), titles);
+        assertEquals(1, calibreDB.getProcessCount());
+    }
+
+    @Test
+    void test_worker_errors_are_reported() throws DataAccessException {
+        DataAccessException exception = assertThrows(DataAccessException.class,
+                () -> calibreDB.updateBookTitle(99, "Missing book"));
+        assertTrue(exception.getMessage().contains("No book with id 99"));
+
+        // The worker is still usable after an error
+        assertEquals(3, calibreDB.getBooks().size());
+    }
+
+    private static boolean isPythonAvailable() {
+        try {
+            return new ProcessBuilder("python3", "--version").start().waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package calibreautomations.persistence;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class IdleTimeoutInputStreamTest {
+
+    @BeforeEach
+    void setUp() {
+        assumeTrue(Files.isExecutable(Path.of("/bin/sh")), "a POSIX shell is needed to run the test commands");
+    }
+
+    @Test
+    void test_process_that_stops_sending_output_is_killed() throws Exception {
+        Process process = new ProcessBuilder("/bin/sh", "-c", "echo first; sleep 30; echo second").start();
+
+        try (IdleTimeoutInputStream output = new IdleTimeoutInputStream(process.getInputStream(), process, Duration.ofMillis(300))) {
+            long start = System.nanoTime();
+            String read = new String(output.readAllBytes(), StandardCharsets.UTF_8);
+
+            assertEquals("first\n", read);
+            assertTrue(output.isTimedOut());
+            assertTrue(Duration.ofNanos(System.nanoTime() - start).toSeconds() < 10);
+        }
+    }
+
+    @Test
+    void test_time_between_reads_does_not_count() throws Exception {
+        Process process = new ProcessBuilder("/bin/sh", "-c", "echo first; echo second").start();
+
+        try (IdleTimeoutInputStream output = new IdleTimeoutInputStream(process.getInputStream(), process, Duration.ofMillis(300))) {
+            // The process finishes meanwhile, its output waits in the pipe
+            Thread.sleep(1000);
+            String read = new String(output.readAllBytes(), StandardCharsets.UTF_8);
+
+            assertEquals("first\nsecond\n", read);
+            assertFalse(output.isTimedOut());
+        }
+    }
+
+    @Test
+    void test_closing_stops_the_watchdog() throws IOException, InterruptedException {
+        Process process = new ProcessBuilder("/bin/sh", "-c", "sleep 2").start();
+
+        new IdleTimeoutInputStream(process.getInputStream(), process, Duration.ofMillis(300)).close();
+        Thread.sleep(600);
+
+        assertTrue(process.isAlive());
+        process.destroyForcibly();
+    }
+}
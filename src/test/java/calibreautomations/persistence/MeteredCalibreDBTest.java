@@ -0,0 +1,50 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import calibreautomations.metrics.RunMetrics;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+class MeteredCalibreDBTest {
+
+    @Test
+    void test_calls_are_timed_and_books_counted() throws DataAccessException {
+        CalibreDB mockCalibreDB = mock(CalibreDB.class);
+        doReturn(Stream.of(new Book(1, "Test Book 1", "tag1", null), new Book(2, "Test Book 2", "tag2", null)))
+                .when(mockCalibreDB).streamBooks(any());
+        RunMetrics metrics = new RunMetrics();
+        MeteredCalibreDB meteredCalibreDB = new MeteredCalibreDB(mockCalibreDB, metrics);
+
+        try (Stream<Book> books = meteredCalibreDB.streamBooks()) {
+            assertEquals(2, books.count());
+        }
+        meteredCalibreDB.applyUpdates(List.of(new BookUpdate(1).setTitle("Changed"), new BookUpdate(2).setTitle("Changed")));
+
+        verify(mockCalibreDB).applyUpdates(any());
+        assertEquals(1, metrics.timer("calibredb.streamBooks").getCount());
+        // One more read finds the end of the listing
+        assertEquals(3, metrics.timer("calibredb.readBook").getCount());
+        assertEquals(2, metrics.getCounter("books.read"));
+        assertEquals(1, metrics.timer("calibredb.applyUpdates").getCount());
+        assertEquals(2, metrics.getCounter("books.written"));
+    }
+
+    @Test
+    void test_errors_are_counted() throws DataAccessException {
+        CalibreDB mockCalibreDB = mock(CalibreDB.class);
+        doThrow(new DataAccessException("Error updating book title")).when(mockCalibreDB).updateBookTitle(anyInt(), any());
+        RunMetrics metrics = new RunMetrics();
+        MeteredCalibreDB meteredCalibreDB = new MeteredCalibreDB(mockCalibreDB, metrics);
+
+        assertThrows(DataAccessException.class, () -> meteredCalibreDB.updateBookTitle(1, "Changed"));
+
+        assertEquals(1, metrics.getCounter("calibredb.errors"));
+        assertEquals(1, metrics.timer("calibredb.updateBookTitle").getCount());
+        assertEquals(0, metrics.getCounter("books.written"));
+    }
+}
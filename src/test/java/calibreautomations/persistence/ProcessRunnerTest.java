@@ -0,0 +1,75 @@
+package calibreautomations.persistence;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ProcessRunnerTest {
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    @BeforeEach
+    void setUp() {
+        assumeTrue(Files.isExecutable(Path.of("/bin/sh")), "a POSIX shell is needed to run the test commands");
+    }
+
+    @Test
+    void test_large_stderr_does_not_block_the_process() throws Exception {
+        ProcessRunner runner = new ProcessRunner(Duration.ofSeconds(30), bytesRead);
+
+        // Far more than a pipe buffer on both streams
+        ProcessRunner.Result result = runner.run(List.of("/bin/sh", "-c",
+                "i=0; while [ $i -lt 20000 ]; do echo warning $i >&2; echo line $i; i=$((i+1)); done"));
+
+        assertEquals(0, result.exitCode());
+        assertTrue(result.output().startsWith("line 0\nline 1\n"));
+        assertTrue(result.errors().endsWith("warning 19999\n"));
+        assertEquals(result.output().length(), bytesRead.sum());
+    }
+
+    @Test
+    void test_output_is_decoded_as_utf8() throws Exception {
+        ProcessRunner runner = new ProcessRunner(Duration.ofSeconds(30), bytesRead);
+
+        ProcessRunner.Result result = runner.run(List.of("/bin/sh", "-c", "printf 'Ca\\303\\261as\\n'"));
+
+        assertEquals("Ca\u00f1as\n", result.output());
+    }
+
+    @Test
+    void test_exit_code_and_errors_are_returned() throws Exception {
+        ProcessRunner runner = new ProcessRunner(Duration.ofSeconds(30), bytesRead);
+
+        ProcessRunner.Result result = runner.run(List.of("/bin/sh", "-c", "echo 'No book with id 99' >&2; exit 1"));
+
+        assertEquals(1, result.exitCode());
+        assertEquals("No book with id 99\n", result.errors());
+    }
+
+    @Test
+    void test_process_is_killed_after_the_timeout() {
+        ProcessRunner runner = new ProcessRunner(Duration.ofMillis(200), bytesRead);
+
+        long start = System.nanoTime();
+        DataAccessException exception = assertThrows(DataAccessException.class, () -> runner.run(List.of("/bin/sh", "-c", "sleep 30")));
+
+        assertTrue(exception.getMessage().contains("was killed"));
+        assertTrue(Duration.ofNanos(System.nanoTime() - start).toSeconds() < 10);
+    }
+
+    @Test
+    void test_missing_command_fails() {
+        ProcessRunner runner = new ProcessRunner(Duration.ofSeconds(30), bytesRead);
+
+        assertThrows(IOException.class, () -> runner.run(List.of("/nonexistent/calibredb")));
+    }
+}
@@ -0,0 +1,125 @@
+package calibreautomations.persistence;
+
+import calibreautomations.Book;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedCalibreDBTest {
+
+    @Test
+    void test_shards_are_merged_in_id_order() throws DataAccessException {
+        RangeCalibreDB library = new RangeCalibreDB(10_000);
+
+        List<Book> books = new ShardedCalibreDB(library, 4).getBooks();
+
+        assertEquals(IntStream.rangeClosed(1, 10_000).boxed().toList(), books.stream().map(Book::getId).toList());
+        assertEquals(4, library.queries.size());
+        assertTrue(library.queries.stream().allMatch(BookQuery::hasIdRange));
+    }
+
+    @Test
+    void test_filter_is_kept_in_every_shard() throws DataAccessException {
+        RangeCalibreDB library = new RangeCalibreDB(100);
+        BookQuery query = BookQuery.all().matching(BookFilter.hasReadOrder());
+
+        try (Stream<Book> books = new ShardedCalibreDB(library, 3).streamBooks(query)) {
+            assertEquals(100, books.count());
+        }
+        assertTrue(library.queries.stream().allMatch(shard -> shard.getFilter() == query.getFilter()));
+    }
+
+    @Test
+    void test_small_libraries_are_listed_at_once() throws DataAccessException {
+        RangeCalibreDB library = new RangeCalibreDB(2);
+
+        assertEquals(2, new ShardedCalibreDB(library, 4).getBooks().size());
+        assertEquals(List.of(BookQuery.all()), library.queries);
+    }
+
+    @Test
+    void test_failed_shard_is_reported() {
+        RangeCalibreDB library = new RangeCalibreDB(5_000);
+        library.failingFromId = 2_501;
+
+        DataAccessException e = assertThrows(DataAccessException.class, () -> new ShardedCalibreDB(library, 2).getBooks());
+        assertEquals("Shard failed", e.getMessage());
+    }
+
+    @Test
+    void test_shards_listed_in_descending_order_are_reported() {
+        RangeCalibreDB library = new RangeCalibreDB(5_000);
+        library.descending = true;
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            DataAccessException e = assertThrows(DataAccessException.class, () -> new ShardedCalibreDB(library, 2).getBooks());
+            assertTrue(e.getMessage().startsWith("Books not listed in id order"));
+        });
+    }
+
+    @Test
+    void test_closing_early_stops_the_shards() {
+        RangeCalibreDB library = new RangeCalibreDB(100_000);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            try (Stream<Book> books = new ShardedCalibreDB(library, 4).streamBooks()) {
+                assertEquals(1, books.findFirst().orElseThrow().getId());
+            }
+        });
+    }
+
+    /**
+     * A library of books with consecutive ids that honours the id range of the queries, listed in ascending id order
+     * unless {@code descending} is set, as {@code calibredb list} does without {@code --ascending}.
+     */
+    private static class RangeCalibreDB implements CalibreDB {
+        private final int size;
+        private final List<BookQuery> queries = Collections.synchronizedList(new ArrayList<>());
+        private int failingFromId = Integer.MAX_VALUE;
+        private boolean descending;
+
+        RangeCalibreDB(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public int getMaxBookId() {
+            return size;
+        }
+
+        @Override
+        public Stream<Book> streamBooks(BookQuery query) throws DataAccessException {
+            queries.add(query);
+            if (query.getFromId() >= failingFromId) {
+                throw new DataAccessException("Shard failed");
+            }
+            int from = Math.max(1, query.getFromId());
+            int to = (int) Math.min(size + 1L, query.getToId());
+            IntStream ids = descending ? IntStream.range(from, to).map(id -> from + to - 1 - id) : IntStream.range(from, to);
+            return ids.mapToObj(id -> new Book(id, "Book " + id, "readorder:" + id, String.valueOf(id)));
+        }
+
+        @Override
+        public void deleteReadOrderCustomField(int bookId) {
+        }
+
+        @Override
+        public void setReadOrderCustomField(int bookId, String readOrder) {
+        }
+
+        @Override
+        public void replaceBookTags(int bookId, List<String> tagsList) {
+        }
+
+        @Override
+        public void updateBookTitle(int bookId, String title) {
+        }
+    }
+}
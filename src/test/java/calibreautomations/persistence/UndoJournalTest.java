@@ -0,0 +1,69 @@
+package calibreautomations.persistence;
+
+import calibreautomations.PlanReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UndoJournalTest {
+
+    @TempDir
+    Path undoDir;
+
+    @Test
+    void test_journal_is_a_plan_that_restores_the_books() throws IOException {
+        Path directory = UndoJournal.directoryFor(undoDir, "/library");
+        try (UndoJournal journal = new UndoJournal(directory, 5)) {
+            journal.record(List.of(new BookUpdate(1).setTitle("Title").setReadOrder("2.0")));
+            journal.record(List.of(new BookUpdate(2).setTags(List.of("tag1")).setDeleteReadOrder(true)));
+        }
+
+        Path last = UndoJournal.last(directory);
+        assertNotNull(last);
+        try (PlanReader reader = PlanReader.open(last)) {
+            BookUpdate first = reader.next();
+            assertEquals("Title", first.getTitle());
+            assertEquals("2.0", first.getReadOrder());
+            BookUpdate second = reader.next();
+            assertEquals(List.of("tag1"), second.getTags());
+            assertTrue(second.isDeleteReadOrder());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void test_undone_journals_are_skipped_and_old_ones_pruned() throws IOException {
+        Path directory = UndoJournal.directoryFor(undoDir, "/library");
+        for (int run = 1; run <= 4; run++) {
+            try (UndoJournal journal = new UndoJournal(directory, 3)) {
+                journal.record(List.of(new BookUpdate(run).setTitle("Run " + run)));
+            }
+        }
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(3, files.count());
+        }
+        Path last = UndoJournal.last(directory);
+        UndoJournal.markUndone(last);
+        Path previous = UndoJournal.last(directory);
+        assertNotEquals(last, previous);
+        try (PlanReader reader = PlanReader.open(previous)) {
+            assertEquals("Run 3", reader.next().getTitle());
+        }
+    }
+
+    @Test
+    void test_no_journal_before_the_first_write() throws IOException {
+        Path directory = UndoJournal.directoryFor(undoDir, "/library");
+        new UndoJournal(directory, 3).close();
+
+        assertNull(UndoJournal.last(directory));
+    }
+}
@@ -0,0 +1,52 @@
+package calibreautomations.rules;
+
+import calibreautomations.Book;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EditionIndexTest {
+
+    @Test
+    void test_title_key_ignores_marker_punctuation_and_case() {
+        assertEquals("the hobbit there and back again", EditionIndex.titleKey("The Hobbit (audiobook): There and Back Again"));
+        assertEquals("the hobbit there and back again", EditionIndex.titleKey("The hobbit: there and back again"));
+        assertEquals("the hobbit", EditionIndex.titleKey("  The Hobbit!  "));
+        assertEquals("cien anos de soledad", EditionIndex.titleKey("Cien años de soledad (audiobook)"));
+        assertEquals("catch 22", EditionIndex.titleKey("Catch-22"));
+        assertEquals("", EditionIndex.titleKey("(audiobook)"));
+    }
+
+    @Test
+    void test_audiobook_and_ebook_editions_are_paired() {
+        EditionIndex index = new EditionIndex();
+        Book ebook = new Book(1, "Dune: Book One", "readorder:1.0", "1.0");
+        Book audiobook = new Book(2, "Dune (audiobook): Book One", "format:audiobook", null);
+        index.add(ebook);
+        index.add(new Book(6, "Dune: Messiah (audiobook)", "format:audiobook", null));
+        index.add(new Book(3, "Emma", "", null));
+        index.add(audiobook);
+        index.add(new Book(4, "Emma", "", null));
+        index.add(new Book(5, "Persuasion (audiobook)", "format:audiobook", null));
+
+        List<List<Book>> editions = index.getEditions();
+
+        // Two ebooks of Emma are not editions of an audiobook, and Persuasion and Dune: Messiah have a single edition
+        assertEquals(List.of(List.of(ebook, audiobook)), editions);
+        assertEquals(Set.of("1.0"), EditionIndex.readOrders(editions.get(0)));
+    }
+
+    @Test
+    void test_read_orders_without_empty_and_cleared_values() {
+        List<Book> editions = List.of(
+                new Book(1, "A", "", "2.0"),
+                new Book(2, "A", "format:audiobook", "0.0"),
+                new Book(3, "A", "", null),
+                new Book(4, "A", "", "3.0"));
+
+        assertEquals(Set.of("2.0", "3.0"), EditionIndex.readOrders(editions));
+    }
+}
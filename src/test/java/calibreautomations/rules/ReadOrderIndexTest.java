@@ -0,0 +1,107 @@
+package calibreautomations.rules;
+
+import calibreautomations.Book;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReadOrderIndexTest {
+
+    @Test
+    void test_read_orders_are_compared_as_numbers() {
+        assertEquals(0, new BigDecimal("2").compareTo(ReadOrderIndex.parse("2.0")));
+        assertNull(ReadOrderIndex.parse(Book.NO_READORDER));
+        assertNull(ReadOrderIndex.parse("second"));
+        assertTrue(ReadOrderIndex.isCleared("0.0"));
+        assertTrue(ReadOrderIndex.isCleared("0"));
+        assertTrue(ReadOrderIndex.isCleared("0.00"));
+        assertFalse(ReadOrderIndex.isCleared("0.5"));
+        assertFalse(ReadOrderIndex.isCleared(Book.NO_READORDER));
+    }
+
+    @Test
+    void test_duplicates_gaps_and_invalid_values_are_reported() {
+        ReadOrderIndex index = new ReadOrderIndex();
+        Book first = new Book(1, "A", "", "2.0");
+        Book second = new Book(2, "B", "", "2");
+        Book invalid = new Book(3, "C", "", "second");
+        index.add(first);
+        index.add(second);
+        index.add(invalid);
+        index.add(new Book(4, "D", "", "3.5"));
+        index.add(new Book(5, "E", "", "7.0"));
+        index.add(new Book(6, "F", "", "0.0"));
+        index.add(new Book(7, "G", "", null));
+
+        assertEquals(4, index.size());
+        assertEquals(List.of(invalid), index.getInvalid());
+        Map<BigDecimal, List<Book>> duplicates = index.duplicates();
+        assertEquals(1, duplicates.size());
+        assertEquals(List.of(first, second), duplicates.values().iterator().next());
+        assertEquals(List.of(new ReadOrderIndex.Gap(1, 1), new ReadOrderIndex.Gap(4, 6)), index.gaps());
+    }
+
+    @Test
+    void test_renumber_only_changes_the_books_out_of_sequence() {
+        ReadOrderIndex index = new ReadOrderIndex();
+        Book second = new Book(2, "B", "", "2.5");
+        Book third = new Book(3, "C", "", "4.0");
+        Book fourth = new Book(4, "D", "", "6.0");
+        Book fifth = new Book(5, "E", "", "4");
+        index.add(new Book(1, "A", "", "1.0"));
+        index.add(second);
+        index.add(third);
+        index.add(fourth);
+        index.add(fifth);
+
+        // 2.5 is already in sequence, the books sharing 4 keep sharing their new readorder
+        assertEquals(List.of(
+                new ReadOrderIndex.Renumbering(third, "3.0"),
+                new ReadOrderIndex.Renumbering(fifth, "3.0"),
+                new ReadOrderIndex.Renumbering(fourth, "4.0")), index.renumber());
+    }
+
+    @Test
+    void test_fractional_read_orders_move_with_their_whole_part() {
+        ReadOrderIndex index = new ReadOrderIndex();
+        Book between = new Book(2, "B", "", "3.5");
+        Book last = new Book(3, "C", "", "5");
+        index.add(new Book(1, "A", "", "1.0"));
+        index.add(between);
+        index.add(last);
+        index.add(new Book(4, "D", "", "0.5"));
+
+        assertEquals(List.of(
+                new ReadOrderIndex.Renumbering(between, "2.5"),
+                new ReadOrderIndex.Renumbering(last, "3.0")), index.renumber());
+    }
+
+    @Test
+    void test_negative_read_orders_are_invalid() {
+        ReadOrderIndex index = new ReadOrderIndex();
+        Book negative = new Book(1, "A", "", "-1.0");
+        index.add(negative);
+        index.add(new Book(2, "B", "", "1.0"));
+        index.add(new Book(3, "C", "", "2.0"));
+
+        assertEquals(List.of(negative), index.getInvalid());
+        assertEquals(2, index.size());
+        assertTrue(index.renumber().isEmpty());
+    }
+
+    @Test
+    void test_compact_sequence_is_not_renumbered() {
+        ReadOrderIndex index = new ReadOrderIndex();
+        index.add(new Book(1, "A", "", "1.0"));
+        index.add(new Book(2, "B", "", "2"));
+        index.add(new Book(3, "C", "", "2.5"));
+        index.add(new Book(4, "D", "", "3.0"));
+
+        assertTrue(index.renumber().isEmpty());
+        assertTrue(index.gaps().isEmpty());
+    }
+}
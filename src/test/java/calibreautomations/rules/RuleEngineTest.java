@@ -0,0 +1,68 @@
+package calibreautomations.rules;
+
+import calibreautomations.Book;
+import calibreautomations.persistence.BookUpdate;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RuleEngineTest {
+
+    @Test
+    void test_rules_are_loaded_with_service_loader() {
+        List<String> names = RuleEngine.loadRules().stream().map(Rule::getName).toList();
+
+        assertEquals(List.of(AudiobookRule.NAME, ReadOrderRule.NAME), names);
+    }
+
+    @Test
+    void test_changes_of_all_rules_are_merged_into_one_update() {
+        RuleEngine engine = new RuleEngine(List.of(new AudiobookRule(), new ReadOrderRule()));
+        Book book = new Book(2, "Test Book 2", "tag1,format:audiobook,tag2", "3.0");
+
+        BookChanges changes = engine.evaluate(book);
+
+        BookUpdate update = changes.getUpdate();
+        assertEquals("Test Book 2 (audiobook)", update.getTitle());
+        assertEquals(List.of("tag1", "format:audiobook", "tag2", "readorder:3.0"), update.getTags());
+        assertEquals(List.of(AudiobookRule.NAME, ReadOrderRule.NAME), changes.getChangedBy());
+        assertTrue(changes.getReport().contains("[add audiobook to title]"));
+        assertTrue(changes.getReport().contains("[add readorder tag]"));
+    }
+
+    @Test
+    void test_rules_see_the_changes_of_the_previous_rules() {
+        Rule addTag = new Rule() {
+            @Override
+            public String getName() {
+                return "series";
+            }
+
+            @Override
+            public boolean evaluate(Book book, BookChanges changes) {
+                changes.setTags(List.of("series:test", "readorder:1.0", "readorder:4.0"));
+                return true;
+            }
+        };
+        RuleEngine engine = new RuleEngine(List.of(addTag, new ReadOrderRule()));
+        Book book = new Book(1, "Test Book 1", "tag1", "4.0");
+
+        BookChanges changes = engine.evaluate(book);
+
+        assertEquals(List.of("series:test", "readorder:4.0"), changes.getUpdate().getTags());
+    }
+
+    @Test
+    void test_book_without_changes_has_an_empty_update() {
+        RuleEngine engine = new RuleEngine(RuleEngine.loadRules());
+        Book book = new Book(1, "Test Book 1", "tag1,readorder:3.0", "3.0");
+
+        BookChanges changes = engine.evaluate(book);
+
+        assertTrue(changes.getUpdate().isEmpty());
+        assertTrue(changes.getChangedBy().isEmpty());
+        assertEquals("", changes.getReport());
+    }
+}
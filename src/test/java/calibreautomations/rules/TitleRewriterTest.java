@@ -0,0 +1,80 @@
+package calibreautomations.rules;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static calibreautomations.rules.TitleRewriter.addAudiobookMarker;
+import static calibreautomations.rules.TitleRewriter.removeAudiobookMarker;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TitleRewriterTest {
+
+    private static final String ALPHABET = "abc XYZ:::()-.\t";
+
+    @Test
+    void test_marker_goes_before_the_first_colon() {
+        assertEquals("Title (audiobook)", addAudiobookMarker("Title"));
+        assertEquals("Title (audiobook): sub: part two", addAudiobookMarker("Title: sub: part two"));
+        assertEquals("Title (audiobook) : sub", addAudiobookMarker("Title : sub"));
+        assertEquals("(audiobook): sub", addAudiobookMarker(": sub"));
+    }
+
+    @Test
+    void test_remove_keeps_every_subtitle() {
+        assertEquals("Title: sub: part two", removeAudiobookMarker("Title (audiobook): sub: part two"));
+        assertEquals("Title: sub", removeAudiobookMarker("Title(audiobook): sub"));
+        assertEquals("Title", removeAudiobookMarker("(audiobook) Title"));
+        assertEquals("Title sub", removeAudiobookMarker("Title (audiobook) (audiobook) sub"));
+    }
+
+    @Test
+    void test_unchanged_titles_are_the_same_instance() {
+        String title = "Title: sub";
+        assertSame(title, removeAudiobookMarker(title));
+        String audiobook = "Title (audiobook): sub";
+        assertSame(audiobook, addAudiobookMarker(audiobook));
+    }
+
+    @Test
+    void test_add_and_remove_round_trip_on_random_titles() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            String title = randomTitle(random);
+
+            String added = addAudiobookMarker(title);
+            assertTrue(TitleRewriter.hasAudiobookMarker(added), title);
+            assertEquals(added, addAudiobookMarker(added), title);
+            assertEquals(title, removeAudiobookMarker(added), title);
+            assertEquals(title, removeAudiobookMarker(title), title);
+        }
+    }
+
+    @Test
+    void test_remove_is_idempotent_on_random_titles_with_markers() {
+        Random random = new Random(7);
+        for (int i = 0; i < 100_000; i++) {
+            String title = randomTitle(random) + (random.nextBoolean() ? " (audiobook) " : "(audiobook)") + randomTitle(random);
+
+            String removed = removeAudiobookMarker(title);
+            assertFalse(TitleRewriter.hasAudiobookMarker(removed), title);
+            assertEquals(removed, removeAudiobookMarker(removed), title);
+        }
+    }
+
+    /**
+     * @return a trimmed title without the marker, made of letters, spaces, colons and parentheses
+     */
+    private static String randomTitle(Random random) {
+        String title;
+        do {
+            StringBuilder builder = new StringBuilder();
+            int length = random.nextInt(20);
+            for (int i = 0; i < length; i++) {
+                builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            title = builder.toString().strip();
+        } while (TitleRewriter.hasAudiobookMarker(title));
+        return title;
+    }
+}
@@ -0,0 +1,60 @@
+package calibreautomations.validation;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileFormatTest {
+
+    static byte[] epubHeader() {
+        ByteBuffer header = ByteBuffer.allocate(FileFormat.HEADER_SIZE);
+        header.put(new byte[]{'P', 'K', 3, 4});
+        header.position(30);
+        header.put("mimetypeapplication/epub+zip".getBytes(StandardCharsets.US_ASCII));
+        return header.array();
+    }
+
+    static byte[] m4bHeader() {
+        return new byte[]{0, 0, 0, 0x20, 'f', 't', 'y', 'p', 'M', '4', 'B', ' ', 0, 0, 0, 0};
+    }
+
+    @Test
+    void test_sniff_book_formats() {
+        assertEquals(FileFormat.EPUB, sniff(epubHeader()));
+        assertEquals(FileFormat.PDF, sniff("%PDF-1.7\n".getBytes(StandardCharsets.US_ASCII)));
+        byte[] mobi = new byte[FileFormat.HEADER_SIZE];
+        System.arraycopy("BOOKMOBI".getBytes(StandardCharsets.US_ASCII), 0, mobi, 60, 8);
+        assertEquals(FileFormat.MOBI, sniff(mobi));
+    }
+
+    @Test
+    void test_sniff_audio_formats() {
+        assertEquals(FileFormat.MP4_AUDIO, sniff(m4bHeader()));
+        assertEquals(FileFormat.MP3, sniff("ID3\u0004\u0000".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(FileFormat.MP3, sniff(new byte[]{(byte) 0xFF, (byte) 0xFB, (byte) 0x90, 0x64}));
+        assertTrue(FileFormat.MP3.isAudio());
+        assertFalse(FileFormat.EPUB.isAudio());
+    }
+
+    @Test
+    void test_unknown_headers() {
+        assertEquals(FileFormat.UNKNOWN, sniff(new byte[]{'P', 'K', 3, 4, 0, 0}));
+        assertEquals(FileFormat.UNKNOWN, sniff(new byte[]{0, 0, 0, 0x20, 'f', 't', 'y', 'p', 'a', 'v', 'c', '1'}));
+        assertEquals(FileFormat.UNKNOWN, sniff(new byte[0]));
+    }
+
+    @Test
+    void test_format_of_file_name() {
+        assertEquals(FileFormat.MP4_AUDIO, FileFormat.ofFileName("Book - Author.M4B"));
+        assertEquals(FileFormat.MOBI, FileFormat.ofFileName("book.azw3"));
+        assertNull(FileFormat.ofFileName("cover.jpg"));
+        assertNull(FileFormat.ofFileName("metadata.opf"));
+    }
+
+    private static FileFormat sniff(byte[] header) {
+        return FileFormat.sniff(ByteBuffer.wrap(header));
+    }
+}
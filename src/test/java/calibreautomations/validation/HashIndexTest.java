@@ -0,0 +1,90 @@
+package calibreautomations.validation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashIndexTest {
+
+    @TempDir
+    Path library;
+
+    @TempDir
+    Path cache;
+
+    @Test
+    void test_crc32c_of_a_file() throws IOException {
+        byte[] content = "%PDF-1.4 some content".getBytes(StandardCharsets.US_ASCII);
+        Path file = write("A/Book (1)/Book.pdf", content);
+        CRC32C crc = new CRC32C();
+        crc.update(content);
+
+        assertEquals((int) crc.getValue(), FileHasher.crc32c(file));
+        assertEquals((int) new CRC32C().getValue(), FileHasher.crc32c(write("A/Empty (2)/Empty.pdf", new byte[0])));
+    }
+
+    @Test
+    void test_only_changed_files_are_hashed_again() throws IOException, InterruptedException {
+        write("A/One (1)/One.epub", "one");
+        Path two = write("A/Two (2)/Two.epub", "two");
+        Path indexFile = cache.resolve("library.hashes");
+
+        HashIndex.Update first = HashIndex.read(indexFile).update(library, 2, false);
+        first.index().write(indexFile);
+        Files.writeString(two, "TWO");
+        Files.setLastModifiedTime(two, FileTime.fromMillis(Files.getLastModifiedTime(two).toMillis() + 2000));
+        HashIndex.Update second = HashIndex.read(indexFile).update(library, 2, false);
+
+        assertEquals(2, first.hashed());
+        assertEquals(1, second.hashed());
+        assertEquals(1, second.changes().size());
+        assertFalse(second.changes().get(0).isUnexpected());
+        assertEquals(2, second.index().size());
+    }
+
+    @Test
+    void test_verify_finds_files_changed_in_place() throws IOException, InterruptedException {
+        Path one = write("A/One (1)/One.m4b", "audio");
+        HashIndex index = new HashIndex(List.of()).update(library, 1, false).index();
+        FileTime modified = Files.getLastModifiedTime(one);
+        Files.writeString(one, "AUDIO");
+        Files.setLastModifiedTime(one, modified);
+
+        assertTrue(index.update(library, 1, false).changes().isEmpty());
+        HashIndex.Update verified = index.update(library, 1, true);
+
+        assertEquals(1, verified.changes().size());
+        assertTrue(verified.changes().get(0).isUnexpected());
+    }
+
+    @Test
+    void test_duplicates() throws IOException, InterruptedException {
+        write("A/One (1)/One.epub", "same");
+        write("B/Copy (7)/Copy.epub", "same");
+        write("B/Other (8)/Other.epub", "other");
+
+        List<List<HashIndex.Entry>> duplicates = new HashIndex(List.of()).update(library, 2, false).index().duplicates();
+
+        assertEquals(1, duplicates.size());
+        assertEquals(List.of(1, 7), duplicates.get(0).stream().map(HashIndex.Entry::bookId).toList());
+    }
+
+    private Path write(String path, String content) throws IOException {
+        return write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Path write(String path, byte[] content) throws IOException {
+        Path file = library.resolve(path);
+        Files.createDirectories(file.getParent());
+        return Files.write(file, content);
+    }
+}
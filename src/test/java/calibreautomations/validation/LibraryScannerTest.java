@@ -0,0 +1,65 @@
+package calibreautomations.validation;
+
+import calibreautomations.Book;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LibraryScannerTest {
+
+    @TempDir
+    Path library;
+
+    @Test
+    void test_scan_finds_the_book_files_of_each_book() throws IOException, InterruptedException {
+        write("Author One/Ebook (1)/Ebook - Author One.epub", FileFormatTest.epubHeader());
+        write("Author One/Ebook (1)/cover.jpg", new byte[]{(byte) 0xFF, (byte) 0xD8});
+        write("Author One/Ebook (1)/metadata.opf", "<package/>".getBytes(StandardCharsets.UTF_8));
+        write("Author Two/Audiobook (22)/Audiobook - Author Two.m4b", FileFormatTest.m4bHeader());
+        write("Author Two/Audiobook (22)/data/notes.pdf", "%PDF-1.4".getBytes(StandardCharsets.US_ASCII));
+        write("Author Two/Not a book.pdf", "%PDF-1.4".getBytes(StandardCharsets.US_ASCII));
+        write(".caltrash/b/Deleted (3)/Deleted.epub", FileFormatTest.epubHeader());
+
+        Map<Integer, List<BookFile>> books = new LibraryScanner(2).scan(library);
+
+        assertEquals(2, books.size());
+        assertEquals(1, books.get(1).size());
+        assertEquals(1, books.get(22).size());
+        assertEquals(FileFormat.EPUB, books.get(1).get(0).found());
+        assertEquals(FileFormat.MP4_AUDIO, books.get(22).get(0).found());
+    }
+
+    @Test
+    void test_files_are_checked_against_names_and_tags() throws IOException, InterruptedException {
+        write("A/Tagged (1)/Tagged.m4b", FileFormatTest.m4bHeader());
+        write("A/Untagged (2)/Untagged.mp3", "ID3\u0004".getBytes(StandardCharsets.US_ASCII));
+        write("A/Renamed (3)/Renamed.epub", "%PDF-1.4".getBytes(StandardCharsets.US_ASCII));
+        write("A/Missing audio (4)/Missing audio.epub", FileFormatTest.epubHeader());
+        Map<Integer, List<BookFile>> books = new LibraryScanner(1).scan(library);
+
+        assertEquals(List.of(), validate(books, new Book(1, "Tagged", "format:audiobook", null)));
+        assertEquals(List.of("audio files but no format:audiobook tag"), validate(books, new Book(2, "Untagged", "", null)));
+        assertEquals(List.of("Renamed.epub is a PDF file"), validate(books, new Book(3, "Renamed", "", null)));
+        assertEquals(List.of("format:audiobook tag but no audio file"),
+                validate(books, new Book(4, "Missing audio", "format:audiobook", null)));
+        assertEquals(List.of("no book file"), validate(books, new Book(5, "No files", "", null)));
+    }
+
+    private static List<String> validate(Map<Integer, List<BookFile>> books, Book book) {
+        return FormatValidator.validate(book, books.getOrDefault(book.getId(), List.of()));
+    }
+
+    private void write(String path, byte[] content) throws IOException {
+        Path file = library.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+    }
+}
@@ -0,0 +1,56 @@
+# Stands in for calibre_worker.py in tests, so CalibreDBWorker can be exercised without Calibre installed.
+# The library is a JSON file with a list of books, passed as the last argument. Updates are written back to it.
+import json
+import sys
+
+
+def main():
+    library_path = sys.argv[-1]
+    with open(library_path) as f:
+        books = json.load(f)
+    out = sys.stdout
+    # The ids left to list and the page size of the listing in progress
+    listing = {}
+    for line in sys.stdin:
+        if not line.strip():
+            continue
+        request = json.loads(line)
+        operation = request.get('op')
+        if operation == 'quit':
+            break
+        if operation == 'list':
+            # Searches are not supported, CalibreDBWorker filters on last_modified itself
+            listing['ids'] = sorted(book['id'] for book in books)
+            listing['limit'] = request.get('limit', 1000)
+        if operation in ('list', 'next'):
+            if 'ids' not in listing:
+                out.write(json.dumps({'error': 'No listing in progress'}) + '\n')
+            else:
+                page, listing['ids'] = listing['ids'][:listing['limit']], listing['ids'][listing['limit']:]
+                by_id = {book['id']: book for book in books}
+                out.write(json.dumps({'books': [by_id[book_id] for book_id in page], 'more': bool(listing['ids'])}) + '\n')
+                if not listing['ids']:
+                    listing.clear()
+        elif operation == 'apply':
+            by_id = {book['id']: book for book in books}
+            for update in request['updates']:
+                book = by_id.get(update['id'])
+                if book is None:
+                    out.write(json.dumps({'error': 'No book with id %d' % update['id']}) + '\n')
+                    break
+                if 'title' in update:
+                    book['title'] = update['title']
+                if 'tags' in update:
+                    book['tags'] = update['tags']
+                if update.get('delete_readorder'):
+                    book.pop('*readorder', None)
+            else:
+                with open(library_path, 'w') as f:
+                    json.dump(books, f)
+                out.write(json.dumps({'updated': len(request['updates'])}) + '\n')
+        else:
+            out.write(json.dumps({'error': 'Unknown operation: %s' % operation}) + '\n')
+        out.flush()
+
+
+main()